@@ -0,0 +1,106 @@
+package ch.cern.dirq;
+
+/**
+ * Adaptive sizing of the time buckets used for intermediate directories.
+ * <br>
+ * The add rate of this process is estimated with an exponentially weighted
+ * moving average over one second windows and the bucket length is the largest power of two that
+ * keeps the expected number of entries per bucket under the target, capped
+ * by the queue granularity. Bucket starts never go back in time so that the
+ * intermediate directories used by this process stay in FIFO order.
+ * <br>
+ * This is a private class to be used only by the directory queue classes.
+ * Its API can change at any time without any notice.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+final class BucketSizer {
+
+    private static final double ALPHA = 0.5;
+
+    private final int maxEntries;
+    private long windowStart;
+    private int windowCount;
+    private double rate;
+    private long lastStart;
+
+    /**
+     * Constructor for a given target number of entries per bucket.
+     *
+     * @param maxEntries target maximum number of entries per bucket
+     */
+    BucketSizer(final int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Return the target maximum number of entries per bucket.
+     *
+     * @return target maximum number of entries per bucket
+     */
+    int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Return the current estimated add rate.
+     *
+     * @return number of adds per second
+     */
+    synchronized double getRate() {
+        return Math.max(rate, windowCount);
+    }
+
+    /**
+     * Return the current bucket length.
+     *
+     * @param maxLength maximum bucket length (in seconds)
+     * @return bucket length (in seconds)
+     */
+    synchronized long length(final long maxLength) {
+        double current = getRate();
+        if (maxLength <= 1 || current * maxLength <= maxEntries) {
+            return Math.max(maxLength, 1);
+        }
+        long length = Long.highestOneBit(maxLength);
+        while (length > 1 && current * length > maxEntries) {
+            length /= 2;
+        }
+        return length;
+    }
+
+    /**
+     * Record an add at the given time and return the start of its bucket.
+     *
+     * @param time element time (in seconds since the Epoch)
+     * @param now current time (in seconds since the Epoch)
+     * @param maxLength maximum bucket length (in seconds)
+     * @return bucket start (in seconds since the Epoch)
+     */
+    synchronized long bucketStart(final long time, final long now, final long maxLength) {
+        if (now != windowStart) {
+            if (windowStart > 0 && now > windowStart) {
+                // fold the last window then decay for the seconds without adds
+                rate = ALPHA * windowCount + (1 - ALPHA) * rate;
+                rate *= Math.pow(1 - ALPHA, now - windowStart - 1);
+            }
+            windowStart = now;
+            windowCount = 0;
+        }
+        windowCount++;
+        long length = length(maxLength);
+        long start = time - time % length;
+        if (time > now) {
+            // delayed element: its bucket does not constrain the next ones
+            return start;
+        }
+        if (start < lastStart) {
+            start = lastStart;
+        }
+        lastStart = start;
+        return start;
+    }
+
+}
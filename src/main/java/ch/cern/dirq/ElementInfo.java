@@ -0,0 +1,79 @@
+package ch.cern.dirq;
+
+/**
+ * Information about an element of a queue (see
+ * {@link ch.cern.dirq.QueueSimple#elements()}).
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public final class ElementInfo {
+
+    private final String name;
+    private final long size;
+    private final long modificationTime;
+    private final boolean locked;
+
+    ElementInfo(final String name, final long size, final long modificationTime,
+                final boolean locked) {
+        this.name = name;
+        this.size = size;
+        this.modificationTime = modificationTime;
+        this.locked = locked;
+    }
+
+    /**
+     * Get the element name.
+     *
+     * @return element name (&lt;directory name&gt;/&lt;file name&gt;)
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the size of the element data.
+     *
+     * @return size (in bytes)
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Get the modification time of the element file, which is also updated
+     * when the element gets locked.
+     *
+     * @return modification time (in milliseconds since the Epoch)
+     */
+    public long getModificationTime() {
+        return modificationTime;
+    }
+
+    /**
+     * Get the creation time of the element, decoded from its name. For a
+     * delayed element, this is the time at which it became visible.
+     *
+     * @return creation time (in milliseconds since the Epoch)
+     */
+    public long getCreationTime() {
+        return QueueSimple.nameTime(QueueSimple.baseName(name)) * QueueSimple.SECOND;
+    }
+
+    /**
+     * Check if the element was locked when it was listed.
+     *
+     * @return true if the element was locked
+     */
+    public boolean isLocked() {
+        return locked;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (size=" + size + ", mtime=" + modificationTime
+            + ", locked=" + locked + ")";
+    }
+
+}
@@ -0,0 +1,272 @@
+package ch.cern.dirq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Metadata of the elements of the simple directory queue.
+ * <br>
+ * The metadata is preferably stored in user defined file attributes, one per
+ * key, named <code>dirq.meta.KEY</code>. Where these are not supported and
+ * the queue allows it, it is stored in a header at the start of the element
+ * file: an 8 bytes magic string (<code>\0DIRQMD1</code>), the header body
+ * length (4 bytes) and the body, made of the number of entries followed by
+ * the keys and values in {@link java.io.DataOutput#writeUTF(String)} format.
+ * <br>
+ * This is a private class to be used only by the directory queue classes.
+ * Its API can change at any time without any notice.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+final class ElementMetadata {
+
+    static final String ATTRIBUTE_PREFIX = "dirq.meta.";
+    private static final String MAGIC_STRING = "\0DIRQMD1";
+    private static final byte[] MAGIC = MAGIC_STRING.getBytes(StandardCharsets.US_ASCII);
+    private static final int PREFIX_SIZE = MAGIC.length + Integer.BYTES;
+
+    /**
+     * Private constructor: this class only has static methods.
+     */
+    private ElementMetadata() {
+    }
+
+    /**
+     * Store the metadata in the user defined attributes of the given file.
+     *
+     * @param path file path object
+     * @param metadata metadata to be stored
+     * @throws IOException if any file operation fails
+     */
+    static void writeAttributes(final Path path, final Map<String, String> metadata)
+        throws IOException {
+        for (Map.Entry<String, String> entry: metadata.entrySet()) {
+            FileUtils.writeUserAttribute(path, ATTRIBUTE_PREFIX + entry.getKey(),
+                                         entry.getValue());
+        }
+    }
+
+    /**
+     * Return an element writer storing the metadata in a header followed by
+     * the data.
+     *
+     * @param metadata metadata to be stored
+     * @param data writer of the element data
+     * @return element writer
+     * @throws IOException if the metadata cannot be encoded
+     */
+    static ElementWriter headerWriter(final Map<String, String> metadata,
+                                      final ElementWriter data)
+        throws IOException {
+        final byte[] header = header(metadata);
+        return new ElementWriter() {
+            public void write(final FileChannel channel) throws IOException {
+                FileUtils.writeToChannel(channel, header);
+                data.write(channel);
+            }
+        };
+    }
+
+    /**
+     * Encode the metadata as a header.
+     *
+     * @param metadata metadata to be encoded
+     * @return header bytes
+     * @throws IOException if the metadata cannot be encoded
+     */
+    static byte[] header(final Map<String, String> metadata) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(MAGIC);
+        out.writeInt(0);
+        out.writeInt(metadata.size());
+        for (Map.Entry<String, String> entry: metadata.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        out.close();
+        ByteBuffer result = ByteBuffer.wrap(bytes.toByteArray());
+        result.putInt(MAGIC.length, result.capacity() - PREFIX_SIZE);
+        return result.array();
+    }
+
+    /**
+     * Decode a header, as returned by {@link #header(Map)}.
+     *
+     * @param header header bytes
+     * @return metadata
+     * @throws IOException if the header is invalid
+     */
+    static Map<String, String> parse(final byte[] header) throws IOException {
+        if (parseLength(header, 0, header.length) != header.length) {
+            throw new IOException("invalid metadata header");
+        }
+        return decode(Arrays.copyOfRange(header, PREFIX_SIZE, header.length));
+    }
+
+    /**
+     * Strip the header, if any, from the given element data.
+     *
+     * @param data element data
+     * @return element data without header
+     */
+    static byte[] strip(final byte[] data) {
+        int header = parseLength(data, 0, data.length);
+        return header == 0 ? data : Arrays.copyOfRange(data, header, data.length);
+    }
+
+    /**
+     * Strip the header, if any, from the element data found at the given
+     * offset in the array, moving the data down.
+     *
+     * @param data array holding the element data
+     * @param off offset of the element data
+     * @param len length of the element data
+     * @return length of the element data without header
+     */
+    static int strip(final byte[] data, final int off, final int len) {
+        int header = parseLength(data, off, len);
+        if (header > 0) {
+            System.arraycopy(data, off + header, data, off, len - header);
+        }
+        return len - header;
+    }
+
+    /**
+     * Strip the header, if any, from the element data found before the
+     * position of the buffer, moving the data down and the position back.
+     *
+     * @param data buffer holding the element data
+     * @param pos position of the element data
+     * @param len length of the element data
+     * @return length of the element data without header
+     */
+    static int strip(final ByteBuffer data, final int pos, final int len) {
+        if (len < PREFIX_SIZE) {
+            return len;
+        }
+        byte[] prefix = new byte[PREFIX_SIZE];
+        ByteBuffer src = data.duplicate();
+        src.position(pos);
+        src.get(prefix);
+        int header = parseLength(prefix, 0, len);
+        if (header > 0) {
+            src.limit(pos + len).position(pos + header);
+            data.position(pos);
+            data.put(src);
+        }
+        return len - header;
+    }
+
+    /**
+     * Position the channel of an element file after its header, if any.
+     *
+     * @param channel element file channel
+     * @return header length
+     * @throws IOException if any file operation fails
+     */
+    static int skipHeader(final FileChannel channel) throws IOException {
+        ByteBuffer prefix = ByteBuffer.allocate(PREFIX_SIZE);
+        while (prefix.hasRemaining() && channel.read(prefix, prefix.position()) > 0) {
+            continue;
+        }
+        int header = prefix.hasRemaining() ? 0
+            : parseLength(prefix.array(), 0, channel.size());
+        channel.position(header);
+        return header;
+    }
+
+    /**
+     * Read the metadata of the given element file, from its user defined
+     * attributes if any, from its header otherwise.
+     *
+     * @param path file path object
+     * @param attributes true if user defined attributes are supported
+     * @param header true if the element may have a header
+     * @return metadata, empty if there is none
+     * @throws IOException if any file operation fails
+     */
+    static Map<String, String> read(final Path path, final boolean attributes,
+                                    final boolean header)
+        throws IOException {
+        if (attributes) {
+            Map<String, String> result = FileUtils.readUserAttributes(path, ATTRIBUTE_PREFIX);
+            if (!result.isEmpty() || !header) {
+                return result;
+            }
+        }
+        if (!header) {
+            return new TreeMap<String, String>();
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer prefix = ByteBuffer.allocate(PREFIX_SIZE);
+            while (prefix.hasRemaining() && channel.read(prefix) >= 0) {
+                continue;
+            }
+            if (prefix.hasRemaining()
+                || parseLength(prefix.array(), 0, channel.size()) == 0) {
+                return new TreeMap<String, String>();
+            }
+            ByteBuffer body = ByteBuffer.allocate(prefix.getInt(MAGIC.length));
+            while (body.hasRemaining() && channel.read(body) >= 0) {
+                continue;
+            }
+            return decode(body.array());
+        } finally {
+            channel.close();
+        }
+    }
+
+    //
+    // helper methods
+    //
+
+    /**
+     * Decode the header body: the number of entries, the keys and the values.
+     */
+    private static Map<String, String> decode(final byte[] body) throws IOException {
+        Map<String, String> result = new TreeMap<String, String>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            result.put(key, in.readUTF());
+        }
+        return result;
+    }
+
+    /**
+     * Parse the header prefix at the given offset, checking that the header
+     * fits in the given length.
+     */
+    private static int parseLength(final byte[] data, final int off, final long len) {
+        if (len < PREFIX_SIZE) {
+            return 0;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[off + i] != MAGIC[i]) {
+                return 0;
+            }
+        }
+        int body = ByteBuffer.wrap(data, off + MAGIC.length, Integer.BYTES).getInt();
+        if (body < 0 || body > len - PREFIX_SIZE) {
+            return 0;
+        }
+        return PREFIX_SIZE + body;
+    }
+
+}
@@ -0,0 +1,83 @@
+package ch.cern.dirq;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writer of the data of a new element, directly into its file.
+ * <br>
+ * This is a private class to be used only by the directory queue classes.
+ * Its API can change at any time without any notice.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+interface ElementWriter {
+
+    /**
+     * Write the element data to the given channel, which must not be closed.
+     *
+     * @param channel channel of the new element file
+     * @throws IOException if any file operation fails
+     */
+    void write(FileChannel channel) throws IOException;
+
+    /**
+     * Return a writer for the given bytes.
+     *
+     * @param data element data
+     * @return element writer
+     */
+    static ElementWriter of(final byte[] data) {
+        return new ElementWriter() {
+            public void write(final FileChannel channel) throws IOException {
+                FileUtils.writeToChannel(channel, data);
+            }
+        };
+    }
+
+    /**
+     * Return a writer for the given string, encoded in UTF-8.
+     *
+     * @param data element data
+     * @return element writer
+     */
+    static ElementWriter of(final String data) {
+        return new ElementWriter() {
+            public void write(final FileChannel channel) throws IOException {
+                FileUtils.writeToChannel(channel, data);
+            }
+        };
+    }
+
+    /**
+     * Return a writer copying the contents of the given file.
+     *
+     * @param path file path object
+     * @return element writer
+     */
+    static ElementWriter of(final Path path) {
+        return new ElementWriter() {
+            public void write(final FileChannel channel) throws IOException {
+                FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+                try {
+                    long size = in.size();
+                    long position = 0;
+                    while (position < size) {
+                        long done = in.transferTo(position, size - position, channel);
+                        if (done <= 0) {
+                            throw new IOException("unexpected end of file: " + path);
+                        }
+                        position += done;
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        };
+    }
+
+}
@@ -1,17 +1,37 @@
 package ch.cern.dirq;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * Convenient file related utilities.
@@ -61,6 +81,35 @@ public final class FileUtils {
     /* Others have execute permission. */
     public static final int S_IXOTH = 0001;
 
+    /* Size of the chunks used to encode strings. */
+    private static final int CHUNK_SIZE = 65536;
+
+    /* Maximum number of bytes per char in UTF-8 (surrogate pairs use 4 for 2). */
+    private static final int MAX_BYTES_PER_CHAR = 3;
+
+    /* Upper bounds of the chars encoded in UTF-8 with one and two bytes. */
+    private static final char ONE_BYTE_LIMIT = 0x80;
+    private static final char TWO_BYTES_LIMIT = 0x800;
+
+    /* Options used to (re)write a whole file. */
+    private static final Set<StandardOpenOption> WRITE_OPTIONS = EnumSet.of(
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.WRITE);
+
+    /* Pool of direct buffers used to encode strings. */
+    private static final BufferPool DIRECT_POOL = new BufferPool(CHUNK_SIZE, 8, true);
+
+    /* Per thread UTF-8 encoder, encoders are not thread safe. */
+    private static final ThreadLocal<CharsetEncoder> ENCODER =
+        new ThreadLocal<CharsetEncoder>() {
+            @Override
+            protected CharsetEncoder initialValue() {
+                return StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
+        };
+
     // this utility class cannot be instantiated
     private FileUtils() {
     }
@@ -188,7 +237,9 @@ public final class FileUtils {
      */
     public static void writeToFile(final Path path, final String data)
         throws IOException {
-        writeToFile(path, data.getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(path, WRITE_OPTIONS)) {
+            writeToChannel(channel, data);
+        }
     }
 
     /**
@@ -224,7 +275,127 @@ public final class FileUtils {
      */
     public static void writeToFile(final Path path, final byte[] data)
         throws IOException {
-        Files.write(path, data);
+        try (FileChannel channel = FileChannel.open(path, WRITE_OPTIONS)) {
+            writeToChannel(channel, data);
+        }
+    }
+
+    /**
+     * Return the length of a string once encoded in UTF-8, without encoding
+     * it. Like with {@link String#getBytes(java.nio.charset.Charset)}, an
+     * unpaired surrogate counts as its one byte replacement.
+     *
+     * @param data string
+     * @return number of bytes
+     */
+    static long utf8Length(final String data) {
+        long length = 0;
+        int index = 0;
+        while (index < data.length()) {
+            char ch = data.charAt(index++);
+            if (ch < ONE_BYTE_LIMIT) {
+                length += 1;
+            } else if (ch < TWO_BYTES_LIMIT) {
+                length += 2;
+            } else if (Character.isHighSurrogate(ch) && index < data.length()
+                       && Character.isLowSurrogate(data.charAt(index))) {
+                index++;
+                length += MAX_BYTES_PER_CHAR + 1;
+            } else {
+                length += Character.isSurrogate(ch) ? 1 : MAX_BYTES_PER_CHAR;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Write bytes to a channel.
+     * <br>
+     * The data is given to the kernel in a single write, as the size is
+     * known, unless the write is partial.
+     *
+     * @param channel channel, typically a file channel
+     * @param data bytes
+     * @throws IOException if any file operation fails
+     */
+    public static void writeToChannel(final WritableByteChannel channel, final byte[] data)
+        throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Write a UTF-8 string to a channel.
+     * <br>
+     * The string is encoded in chunks into a pooled direct buffer, so that
+     * there is neither an intermediate byte array nor an extra copy when
+     * handing the data to the kernel. Malformed input is replaced, like
+     * with {@link String#getBytes(java.nio.charset.Charset)}.
+     *
+     * @param channel channel, typically a file channel
+     * @param data UTF-8 string
+     * @throws IOException if any file operation fails
+     */
+    public static void writeToChannel(final WritableByteChannel channel, final String data)
+        throws IOException {
+        CharsetEncoder encoder = ENCODER.get();
+        CharBuffer input = CharBuffer.wrap(data);
+        ByteBuffer buffer = DIRECT_POOL.acquire(
+            (int) Math.min((long) data.length() * MAX_BYTES_PER_CHAR, CHUNK_SIZE));
+        try {
+            encoder.reset();
+            CoderResult result;
+            do {
+                result = encoder.encode(input, buffer, true);
+                if (result.isUnderflow()) {
+                    result = encoder.flush(buffer);
+                }
+                if (result.isError()) {
+                    result.throwException();
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+            } while (result.isOverflow());
+        } finally {
+            DIRECT_POOL.release(buffer);
+        }
+    }
+
+    /**
+     * Read a UTF-8 string of the given size (in bytes) from a channel.
+     * <br>
+     * The bytes are read into an array of exactly this size and decoded by
+     * {@link String#String(byte[], java.nio.charset.Charset)}, which builds
+     * the string contents directly, without an intermediate char buffer.
+     * Malformed input is replaced.
+     *
+     * @param channel channel, typically a file channel
+     * @param size number of bytes to read
+     * @return UTF-8 string
+     * @throws IOException if any file operation fails or if the channel has
+     *                     less bytes than expected
+     */
+    public static String readFromChannel(final ReadableByteChannel channel, final long size)
+        throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("string too big: " + size);
+        }
+        if (size == 0) {
+            return "";
+        }
+        byte[] bytes = new byte[(int) size];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("unexpected end of data");
+            }
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 
     /**
@@ -300,6 +471,189 @@ public final class FileUtils {
         return Files.readAllBytes(path);
     }
 
+    /**
+     * Read all the bytes from a path object into the given buffer.
+     * <br>
+     * The bytes are stored starting at the buffer's position, which is
+     * advanced by the number of bytes read.
+     *
+     * @param path file path object
+     * @param dst destination buffer
+     * @return number of bytes read
+     * @throws BufferOverflowException if the buffer is too small
+     * @throws IOException if any file operation fails
+     */
+    public static int readToBuffer(final Path path, final ByteBuffer dst)
+        throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > dst.remaining()) {
+                throw new BufferOverflowException();
+            }
+            return readFully(channel, dst, (int) channel.size());
+        }
+    }
+
+    /**
+     * Read all the bytes from a path object into the given byte array.
+     *
+     * @param path file path object
+     * @param dst destination array
+     * @param off offset in the array
+     * @return number of bytes read
+     * @throws BufferOverflowException if the array is too small
+     * @throws IOException if any file operation fails
+     */
+    public static int readToByteArray(final Path path, final byte[] dst, final int off)
+        throws IOException {
+        return readToBuffer(path, ByteBuffer.wrap(dst, off, dst.length - off));
+    }
+
+    /**
+     * Read all the bytes from a path object into a buffer taken from the
+     * given pool. The buffer is returned ready to be read (i.e. flipped) and
+     * should be given back to the pool once it is not needed anymore.
+     *
+     * @param path file path object
+     * @param pool buffer pool
+     * @return buffer holding the bytes
+     * @throws IOException if any file operation fails
+     */
+    public static ByteBuffer readToPooledBuffer(final Path path, final BufferPool pool)
+        throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("file too big: " + path);
+            }
+            ByteBuffer buffer = pool.acquire((int) size);
+            try {
+                readFully(channel, buffer, (int) size);
+            } catch (IOException e) {
+                pool.release(buffer);
+                throw e;
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+
+    // helper for the buffer based read methods
+    private static int readFully(final FileChannel channel, final ByteBuffer dst,
+                                 final int size)
+        throws IOException {
+        int length = 0;
+        while (length < size) {
+            int count = channel.read(dst);
+            if (count < 0) {
+                break;
+            }
+            length += count;
+        }
+        return length;
+    }
+
+    /**
+     * Check if user defined file attributes (aka extended attributes) are
+     * supported for the given path object.
+     *
+     * @param path file path object
+     * @return true if user defined attributes are supported
+     * @throws IOException if any file operation fails
+     */
+    public static boolean supportsUserAttributes(final Path path)
+        throws IOException {
+        return Files.getFileStore(path)
+            .supportsFileAttributeView(UserDefinedFileAttributeView.class);
+    }
+
+    /**
+     * Read a UTF-8 string user defined attribute from a path object.
+     *
+     * @param path file path object
+     * @param name attribute name
+     * @return attribute value or null if the attribute is not set
+     * @throws IOException if any file operation fails
+     */
+    public static String readUserAttribute(final Path path, final String name)
+        throws IOException {
+        UserDefinedFileAttributeView view =
+            Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+        if (view == null || !view.list().contains(name)) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(view.size(name));
+        view.read(name, buffer);
+        buffer.flip();
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+
+    /**
+     * Read all the UTF-8 string user defined attributes of a path object
+     * whose names start with the given prefix.
+     *
+     * @param path file path object
+     * @param prefix attribute name prefix
+     * @return attribute values, by name without the prefix
+     * @throws IOException if any file operation fails
+     */
+    public static Map<String, String> readUserAttributes(final Path path,
+                                                         final String prefix)
+        throws IOException {
+        Map<String, String> result = new TreeMap<String, String>();
+        UserDefinedFileAttributeView view =
+            Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            return result;
+        }
+        for (String name: view.list()) {
+            if (!name.startsWith(prefix)) {
+                continue;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(view.size(name));
+            view.read(name, buffer);
+            buffer.flip();
+            result.put(name.substring(prefix.length()),
+                       StandardCharsets.UTF_8.decode(buffer).toString());
+        }
+        return result;
+    }
+
+    /**
+     * Write a UTF-8 string user defined attribute to a path object.
+     *
+     * @param path file path object
+     * @param name attribute name
+     * @param value attribute value
+     * @throws IOException if any file operation fails
+     */
+    public static void writeUserAttribute(final Path path, final String name,
+                                          final String value)
+        throws IOException {
+        UserDefinedFileAttributeView view =
+            Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            throw new UnsupportedOperationException("user defined attributes: " + path);
+        }
+        view.write(name, StandardCharsets.UTF_8.encode(value));
+    }
+
+    /**
+     * Remove a user defined attribute from a path object, if it is set.
+     *
+     * @param path file path object
+     * @param name attribute name
+     * @throws IOException if any file operation fails
+     */
+    public static void removeUserAttribute(final Path path, final String name)
+        throws IOException {
+        UserDefinedFileAttributeView view =
+            Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+        if (view == null || !view.list().contains(name)) {
+            return;
+        }
+        view.delete(name);
+    }
+
     /**
      * Recursively delete the given path, stopping on the first error.
      *
@@ -321,4 +675,136 @@ public final class FileUtils {
         return path.delete();
     }
 
+    /**
+     * Check if the given paths are on different filesystems (or mount
+     * points), where hard links fail with EXDEV.
+     *
+     * @param path1 first path
+     * @param path2 second path
+     * @return true if the paths are known to be on different filesystems
+     */
+    static boolean isCrossDevice(final Path path1, final Path path2) {
+        try {
+            return !Files.getFileStore(path1).equals(Files.getFileStore(path2));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Delete the given directory if it is empty, ignoring the races with
+     * other processes that reuse or remove it.
+     *
+     * @param path directory path
+     * @return true if the directory has been deleted
+     * @throws IOException if any file operation fails
+     */
+    static boolean deleteEmptyDirectory(final Path path) throws IOException {
+        try {
+            Files.delete(path);
+            return true;
+        } catch (DirectoryNotEmptyException | NoSuchFileException e) {
+            // RACE: the directory has been reused or purged
+            // or it still contains something
+            return false;
+        }
+    }
+
+    /**
+     * Pool of byte buffers, to avoid allocating a new buffer for each read.
+     * <br>
+     * Buffers are grouped by size class (powers of two) and at most a given
+     * number of buffers are kept per class. Requests for buffers bigger than
+     * the maximum size are served by plain allocations.
+     */
+    public static final class BufferPool {
+
+        private static final int MIN_SIZE = 256;
+
+        private final int maxSize;
+        private final boolean direct;
+        private final List<BlockingQueue<ByteBuffer>> pools;
+
+        /**
+         * Constructor for a pool of heap buffers.
+         *
+         * @param maxSize maximum size of the pooled buffers
+         * @param maxCount maximum number of pooled buffers per size class
+         */
+        public BufferPool(final int maxSize, final int maxCount) {
+            this(maxSize, maxCount, false);
+        }
+
+        /**
+         * Constructor for a pool of heap or direct buffers.
+         *
+         * @param maxSize maximum size of the pooled buffers
+         * @param maxCount maximum number of pooled buffers per size class
+         * @param direct true to pool direct buffers
+         */
+        public BufferPool(final int maxSize, final int maxCount, final boolean direct) {
+            if (maxSize <= 0 || maxCount <= 0) {
+                throw new IllegalArgumentException("invalid buffer pool size");
+            }
+            this.maxSize = maxSize;
+            this.direct = direct;
+            this.pools = new ArrayList<BlockingQueue<ByteBuffer>>();
+            for (int size = MIN_SIZE; size / 2 < maxSize; size *= 2) {
+                pools.add(new ArrayBlockingQueue<ByteBuffer>(maxCount));
+            }
+        }
+
+        /**
+         * Get a buffer able to hold the given number of bytes, with its
+         * limit set to this number.
+         *
+         * @param size number of bytes
+         * @return buffer
+         */
+        public ByteBuffer acquire(final int size) {
+            int index = sizeClass(size);
+            if (index < 0) {
+                return allocate(size);
+            }
+            ByteBuffer buffer = pools.get(index).poll();
+            if (buffer == null) {
+                buffer = allocate(MIN_SIZE << index);
+            }
+            buffer.clear();
+            buffer.limit(size);
+            return buffer;
+        }
+
+        /**
+         * Give back a buffer to the pool.
+         *
+         * @param buffer buffer previously acquired
+         */
+        public void release(final ByteBuffer buffer) {
+            int index = sizeClass(buffer.capacity());
+            if (index >= 0 && buffer.capacity() == MIN_SIZE << index
+                && buffer.isDirect() == direct) {
+                // if the pool is full, the buffer is simply dropped
+                pools.get(index).offer(buffer);
+            }
+        }
+
+        private ByteBuffer allocate(final int size) {
+            return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+
+        // index of the smallest size class able to hold size bytes, or -1
+        private int sizeClass(final int size) {
+            if (size > maxSize) {
+                return -1;
+            }
+            int index = 0;
+            while (MIN_SIZE << index < size) {
+                index++;
+            }
+            return index < pools.size() ? index : -1;
+        }
+
+    }
+
 }
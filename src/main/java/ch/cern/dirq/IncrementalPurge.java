@@ -0,0 +1,75 @@
+package ch.cern.dirq;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Position of an incremental purge of a {@link ch.cern.dirq.QueueSimple}.
+ * <br>
+ * The most recent intermediate directories, where elements are added,
+ * locked and removed, are scheduled on every call. The older ones, that
+ * rarely change, are scheduled in turn, resuming after the last one
+ * processed by the previous call, the next one being always scheduled
+ * first.
+ * <br>
+ * This is a private class to be used only by the directory queue classes.
+ * Its API can change at any time without any notice.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+final class IncrementalPurge {
+
+    /* Number of intermediate directories considered as recent. */
+    static final int RECENT_DIRECTORIES = 4;
+
+    private String position;
+    private String firstRecent;
+
+    /**
+     * Return the intermediate directories to process, in order.
+     *
+     * @param inames sorted names of all the intermediate directories
+     * @return names of the directories to process
+     */
+    synchronized List<String> schedule(final List<String> inames) {
+        int recent = Math.max(inames.size() - RECENT_DIRECTORIES, 0);
+        firstRecent = inames.get(recent);
+        List<String> old = new ArrayList<String>();
+        for (String iname: inames.subList(0, recent)) {
+            if (position == null || iname.compareTo(position) > 0) {
+                old.add(iname);
+            }
+        }
+        // the next old directory comes first so that even the smallest
+        // budget makes the pass over the old directories progress
+        List<String> result = new ArrayList<String>();
+        if (!old.isEmpty()) {
+            result.add(old.remove(0));
+        }
+        result.addAll(inames.subList(recent, inames.size()));
+        result.addAll(old);
+        return result;
+    }
+
+    /**
+     * Remember that the given intermediate directory has been processed.
+     *
+     * @param iname name of the directory
+     */
+    synchronized void visited(final String iname) {
+        if (firstRecent != null && iname.compareTo(firstRecent) < 0) {
+            position = iname;
+        }
+    }
+
+    /**
+     * Remember that all the scheduled directories have been processed, the
+     * next pass starting from the oldest directory.
+     */
+    synchronized void completed() {
+        position = null;
+    }
+
+}
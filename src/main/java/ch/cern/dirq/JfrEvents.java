@@ -0,0 +1,219 @@
+package ch.cern.dirq;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events of the simple directory queue.
+ * <br>
+ * The events are named <code>ch.cern.dirq.Add</code>,
+ * <code>ch.cern.dirq.Lock</code>, <code>ch.cern.dirq.Get</code>,
+ * <code>ch.cern.dirq.Remove</code>, <code>ch.cern.dirq.Purge</code> and
+ * <code>ch.cern.dirq.DirectoryScan</code>. They are enabled by default with a
+ * threshold suitable for continuous recordings; both can be changed with the
+ * usual recording settings.
+ * <br>
+ * This class must only be used when <code>jdk.jfr</code> is present (see
+ * {@link ch.cern.dirq.QueueEvents}).
+ * <br>
+ * This is a private class to be used only by the directory queue classes.
+ * Its API can change at any time without any notice.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+final class JfrEvents {
+
+    private static final String CATEGORY = "Directory Queue";
+
+    // this utility class cannot be instantiated
+    private JfrEvents() {
+    }
+
+    static Object begin(final int type) {
+        Event event;
+        switch (type) {
+        case QueueEvents.ADD:
+            event = new AddEvent();
+            break;
+        case QueueEvents.LOCK:
+            event = new LockEvent();
+            break;
+        case QueueEvents.GET:
+            event = new GetEvent();
+            break;
+        case QueueEvents.REMOVE:
+            event = new RemoveEvent();
+            break;
+        case QueueEvents.PURGE:
+            event = new PurgeEvent();
+            break;
+        case QueueEvents.SCAN:
+            event = new ScanEvent();
+            break;
+        default:
+            throw new IllegalArgumentException("unexpected event type: " + type);
+        }
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void end(final Object object, final String name, final long value) {
+        Event event = (Event) object;
+        event.end();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        if (event instanceof AddEvent) {
+            ((AddEvent) event).element = name;
+            ((AddEvent) event).bytes = value;
+        } else if (event instanceof LockEvent) {
+            ((LockEvent) event).element = name;
+            ((LockEvent) event).locked = value != 0;
+        } else if (event instanceof GetEvent) {
+            ((GetEvent) event).element = name;
+            ((GetEvent) event).bytes = value;
+        } else if (event instanceof RemoveEvent) {
+            ((RemoveEvent) event).element = name;
+            ((RemoveEvent) event).bytes = value;
+        } else if (event instanceof ScanEvent) {
+            ((ScanEvent) event).directory = name;
+            ((ScanEvent) event).entries = value;
+        }
+        event.commit();
+    }
+
+    static void endPurge(final Object object, final String queue, final QueuePurge purge) {
+        PurgeEvent event = (PurgeEvent) object;
+        event.end();
+        if (!event.shouldCommit()) {
+            return;
+        }
+        event.queue = queue;
+        event.operations = purge.getOperations();
+        event.expired = purge.getExpired();
+        event.locks = purge.getLocks();
+        event.temporaries = purge.getTemporaries();
+        event.directories = purge.getDirectories();
+        event.commit();
+    }
+
+    //
+    // event classes
+    //
+
+    @Name("ch.cern.dirq.Add")
+    @Label("Dirq Add")
+    @Category(CATEGORY)
+    @Description("Element added to a queue")
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static final class AddEvent extends Event {
+        @Label("Element")
+        private String element;
+
+        @Label("Bytes")
+        @DataAmount
+        private long bytes;
+    }
+
+    @Name("ch.cern.dirq.Lock")
+    @Label("Dirq Lock")
+    @Category(CATEGORY)
+    @Description("Attempt to lock an element")
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static final class LockEvent extends Event {
+        @Label("Element")
+        private String element;
+
+        @Label("Locked")
+        private boolean locked;
+    }
+
+    @Name("ch.cern.dirq.Get")
+    @Label("Dirq Get")
+    @Category(CATEGORY)
+    @Description("Data of a locked element read")
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static final class GetEvent extends Event {
+        @Label("Element")
+        private String element;
+
+        @Label("Bytes")
+        @DataAmount
+        private long bytes;
+    }
+
+    @Name("ch.cern.dirq.Remove")
+    @Label("Dirq Remove")
+    @Category(CATEGORY)
+    @Description("Locked element removed, the size is only known with a byte limit")
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static final class RemoveEvent extends Event {
+        @Label("Element")
+        private String element;
+
+        @Label("Bytes")
+        @DataAmount
+        private long bytes;
+    }
+
+    @Name("ch.cern.dirq.Purge")
+    @Label("Dirq Purge")
+    @Category(CATEGORY)
+    @Description("Queue purged")
+    @StackTrace(false)
+    @Threshold("0 ms")
+    static final class PurgeEvent extends Event {
+        @Label("Queue")
+        private String queue;
+
+        @Label("Operations")
+        @Description("Number of file operations done")
+        private long operations;
+
+        @Label("Expired")
+        @Description("Number of expired elements removed")
+        private long expired;
+
+        @Label("Locks")
+        @Description("Number of stale locks released")
+        private long locks;
+
+        @Label("Temporaries")
+        @Description("Number of temporary files removed")
+        private long temporaries;
+
+        @Label("Directories")
+        @Description("Number of intermediate directories removed")
+        private long directories;
+    }
+
+    @Name("ch.cern.dirq.DirectoryScan")
+    @Label("Dirq Directory Scan")
+    @Category(CATEGORY)
+    @Description("Intermediate directory listed while iterating")
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static final class ScanEvent extends Event {
+        @Label("Directory")
+        private String directory;
+
+        @Label("Entries")
+        private long entries;
+    }
+
+}
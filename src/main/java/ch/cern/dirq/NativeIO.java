@@ -0,0 +1,119 @@
+package ch.cern.dirq;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Optional native file operations.
+ * <br>
+ * This is the portable version, used on JDKs without the Foreign Function
+ * and Memory API, where nothing is available and the callers fall back to
+ * the standard NIO code. The multi-release JAR contains a Linux specific
+ * version for newer JDKs.
+ * <br>
+ * This is a private class to be used only by the directory queue classes.
+ * Its API can change at any time without any notice.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+final class NativeIO {
+
+    // this utility class cannot be instantiated
+    private NativeIO() {
+    }
+
+    /**
+     * Check if the native file operations are available.
+     *
+     * @return true if available
+     */
+    static boolean isAvailable() {
+        return false;
+    }
+
+    /**
+     * Create an anonymous file (O_TMPFILE) in the given directory and write
+     * the given data to it.
+     *
+     * @param dir directory path
+     * @param data data to be written
+     * @param mode numerical permissions of the file
+     * @return file descriptor or -1 if not supported
+     * @throws java.nio.file.NoSuchFileException if the directory is missing
+     * @throws IOException if any other file operation fails
+     */
+    static int createAnonymous(final String dir, final byte[] data, final int mode)
+        throws IOException {
+        return -1;
+    }
+
+    /**
+     * Give a name to an anonymous file (linkat).
+     * <br>
+     * This is never called here since createAnonymous() always returns -1.
+     *
+     * @param fd file descriptor returned by createAnonymous()
+     * @param path path of the new name
+     * @return false if the path already exists
+     * @throws IOException always, there is no anonymous file to link
+     */
+    static boolean link(final int fd, final String path) throws IOException {
+        throw new IOException("cannot link anonymous file " + fd + " to " + path
+                              + ": native file operations not available");
+    }
+
+    /**
+     * Close a file descriptor returned by createAnonymous().
+     *
+     * @param fd file descriptor
+     */
+    static void close(final int fd) {
+    }
+
+    /**
+     * Read a whole file and tell the kernel that its data will not be needed
+     * anymore (posix_fadvise with POSIX_FADV_DONTNEED on the same descriptor).
+     *
+     * @param path file path
+     * @return bytes or null if not supported
+     * @throws java.nio.file.NoSuchFileException if the file is missing
+     * @throws IOException if any other file operation fails
+     */
+    static byte[] readAll(final String path) throws IOException {
+        return null;
+    }
+
+    /**
+     * Read a whole file into the given buffer, starting at its position, and
+     * tell the kernel that its data will not be needed anymore.
+     *
+     * @param path file path
+     * @param dst destination buffer, its position is advanced
+     * @return number of bytes read or -1 if not supported
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     * @throws java.nio.file.NoSuchFileException if the file is missing
+     * @throws IOException if any other file operation fails
+     */
+    static int readAll(final String path, final ByteBuffer dst) throws IOException {
+        return -1;
+    }
+
+    /**
+     * Read a whole file into a buffer taken from the given pool and tell the
+     * kernel that its data will not be needed anymore. The buffer is returned
+     * ready to be read.
+     *
+     * @param path file path
+     * @param pool buffer pool
+     * @return buffer or null if not supported
+     * @throws java.nio.file.NoSuchFileException if the file is missing
+     * @throws IOException if any other file operation fails
+     */
+    static ByteBuffer readAll(final String path, final FileUtils.BufferPool pool)
+        throws IOException {
+        return null;
+    }
+
+}
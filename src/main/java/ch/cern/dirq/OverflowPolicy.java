@@ -0,0 +1,33 @@
+package ch.cern.dirq;
+
+/**
+ * OverflowPolicy - what to do when adding to a queue that is over capacity.
+ * <br>
+ * See {@link ch.cern.dirq.QueueSimple#setMaxElements(int)} and
+ * {@link ch.cern.dirq.QueueSimple#setMaxBytes(long)}.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Wait until the queue is back under its low watermark, failing with a
+     * {@link ch.cern.dirq.QueueFullException} if this takes longer than the
+     * overflow timeout.
+     */
+    BLOCK,
+
+    /**
+     * Fail immediately with a {@link ch.cern.dirq.QueueFullException}.
+     */
+    REJECT,
+
+    /**
+     * Remove the oldest unlocked elements until the queue is back under its
+     * low watermark.
+     */
+    DROP_OLDEST
+
+}
@@ -0,0 +1,323 @@
+package ch.cern.dirq;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * QueueArchive - bulk export and import of a {@link ch.cern.dirq.QueueSimple}.
+ * <br>
+ * Copying a queue with many small elements file by file is slow. Instead,
+ * a queue can be exported as a single sequential archive, written to any
+ * channel (file, pipe, socket...), and this archive can later be imported
+ * into another queue.
+ * <br>
+ * The archive format is simple: an 8 bytes magic string
+ * (<code>DIRQARC2</code>) followed by one record per element and an end
+ * marker. Each record contains the element name length (2 bytes), the
+ * element name (in UTF-8), the time at which the element becomes visible
+ * (8 bytes, in milliseconds since the Epoch), the metadata length (4 bytes),
+ * the metadata (encoded like the metadata headers, empty if there is none),
+ * the data length (8 bytes) and the data. The end marker is a name length
+ * of zero. All the numbers are big-endian.
+ * <br>
+ * The import restores the metadata, as user defined attributes or as a
+ * header depending on the target queue (see
+ * {@link QueueSimple#add(byte[], Map)}), and the visibility time of the
+ * delayed elements (see {@link QueueSimple#add(byte[], long)}). Archives in
+ * the previous format (<code>DIRQARC1</code>), without them, can still be
+ * imported.
+ * <br>
+ * The export scans the queue one intermediate directory at a time, in
+ * order, and copies the element data with {@link FileChannel#transferTo},
+ * so the memory used does not depend on the queue size. The import adds the
+ * elements in the archive order, with new names, and, if asked to, forces
+ * them to disk in batches instead of one by one.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+
+public final class QueueArchive {
+
+    private static final byte[] MAGIC = "DIRQARC2".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MAGIC_V1 = "DIRQARC1".getBytes(StandardCharsets.US_ASCII);
+    private static final int LENGTH_SIZE = Short.BYTES;
+    private static final int TIME_SIZE = Long.BYTES;
+    private static final int METADATA_SIZE = Integer.BYTES;
+    private static final int SIZE_SIZE = Long.BYTES;
+    private static final int MAX_NAME = 0xffff;
+    // sanity limit, to fail cleanly on a corrupted archive
+    private static final int MAX_METADATA = 0x1000000;
+    private static final int HEADER_SIZE = LENGTH_SIZE + 256 + TIME_SIZE + METADATA_SIZE;
+    private static final int BUFFER_SIZE = 65536;
+    private static final int SYNC_BATCH = 1024;
+
+    /**
+     * Private constructor: this class only has static methods.
+     */
+    private QueueArchive() {
+    }
+
+    /**
+     * Export all the elements of a queue to the given channel.
+     *
+     * @param queue queue to export
+     * @param out channel to write the archive to
+     * @param unlockedOnly if true, the locked elements are not exported
+     * @return number of elements exported
+     * @throws IOException if any file operation fails
+     */
+    public static long export(final QueueSimple queue, final WritableByteChannel out,
+                              final boolean unlockedOnly) throws IOException {
+        String prefix = queue.getQueuePath() + File.separator;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long count = 0;
+        writeFully(out, ByteBuffer.wrap(MAGIC));
+        for (String iname: queue.intermediateDirectories()) {
+            List<String> names = new ArrayList<String>();
+            Set<String> locked = new HashSet<String>();
+            for (String name: queue.listEntries(iname)) {
+                if (QueueSimple.isElement(name)) {
+                    names.add(name);
+                } else if (unlockedOnly && name.endsWith(QueueSimple.LOCKED_SUFFIX)) {
+                    locked.add(name.substring(
+                        0, name.length() - QueueSimple.LOCKED_SUFFIX.length()));
+                }
+            }
+            Collections.sort(names, QueueSimple.BASE_NAME_ORDER);
+            for (String name: names) {
+                if (locked.contains(name)) {
+                    continue;
+                }
+                FileChannel in;
+                try {
+                    in = FileChannel.open(Paths.get(prefix + name), StandardOpenOption.READ);
+                } catch (NoSuchFileException e) {
+                    // RACE: the element has been removed in the meantime
+                    continue;
+                }
+                try {
+                    Map<String, String> metadata;
+                    try {
+                        metadata = queue.getMetadata(name);
+                    } catch (NoSuchFileException e) {
+                        // RACE: the element has been removed in the meantime
+                        continue;
+                    }
+                    byte[] meta = metadata.isEmpty() ? new byte[0]
+                        : ElementMetadata.header(metadata);
+                    long position = queue.isMetadataHeader()
+                        ? ElementMetadata.skipHeader(in) : 0;
+                    long size = in.size();
+                    byte[] bytes = name.replace(File.separatorChar, '/')
+                        .getBytes(StandardCharsets.UTF_8);
+                    long visible = QueueSimple.nameTime(QueueSimple.baseName(name))
+                        * QueueSimple.SECOND;
+                    header.clear();
+                    header.putShort((short) bytes.length).put(bytes).putLong(visible)
+                        .putInt(meta.length);
+                    header.flip();
+                    writeFully(out, header);
+                    writeFully(out, ByteBuffer.wrap(meta));
+                    header.clear();
+                    header.putLong(size - position).flip();
+                    writeFully(out, header);
+                    while (position < size) {
+                        long done = in.transferTo(position, size - position, out);
+                        if (done <= 0) {
+                            throw new IOException("unexpected end of file: " + prefix + name);
+                        }
+                        position += done;
+                    }
+                } finally {
+                    in.close();
+                }
+                count++;
+            }
+        }
+        header.clear();
+        header.putShort((short) 0).flip();
+        writeFully(out, header);
+        return count;
+    }
+
+    /**
+     * Import all the elements of an archive from the given channel into a
+     * queue.
+     *
+     * @param queue queue to import into
+     * @param in channel to read the archive from
+     * @param sync if true, the new elements are forced to disk, in batches
+     * @return number of elements imported
+     * @throws IOException if any file operation fails or if the archive is
+     *                     invalid
+     */
+    public static long importFrom(final QueueSimple queue, final ReadableByteChannel in,
+                                  final boolean sync) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        List<String> added = new ArrayList<String>();
+        long count = 0;
+        readFully(in, buffer, MAGIC.length);
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        boolean v1 = Arrays.equals(magic, MAGIC_V1);
+        if (!v1 && !Arrays.equals(magic, MAGIC)) {
+            throw new IOException("invalid archive: bad magic");
+        }
+        while (true) {
+            readFully(in, buffer, LENGTH_SIZE);
+            int length = buffer.getShort() & MAX_NAME;
+            if (length == 0) {
+                break;
+            }
+            if (length > BUFFER_SIZE - TIME_SIZE - METADATA_SIZE) {
+                throw new IOException("invalid archive: bad name length " + length);
+            }
+            // the name is only informative: the elements get new names
+            readFully(in, buffer, length + (v1 ? SIZE_SIZE : TIME_SIZE + METADATA_SIZE));
+            buffer.position(buffer.position() + length);
+            long notBefore = 0L;
+            Map<String, String> metadata = Collections.emptyMap();
+            if (!v1) {
+                notBefore = buffer.getLong();
+                int meta = buffer.getInt();
+                if (meta < 0 || meta > MAX_METADATA) {
+                    throw new IOException("invalid archive: bad metadata length " + meta);
+                }
+                if (meta > 0) {
+                    ByteBuffer header = ByteBuffer.allocate(meta);
+                    readFully(in, header, meta);
+                    metadata = ElementMetadata.parse(header.array());
+                }
+                readFully(in, buffer, SIZE_SIZE);
+            }
+            final long size = buffer.getLong();
+            if (size < 0) {
+                throw new IOException("invalid archive: bad size " + size);
+            }
+            added.add(queue.add(new Copier(in, buffer, size), size, notBefore, metadata));
+            count++;
+            if (added.size() >= SYNC_BATCH) {
+                flush(queue, added, sync);
+            }
+        }
+        flush(queue, added, sync);
+        return count;
+    }
+
+    //
+    // helper methods
+    //
+
+    private static void writeFully(final WritableByteChannel out, final ByteBuffer buffer)
+        throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Read exactly the given number of bytes into the buffer, ready to be
+     * consumed.
+     */
+    private static void readFully(final ReadableByteChannel in, final ByteBuffer buffer,
+                                  final int length) throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                throw new EOFException("invalid archive: truncated");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Force to disk the given elements and their directories, if needed, and
+     * forget about them.
+     */
+    private static void flush(final QueueSimple queue, final List<String> names,
+                              final boolean sync) throws IOException {
+        if (sync) {
+            String prefix = queue.getQueuePath() + File.separator;
+            Set<String> dirs = new HashSet<String>();
+            for (String name: names) {
+                force(prefix + name);
+                dirs.add(name.substring(0, name.lastIndexOf(File.separatorChar)));
+            }
+            for (String dir: dirs) {
+                force(prefix + dir);
+            }
+        }
+        names.clear();
+    }
+
+    private static void force(final String path) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            // RACE: the element has already been consumed
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    //
+    // helper classes
+    //
+
+    /**
+     * Element writer copying a given number of bytes from the archive.
+     */
+    private static final class Copier implements ElementWriter {
+        private final ReadableByteChannel in;
+        private final ByteBuffer buffer;
+        private final long size;
+
+        Copier(final ReadableByteChannel in, final ByteBuffer buffer, final long size) {
+            this.in = in;
+            this.buffer = buffer;
+            this.size = size;
+        }
+
+        public void write(final FileChannel channel) throws IOException {
+            long remaining = size;
+            while (remaining > 0) {
+                buffer.clear();
+                if (remaining < buffer.capacity()) {
+                    buffer.limit((int) remaining);
+                }
+                if (in.read(buffer) < 0) {
+                    throw new EOFException("invalid archive: truncated");
+                }
+                buffer.flip();
+                remaining -= buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package ch.cern.dirq;
+
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counting of the attempts to process the elements of the simple directory
+ * queue, i.e. of the times their locks have been found stale.
+ * <br>
+ * The counts are stored in a user defined file attribute of the lock files
+ * when possible, so that they are shared by all the processes, and kept in
+ * memory otherwise.
+ * <br>
+ * This is a private class to be used only by the directory queue classes.
+ * Its API can change at any time without any notice.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+final class QueueAttempts {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueueAttempts.class);
+
+    private static final String ATTEMPTS_ATTRIBUTE = "dirq.attempts";
+
+    private final ConcurrentMap<String, Integer> attempts =
+        new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Return the number of attempts for the given element.
+     *
+     * @param name name of the element
+     * @param path path of the element or of its lock
+     * @param attributes true if user defined attributes are supported
+     * @return number of attempts
+     * @throws IOException if any file operation fails
+     */
+    int get(final String name, final Path path, final boolean attributes)
+        throws IOException {
+        if (attributes) {
+            try {
+                String value = FileUtils.readUserAttribute(path, ATTEMPTS_ATTRIBUTE);
+                if (value != null) {
+                    return Integer.parseInt(value);
+                }
+            } catch (FileSystemException | NumberFormatException e) {
+                logger.debug("cannot read attempts of {}: {}", name, e.toString());
+            }
+        }
+        Integer count = attempts.get(name);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Count one more attempt for the given element.
+     *
+     * @param name name of the element
+     * @param lock path of the element lock
+     * @param attributes true if user defined attributes are supported
+     * @return new number of attempts
+     * @throws IOException if any file operation fails
+     */
+    int increment(final String name, final Path lock, final boolean attributes)
+        throws IOException {
+        if (attributes) {
+            try {
+                String value = FileUtils.readUserAttribute(lock, ATTEMPTS_ATTRIBUTE);
+                int count = value == null ? 1 : Integer.parseInt(value) + 1;
+                FileUtils.writeUserAttribute(lock, ATTEMPTS_ATTRIBUTE,
+                                             Integer.toString(count));
+                return count;
+            } catch (FileSystemException | NumberFormatException e) {
+                // e.g. not owning the file: fall back to in-memory counting
+                logger.debug("cannot update attempts of {}: {}", name, e.toString());
+            }
+        }
+        Integer count = attempts.get(name);
+        count = count == null ? 1 : count + 1;
+        attempts.put(name, count);
+        return count;
+    }
+
+    /**
+     * Forget the in-memory count of the given element.
+     *
+     * @param name name of the element
+     */
+    void forget(final String name) {
+        attempts.remove(name);
+    }
+
+}
@@ -0,0 +1,304 @@
+package ch.cern.dirq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * QueueBlockingAdapter - a {@link java.util.concurrent.BlockingQueue} view
+ * of a {@link ch.cern.dirq.QueueSimple}.
+ * <br>
+ * This allows a persistent queue to be used by the standard concurrency
+ * utilities, for instance as the work queue of a
+ * {@link java.util.concurrent.ThreadPoolExecutor} (with a suitable
+ * conversion of the tasks).
+ * <br>
+ * The insertion methods add new elements. If the queue has capacity limits
+ * and rejects new elements (see {@link OverflowPolicy#REJECT}), the
+ * blocking ones wait for room. Since offer() must not block, the
+ * {@link OverflowPolicy#BLOCK} policy cannot be used and, with
+ * {@link OverflowPolicy#DROP_OLDEST}, the insertion always succeeds at the
+ * expense of the oldest elements. The removal methods atomically lock the
+ * next available element, read it and remove it; the blocking ones rely on
+ * {@link QueueSimple#lockNext(long)} to wait efficiently. peek() reads the
+ * next available element without locking it, so it does not delay the
+ * consumers. The number of elements is approximate: it comes from counters
+ * that are only periodically resynchronized with the queue contents, in the
+ * background, so size() and remainingCapacity() never walk the queue. Just
+ * after the creation of the underlying queue object, they may not yet take
+ * into account the elements already present.
+ * <br>
+ * The I/O errors are reported as {@link java.io.UncheckedIOException}.
+ * Null elements are not permitted.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public class QueueBlockingAdapter extends AbstractQueue<byte[]>
+    implements BlockingQueue<byte[]> {
+
+    /* Time to wait (in milliseconds) for a single lockNext() call. */
+    private static final long TAKE_SLICE = 60 * 1000L;
+    /* Time to wait (in milliseconds) before retrying to add to a full queue. */
+    private static final long FULL_SLEEP = 50L;
+
+    private final QueueSimple queue;
+
+    /**
+     * Constructor for a blocking queue adapter.
+     *
+     * @param queue underlying queue
+     * @throws IllegalArgumentException if the queue blocks when full
+     */
+    public QueueBlockingAdapter(final QueueSimple queue) {
+        checkPolicy(queue);
+        this.queue = queue;
+    }
+
+    /**
+     * Get the underlying queue.
+     *
+     * @return underlying queue
+     */
+    public QueueSimple getQueue() {
+        return queue;
+    }
+
+    //
+    // insertion
+    //
+
+    @Override
+    public boolean offer(final byte[] e) {
+        checkPolicy(queue);
+        try {
+            queue.add(e);
+            return true;
+        } catch (QueueFullException ex) {
+            return false;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    public boolean offer(final byte[] e, final long timeout, final TimeUnit unit)
+        throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(e)) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.min(remaining,
+                                                TimeUnit.MILLISECONDS.toNanos(FULL_SLEEP)));
+        }
+        return true;
+    }
+
+    @Override
+    public void put(final byte[] e) throws InterruptedException {
+        while (!offer(e)) {
+            TimeUnit.MILLISECONDS.sleep(FULL_SLEEP);
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        if (queue.getMaxElements() <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.max(queue.getMaxElements() - queue.approximateCount(), 0);
+    }
+
+    //
+    // removal
+    //
+
+    @Override
+    public byte[] poll() {
+        return consume(lockNow());
+    }
+
+    @Override
+    public byte[] poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return consume(lockNext(unit.toMillis(timeout)));
+    }
+
+    @Override
+    public byte[] take() throws InterruptedException {
+        while (true) {
+            byte[] data = consume(lockNext(TAKE_SLICE));
+            if (data != null) {
+                return data;
+            }
+        }
+    }
+
+    @Override
+    public byte[] peek() {
+        // locking would touch the element and make the concurrent consumers skip it
+        Iterator<String> names = new QueueSimpleIterator(queue, null, true);
+        while (names.hasNext()) {
+            byte[] data = read(names.next());
+            if (data != null) {
+                return data;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int drainTo(final Collection<? super byte[]> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(final Collection<? super byte[]> c, final int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException("cannot drain to itself");
+        }
+        if (maxElements <= 0) {
+            return 0;
+        }
+        try {
+            List<String> names = queue.lockBatch(maxElements);
+            int done = 0;
+            try {
+                for (String name: names) {
+                    c.add(queue.getAsByteArray(name));
+                    done++;
+                }
+            } finally {
+                if (done < names.size()) {
+                    // the elements not transferred go back to the queue
+                    queue.unlockAll(names.subList(done, names.size()));
+                }
+                queue.removeAll(names.subList(0, done));
+            }
+            return done;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //
+    // inspection
+    //
+
+    @Override
+    public int size() {
+        return (int) Math.min(queue.approximateCount(), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Iterator over the data of the elements, locked or not, that does not
+     * support removal.
+     */
+    @Override
+    public Iterator<byte[]> iterator() {
+        final Iterator<String> names = queue.iterator();
+        return new Iterator<byte[]>() {
+            private byte[] nextData;
+
+            public boolean hasNext() {
+                while (nextData == null && names.hasNext()) {
+                    nextData = read(names.next());
+                }
+                return nextData != null;
+            }
+
+            public byte[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                byte[] result = nextData;
+                nextData = null;
+                return result;
+            }
+        };
+    }
+
+    //
+    // helper methods
+    //
+
+    /**
+     * Check that the overflow policy of the queue never blocks insertions.
+     */
+    private static void checkPolicy(final QueueSimple queue) {
+        if (queue.getOverflowPolicy() == OverflowPolicy.BLOCK) {
+            throw new IllegalArgumentException("unsupported overflow policy: "
+                                               + OverflowPolicy.BLOCK);
+        }
+    }
+
+    /**
+     * Read the given element, locked or not, returning null if it is gone.
+     */
+    private byte[] read(final String name) {
+        String path = queue.getQueuePath() + File.separator + name;
+        try {
+            byte[] data = FileUtils.readToByteArray(path);
+            return queue.isMetadataHeader() ? ElementMetadata.strip(data) : data;
+        } catch (NoSuchFileException e) {
+            // RACE: the element has been removed in the meantime
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Lock the next available element, if any, without waiting.
+     */
+    private String lockNow() {
+        try {
+            return lockNext(0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private String lockNext(final long timeout) throws InterruptedException {
+        try {
+            return queue.lockNext(timeout);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Read and remove the given locked element, if any.
+     */
+    private byte[] consume(final String name) {
+        if (name == null) {
+            return null;
+        }
+        try {
+            byte[] data;
+            try {
+                data = queue.getAsByteArray(name);
+            } catch (IOException e) {
+                // the element goes back to the queue
+                queue.unlock(name, true);
+                throw e;
+            }
+            queue.remove(name);
+            return data;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,243 @@
+package ch.cern.dirq;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Enforcement of the capacity limits of a queue, based on its counters:
+ * approximate ones for {@link QueueSimple}, exact ones for
+ * {@link QueueMemory}.
+ * <br>
+ * The overflow state has a hysteresis: once the queue is full, it stays so
+ * until it goes back below its low watermark.
+ * <br>
+ * This is a private class to be used only by the directory queue classes.
+ * Its API can change at any time without any notice.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+final class QueueCapacity {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueueCapacity.class);
+
+    static final int PERCENT = 100;
+    static final long COUNTER_MAX_AGE = 10 * 1000L;
+    private static final int DEFAULT_LOW_WATERMARK = 90;
+    private static final long DEFAULT_OVERFLOW_TIMEOUT = 60 * 1000L;
+    private static final long BLOCKED_COUNTER_MAX_AGE = 1000L;
+    private static final long BLOCKED_SLEEP = 50L;
+
+    private final QueueCounter counter;
+    private int maxElements;
+    private long maxBytes;
+    private int lowWatermark = DEFAULT_LOW_WATERMARK;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+    private long overflowTimeout = DEFAULT_OVERFLOW_TIMEOUT;
+    private volatile boolean overflowing;
+
+    QueueCapacity(final QueueCounter counter) {
+        this.counter = counter;
+    }
+
+    //
+    // limits, validated here for all the queues
+    //
+
+    int getMaxElements() {
+        return maxElements;
+    }
+
+    void setMaxElements(final int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("invalid maximum number of elements: "
+                                               + value);
+        }
+        maxElements = value;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    void setMaxBytes(final long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("invalid maximum number of bytes: " + value);
+        }
+        maxBytes = value;
+    }
+
+    int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    void setLowWatermark(final int value) {
+        if (value < 0 || value > PERCENT) {
+            throw new IllegalArgumentException("invalid low watermark: " + value);
+        }
+        lowWatermark = value;
+    }
+
+    OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    void setOverflowPolicy(final OverflowPolicy value) {
+        if (value == null) {
+            throw new IllegalArgumentException("invalid overflow policy: null");
+        }
+        overflowPolicy = value;
+    }
+
+    long getOverflowTimeout() {
+        return overflowTimeout;
+    }
+
+    void setOverflowTimeout(final long value) {
+        overflowTimeout = value;
+    }
+
+    /**
+     * Make room for an element of the given size in the given queue,
+     * according to the overflow policy.
+     *
+     * @param queue queue owning this object
+     * @param size size of the element to be added
+     * @throws QueueFullException if there is no room for it
+     * @throws IOException if any file operation fails
+     */
+    void check(final Queue queue, final long size) throws IOException {
+        if (maxElements <= 0 && maxBytes <= 0) {
+            return;
+        }
+        refresh(queue, COUNTER_MAX_AGE, false);
+        boolean wasOverflowing = overflowing;
+        if (!isOverCapacity(size)) {
+            return;
+        }
+        if (!wasOverflowing) {
+            // the queue just became full: double check with exact counters
+            sync(queue);
+            overflowing = false;
+            if (!isOverCapacity(size)) {
+                return;
+            }
+        }
+        switch (overflowPolicy) {
+        case BLOCK:
+            waitForCapacity(queue, size);
+            break;
+        case DROP_OLDEST:
+            dropOldest(queue, size);
+            break;
+        case REJECT:
+        default:
+            throw new QueueFullException("queue is full: " + name(queue));
+        }
+    }
+
+    /**
+     * Wake up the producers waiting for some room, after an element has
+     * been removed.
+     */
+    void released() {
+        if (overflowing) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Resynchronize the counters of the given queue if they are older than
+     * the given age, see {@link QueueCounter#refresh(long, Runnable, boolean)}.
+     *
+     * @param queue queue owning this object
+     * @param maxAge maximum age (in milliseconds)
+     * @param background true to never resynchronize in the calling thread
+     */
+    void refresh(final Queue queue, final long maxAge, final boolean background) {
+        if (queue instanceof QueueSimple) {
+            final QueueSimple simple = (QueueSimple) queue;
+            counter.refresh(maxAge, new Runnable() {
+                public void run() {
+                    simple.syncCounter();
+                }
+            }, background);
+        }
+    }
+
+    //
+    // helper methods
+    //
+
+    private static String name(final Queue queue) {
+        String path = queue.getQueuePath();
+        return path == null ? queue.getId() : path;
+    }
+
+    private static void sync(final Queue queue) throws IOException {
+        if (queue instanceof QueueSimple) {
+            // only the directory queue has approximate counters
+            ((QueueSimple) queue).syncCounter();
+        }
+    }
+
+    private boolean isOverCapacity(final long size) {
+        long elements = counter.elements();
+        long bytes = counter.bytes();
+        if (overflowing) {
+            // in long: maxElements * lowWatermark may not fit in an int
+            if ((maxElements <= 0
+                 || elements <= (long) maxElements * lowWatermark / PERCENT)
+                && (maxBytes <= 0 || bytes + size <= maxBytes * lowWatermark / PERCENT)) {
+                overflowing = false;
+            }
+        } else if ((maxElements > 0 && elements >= maxElements)
+                   || (maxBytes > 0 && bytes + size > maxBytes)) {
+            overflowing = true;
+        }
+        return overflowing;
+    }
+
+    private void waitForCapacity(final Queue queue, final long size)
+        throws IOException {
+        long deadline = System.currentTimeMillis() + overflowTimeout;
+        while (isOverCapacity(size)) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                throw new QueueFullException("queue is still full after "
+                                             + overflowTimeout + "ms: " + name(queue));
+            }
+            try {
+                // other processes do not wake us up: poll
+                synchronized (this) {
+                    wait(Math.min(wait, BLOCKED_SLEEP));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new QueueFullException("interrupted while waiting: " + name(queue));
+            }
+            refresh(queue, BLOCKED_COUNTER_MAX_AGE, false);
+        }
+    }
+
+    private void dropOldest(final Queue queue, final long size) throws IOException {
+        for (String name: queue) {
+            if (!isOverCapacity(size)) {
+                return;
+            }
+            if (queue.lock(name)) {
+                logger.warn("dropping element from full queue: {}", name);
+                queue.remove(name);
+            }
+        }
+        if (isOverCapacity(size)) {
+            throw new QueueFullException("cannot drop any element: " + name(queue));
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+package ch.cern.dirq;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Approximate element and byte counters for a queue.
+ * <br>
+ * The counters are updated in memory on every add and remove done by this
+ * process and periodically resynchronized with the real queue contents, so
+ * that changes made by other processes are eventually taken into account.
+ * <br>
+ * Only one thread resynchronizes the counters at a time, the others keep
+ * using the current values. Except for the very first one, which needs
+ * to wait, the resynchronizations run in a shared background thread so
+ * that they never slow down the callers.
+ * <br>
+ * This is a private class to be used only by the directory queue classes.
+ * Its API can change at any time without any notice.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+final class QueueCounter {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueueCounter.class);
+
+    /* Synchronization time while a resynchronization is in progress. */
+    private static final long SYNCING = Long.MAX_VALUE;
+    private static final long IDLE_TIMEOUT = 60L;
+
+    /* Background resynchronizations, the thread exits when idle. */
+    private static final ThreadPoolExecutor BACKGROUND = new ThreadPoolExecutor(
+        1, 1, IDLE_TIMEOUT, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+            public Thread newThread(final Runnable task) {
+                Thread thread = new Thread(task, "dirq-counter-sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    static {
+        BACKGROUND.allowCoreThreadTimeOut(true);
+    }
+
+    private final AtomicLong elements = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong syncTime = new AtomicLong();
+
+    /**
+     * Return the approximate number of elements.
+     *
+     * @return number of elements
+     */
+    long elements() {
+        return elements.get();
+    }
+
+    /**
+     * Return the approximate number of bytes.
+     *
+     * @return number of bytes
+     */
+    long bytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Record the addition of an element.
+     *
+     * @param size size of the element (in bytes)
+     */
+    void added(final long size) {
+        elements.incrementAndGet();
+        bytes.addAndGet(size);
+    }
+
+    /**
+     * Record the removal of an element.
+     *
+     * @param size size of the element (in bytes)
+     */
+    void removed(final long size) {
+        elements.decrementAndGet();
+        bytes.addAndGet(-size);
+    }
+
+    /**
+     * Check if the counters have not been resynchronized for too long.
+     *
+     * @param maxAge maximum age (in milliseconds)
+     * @return <code>true</code> if the counters should be resynchronized
+     */
+    boolean isStale(final long maxAge) {
+        return System.currentTimeMillis() - syncTime.get() > maxAge;
+    }
+
+    /**
+     * Resynchronize the counters with the given task, which must call
+     * {@link #reset(long, long)}, if they are stale and nobody else is
+     * already doing it.
+     *
+     * @param maxAge maximum age (in milliseconds)
+     * @param sync resynchronization task
+     * @param background true to never run the task in the calling thread
+     */
+    void refresh(final long maxAge, final Runnable sync, final boolean background) {
+        final long last = syncTime.get();
+        if (System.currentTimeMillis() - last <= maxAge
+            || !syncTime.compareAndSet(last, SYNCING)) {
+            // fresh or being resynchronized
+            return;
+        }
+        Runnable task = new Runnable() {
+            public void run() {
+                try {
+                    sync.run();
+                } catch (RuntimeException e) {
+                    syncTime.compareAndSet(SYNCING, last);
+                    logger.warn("cannot resynchronize the counters: {}", e.toString());
+                }
+            }
+        };
+        if (last == 0 && !background) {
+            task.run();
+            return;
+        }
+        try {
+            BACKGROUND.execute(task);
+        } catch (RejectedExecutionException e) {
+            syncTime.compareAndSet(SYNCING, last);
+        }
+    }
+
+    /**
+     * Force a resynchronization at the next check.
+     */
+    void invalidate() {
+        syncTime.set(0);
+    }
+
+    /**
+     * Resynchronize the counters with the given exact values.
+     *
+     * @param newElements number of elements
+     * @param newBytes number of bytes
+     */
+    void reset(final long newElements, final long newBytes) {
+        elements.set(newElements);
+        bytes.set(newBytes);
+        syncTime.set(System.currentTimeMillis());
+    }
+
+}
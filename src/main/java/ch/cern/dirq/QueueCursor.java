@@ -0,0 +1,230 @@
+package ch.cern.dirq;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resumable position of a consumer in a {@link ch.cern.dirq.QueueSimple}.
+ * <br>
+ * A cursor remembers the last intermediate directory and element up to which
+ * everything has been consumed, i.e. removed or locked. An iterator created
+ * with a cursor (see {@link ch.cern.dirq.QueueSimple#iterator(QueueCursor)})
+ * does not list the intermediate directories before this position and skips
+ * the elements before it, as well as the locked ones. This keeps repeated
+ * scans cheap when the head of the queue is full of elements locked by slow
+ * consumers.
+ * <br>
+ * Elements unlocked after the cursor moved past them, or added behind it,
+ * are found by a full rescan, done periodically (see
+ * {@link #setRescanInterval(long)}). The cursor never moves past an element
+ * that is not yet visible so delayed elements are never skipped.
+ * <br>
+ * A cursor can be kept in memory only or be persisted per consumer name (see
+ * {@link ch.cern.dirq.QueueSimple#getCursor(String)}) in a
+ * <code>.cursor.<i>name</i></code> file in the queue toplevel directory.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public final class QueueCursor {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueueCursor.class);
+
+    /* Regular expression of consumer names. */
+    public static final Pattern NAME_REGEXP = Pattern.compile("^[A-Za-z0-9_\\-]+$");
+
+    /* Prefix of the files holding the persisted cursors. */
+    static final String FILE_PREFIX = ".cursor.";
+
+    private static final long DEFAULT_RESCAN_INTERVAL = 60000L;
+    private static final Pattern POSITION_REGEXP =
+        Pattern.compile("^[0-9a-f]{8}/([0-9a-f]{14})?$");
+
+    private final Path file;
+    private long rescanInterval = DEFAULT_RESCAN_INTERVAL;
+    private long lastRescan;
+    private String directory;
+    private String element = "";
+    private boolean dirty;
+
+    /**
+     * Constructor for a cursor kept in memory.
+     */
+    public QueueCursor() {
+        file = null;
+    }
+
+    /**
+     * Constructor for a persisted cursor, loading its last saved position.
+     *
+     * @param file path of the file holding the position
+     * @throws IOException if any file operation fails
+     */
+    QueueCursor(final Path file) throws IOException {
+        this.file = file;
+        String position;
+        try {
+            position = FileUtils.readToString(file).trim();
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if (!POSITION_REGEXP.matcher(position).matches()) {
+            logger.warn("ignoring invalid cursor {}: {}", file, position);
+            return;
+        }
+        int index = position.indexOf('/');
+        directory = position.substring(0, index);
+        element = position.substring(index + 1);
+    }
+
+    /**
+     * Get the last fully consumed intermediate directory.
+     *
+     * @return name of the directory or null if nothing has been consumed
+     */
+    public synchronized String getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get the last consumed element, in the last fully consumed directory.
+     *
+     * @return file name of the element, empty if none
+     */
+    public synchronized String getElement() {
+        return element;
+    }
+
+    /**
+     * Get the rescan interval.
+     *
+     * @return rescan interval (in milliseconds)
+     */
+    public synchronized long getRescanInterval() {
+        return rescanInterval;
+    }
+
+    /**
+     * Set the interval between full rescans, 0 meaning that all the scans
+     * are full scans.
+     *
+     * @param value rescan interval to be set (in milliseconds)
+     * @return the object itself
+     */
+    public synchronized QueueCursor setRescanInterval(final long value) {
+        rescanInterval = value;
+        return this;
+    }
+
+    /**
+     * Forget the position so that the next scan starts from the beginning.
+     */
+    public synchronized void reset() {
+        directory = null;
+        element = "";
+        dirty = true;
+    }
+
+    /**
+     * Save the position, if the cursor is persisted and it changed.
+     *
+     * @throws IOException if any file operation fails
+     */
+    public synchronized void save() throws IOException {
+        if (file == null || !dirty) {
+            return;
+        }
+        if (directory == null) {
+            Files.deleteIfExists(file);
+        } else {
+            // write and rename so that readers never see a partial position
+            Path tmp = Paths.get(file + QueueSimple.TEMPORARY_SUFFIX);
+            FileUtils.writeToFile(tmp, directory + "/" + element + "\n");
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        }
+        dirty = false;
+    }
+
+    //
+    // methods used by the iterator
+    //
+
+    /**
+     * Start a new scan, telling if it must be a full scan.
+     */
+    synchronized boolean startScan() {
+        long now = System.currentTimeMillis();
+        if (now - lastRescan < rescanInterval) {
+            return false;
+        }
+        lastRescan = now;
+        return true;
+    }
+
+    /**
+     * Check if the given intermediate directory is before the position.
+     */
+    synchronized boolean skipDirectory(final String iname) {
+        return directory != null && iname.compareTo(directory) < 0;
+    }
+
+    /**
+     * Check if the given element is before the position.
+     */
+    synchronized boolean skipElement(final String iname, final String base) {
+        if (directory == null) {
+            return false;
+        }
+        int cmp = iname.compareTo(directory);
+        return cmp < 0 || cmp == 0 && base.compareTo(element) <= 0;
+    }
+
+    /**
+     * Move the position forward, saving it when changing directory.
+     */
+    synchronized void advance(final String iname, final String base) {
+        if (skipElement(iname, base)) {
+            return;
+        }
+        boolean moved = directory != null && !iname.equals(directory);
+        directory = iname;
+        element = base;
+        dirty = true;
+        if (moved) {
+            saveQuietly();
+        }
+    }
+
+    /**
+     * Save the position, only logging errors.
+     */
+    synchronized void saveQuietly() {
+        try {
+            save();
+        } catch (IOException e) {
+            logger.warn("cannot save cursor {}: {}", file, e.toString());
+        }
+    }
+
+    /**
+     * Return the path of the file holding the cursor of the given consumer.
+     */
+    static Path path(final String queuePath, final String consumer) {
+        if (!NAME_REGEXP.matcher(consumer).matches()) {
+            throw new IllegalArgumentException("invalid consumer name: " + consumer);
+        }
+        return Paths.get(queuePath + File.separator + FILE_PREFIX + consumer);
+    }
+
+}
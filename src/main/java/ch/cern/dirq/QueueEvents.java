@@ -0,0 +1,83 @@
+package ch.cern.dirq;
+
+/**
+ * Java Flight Recorder instrumentation of the simple directory queue.
+ * <br>
+ * The queue operations are bracketed by calls to {@link #begin(int)} and
+ * {@link #end(Object, String, long)}, or
+ * {@link #endPurge(Object, String, QueuePurge)} for the purges. The events
+ * themselves are defined in {@link ch.cern.dirq.JfrEvents}, which is only
+ * loaded if the <code>jdk.jfr</code> module is present, so that the queue
+ * still works without it. When no recording has the events enabled, this costs little
+ * more than a flag check.
+ * <br>
+ * This is a private class to be used only by the directory queue classes.
+ * Its API can change at any time without any notice.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+final class QueueEvents {
+
+    static final int ADD = 0;
+    static final int LOCK = 1;
+    static final int GET = 2;
+    static final int REMOVE = 3;
+    static final int PURGE = 4;
+    static final int SCAN = 5;
+
+    /* True if the Java Flight Recorder API is present. */
+    static final boolean AVAILABLE = isAvailable();
+
+    // this utility class cannot be instantiated
+    private QueueEvents() {
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Start timing an operation.
+     *
+     * @param type event type
+     * @return opaque event or null if the event type is not enabled
+     */
+    static Object begin(final int type) {
+        return AVAILABLE ? JfrEvents.begin(type) : null;
+    }
+
+    /**
+     * Stop timing an operation and commit its event, if needed.
+     *
+     * @param event event returned by {@link #begin(int)}
+     * @param name element or directory name
+     * @param value number of bytes, lock result (1 or 0) or number of
+     *              directory entries
+     */
+    static void end(final Object event, final String name, final long value) {
+        if (event != null) {
+            JfrEvents.end(event, name, value);
+        }
+    }
+
+    /**
+     * Stop timing a purge and commit its event, if needed.
+     *
+     * @param event event returned by {@link #begin(int)}
+     * @param queue queue path
+     * @param purge finished purge, holding what has been done
+     */
+    static void endPurge(final Object event, final String queue, final QueuePurge purge) {
+        if (event != null) {
+            JfrEvents.endPurge(event, queue, purge);
+        }
+    }
+
+}
@@ -0,0 +1,26 @@
+package ch.cern.dirq;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when an element cannot be added because the queue is over
+ * capacity.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public class QueueFullException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor with a detail message.
+     *
+     * @param message detail message
+     */
+    public QueueFullException(final String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,276 @@
+package ch.cern.dirq;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * QueueMaintainer - background maintenance of a {@link ch.cern.dirq.QueueSimple}.
+ * <br>
+ * A daemon thread periodically purges the queue. When several processes
+ * share a queue, only one of them, the leader, should do this work: the
+ * leader is the process holding an exclusive lock on the
+ * <code>.maintainer</code> file in the queue toplevel directory. The other
+ * processes try to get the lock at each period so, if the leader dies, the
+ * operating system releases its lock and another process takes over.
+ * <br>
+ * The period is randomized (see {@link #setJitter(double)}) so that the
+ * processes do not all wake up at the same time.
+ * <br>
+ * Here is how to use it:
+ * <pre>
+ * QueueMaintainer maintainer = new QueueMaintainer(dirq, 60000);
+ * maintainer.start();
+ * // ... use the queue ...
+ * maintainer.close();
+ * </pre>
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+
+public class QueueMaintainer implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueueMaintainer.class);
+
+    /* Name of the file used to elect the leader. */
+    public static final String LOCK_FILE = ".maintainer";
+
+    private static final double DEFAULT_JITTER = 0.2;
+
+    private static Random rand = new Random();
+
+    private final QueueSimple queue;
+    private final long interval;
+    private final Object signal = new Object();
+    private double jitter = DEFAULT_JITTER;
+    private Duration budget;
+    private Thread thread;
+    private FileChannel channel;
+    private volatile FileLock lock;
+    private volatile boolean closed;
+
+    /**
+     * Constructor for a queue maintainer.
+     *
+     * @param queue queue to maintain
+     * @param interval average time between purges (in milliseconds)
+     */
+    public QueueMaintainer(final QueueSimple queue, final long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("invalid interval: " + interval);
+        }
+        this.queue = queue;
+        this.interval = interval;
+    }
+
+    /**
+     * Get the jitter.
+     *
+     * @return jitter (fraction of the interval)
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Set the jitter: each period is randomly chosen within the interval
+     * plus or minus this fraction of it.
+     *
+     * @param value jitter to be set (between 0 and 1)
+     * @return the object itself
+     */
+    public QueueMaintainer setJitter(final double value) {
+        if (value < 0 || value > 1) {
+            throw new IllegalArgumentException("invalid jitter: " + value);
+        }
+        jitter = value;
+        return this;
+    }
+
+    /**
+     * Get the purge budget.
+     *
+     * @return purge budget or null if there is none
+     */
+    public Duration getBudget() {
+        return budget;
+    }
+
+    /**
+     * Set the purge budget: if set, the incremental purge is used (see
+     * {@link ch.cern.dirq.QueueSimple#purge(Duration)}), otherwise the whole
+     * queue is purged every time.
+     *
+     * @param value purge budget to be set, null meaning none
+     * @return the object itself
+     */
+    public QueueMaintainer setBudget(final Duration value) {
+        budget = value;
+        return this;
+    }
+
+    /**
+     * Check if this process is the leader, i.e. maintains the queue.
+     *
+     * @return true if this process is the leader
+     */
+    public boolean isLeader() {
+        FileLock current = lock;
+        return current != null && current.isValid();
+    }
+
+    /**
+     * Start the background thread.
+     *
+     * @return the object itself
+     */
+    public synchronized QueueMaintainer start() {
+        if (thread != null || closed) {
+            throw new IllegalStateException("maintainer already started");
+        }
+        thread = new Thread(new Maintainer(), "dirq-maintainer-" + queue.getId());
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Perform the maintenance once, if this process is or becomes the leader.
+     *
+     * @return true if the queue has been maintained
+     * @throws IOException if any file operation fails
+     */
+    public boolean runOnce() throws IOException {
+        if (!elect()) {
+            return false;
+        }
+        if (budget == null) {
+            queue.purge();
+        } else {
+            queue.purge(budget);
+        }
+        return true;
+    }
+
+    /**
+     * Stop the background thread and give up the leadership.
+     *
+     * @throws IOException if any file operation fails
+     */
+    @Override
+    public void close() throws IOException {
+        Thread current;
+        synchronized (this) {
+            closed = true;
+            current = thread;
+        }
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        if (current != null) {
+            try {
+                current.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (channel != null) {
+                // closing the channel releases the lock
+                channel.close();
+                channel = null;
+                lock = null;
+            }
+        }
+    }
+
+    //
+    // helper methods
+    //
+
+    /**
+     * Try to become the leader, if not already.
+     */
+    private synchronized boolean elect() throws IOException {
+        if (isLeader()) {
+            return true;
+        }
+        if (closed) {
+            return false;
+        }
+        if (channel == null) {
+            channel = FileChannel.open(
+                Paths.get(queue.getQueuePath() + File.separator + LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // another maintainer of this JVM is the leader
+            lock = null;
+        }
+        if (lock == null) {
+            return false;
+        }
+        // for information only: tell who the leader is
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap((QueueRecovery.OWNER + "\n")
+                                      .getBytes(StandardCharsets.UTF_8)), 0);
+        logger.debug("became the maintainer of {}", queue.getQueuePath());
+        return true;
+    }
+
+    /**
+     * Return the time to wait before the next maintenance.
+     */
+    private long nextDelay() {
+        double factor = 1 + jitter * (2 * rand.nextDouble() - 1);
+        return Math.max((long) (interval * factor), 1);
+    }
+
+    //
+    // helper classes
+    //
+
+    /**
+     * Background task maintaining the queue periodically.
+     */
+    private class Maintainer implements Runnable {
+        public void run() {
+            while (!closed) {
+                synchronized (signal) {
+                    try {
+                        if (!closed) {
+                            signal.wait(nextDelay());
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                try {
+                    runOnce();
+                } catch (IOException e) {
+                    logger.warn("cannot maintain {}: {}", queue.getQueuePath(), e.toString());
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,499 @@
+package ch.cern.dirq;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * QueueMemory - object oriented interface to an <i>in-memory</i> queue.
+ * <br>
+ * The goal of this module is to offer a queue system using the same API and
+ * the same semantics as {@link ch.cern.dirq.QueueSimple} but keeping the
+ * elements in memory. It can be used for testing purposes or for transient
+ * data where the filesystem operations would be pure overhead. Of course, the
+ * elements are lost when the process exits and they cannot be shared with
+ * other processes.
+ * <br>
+ * The element names have the same format as with
+ * {@link ch.cern.dirq.QueueSimple} and the iterators return them in the same
+ * (time based) order. Elements must be locked before being retrieved or
+ * removed and stale locks can be removed with purge().
+ * <br>
+ * Like {@link ch.cern.dirq.QueueSimple}, a maximum number of elements and/or
+ * bytes can be set, with the same watermarks and overflow policies. In
+ * memory, the counters are always exact.
+ * <br>
+ * All the methods can be used concurrently by several threads: the elements
+ * are kept in a concurrent skip list map and locked using atomic operations.
+ * <br>
+ * The getPath() method will throw an <code>UnsupportedOperationException</code>
+ * exception since the elements are not stored in files.
+ * <br>
+ * Please refer to {@link ch.cern.dirq.Queue} for general information about
+ * directory queues.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+
+public class QueueMemory implements Queue {
+
+    private static final int DEFAULT_GRANULARITY = 60;
+    private static final int DEFAULT_MAXLOCK = 600;
+    private static final int MAX_RNDHEX = 16;
+    private static final long SECOND = 1000L;
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+    private static Random rand = new Random();
+
+    private final ConcurrentNavigableMap<String, Element> elements =
+        new ConcurrentSkipListMap<String, Element>();
+    private final QueueCounter counter = new QueueCounter();
+    private final QueueCounter unlocked = new QueueCounter();
+    private final QueueCapacity capacity;
+    private final String queueId;
+    private int granularity = DEFAULT_GRANULARITY;
+    private int qMaxLock = DEFAULT_MAXLOCK;
+    private int rndHex;
+
+    /**
+     * Constructor for the in-memory queue.
+     */
+    public QueueMemory() {
+        this(true);
+    }
+
+    /**
+     * Constructor for the in-memory queue, possibly not counting the locked
+     * elements against its capacity (as when it buffers elements for
+     * another queue, the locked ones cannot be moved out).
+     *
+     * @param countLocked true if the locked elements use some capacity
+     */
+    QueueMemory(final boolean countLocked) {
+        queueId = "MEMORY-" + INSTANCES.incrementAndGet();
+        rndHex = rand.nextInt(MAX_RNDHEX);
+        capacity = new QueueCapacity(countLocked ? counter : unlocked);
+    }
+
+    //
+    // Queue interface implementation
+    //
+
+    @Override
+    public String getQueuePath() {
+        return null;
+    }
+
+    @Override
+    public String getId() {
+        return queueId;
+    }
+
+    @Override
+    public String add(final String data) throws IOException {
+        return addHelper(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String add(final byte[] data) throws IOException {
+        return addHelper(data.clone());
+    }
+
+    @Override
+    public String addPath(final String path) throws IOException {
+        Path file = Paths.get(path);
+        String name = addHelper(Files.readAllBytes(file));
+        Files.delete(file);
+        return name;
+    }
+
+    @Override
+    public String get(final String name) throws IOException {
+        return new String(lockedElement(name).data, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] getAsByteArray(final String name) throws IOException {
+        return lockedElement(name).data.clone();
+    }
+
+    @Override
+    public String getPath(final String name) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean lock(final String name) throws IOException {
+        return lock(name, true);
+    }
+
+    @Override
+    public boolean lock(final String name, final boolean permissive) throws IOException {
+        Element element = elements.get(name);
+        if (element == null) {
+            if (permissive) {
+                return false;
+            }
+            throw new NoSuchFileException(name);
+        }
+        if (element.lockTime.compareAndSet(0L, System.currentTimeMillis())) {
+            if (elements.get(name) == element) {
+                unlocked.removed(element.data.length);
+                capacity.released();
+                return true;
+            }
+            // RACE: the element has been removed in the meantime
+            element.lockTime.set(0L);
+            if (permissive) {
+                return false;
+            }
+            throw new NoSuchFileException(name);
+        }
+        if (permissive) {
+            return false;
+        }
+        throw new FileAlreadyExistsException(name);
+    }
+
+    @Override
+    public boolean unlock(final String name) throws IOException {
+        return unlock(name, false);
+    }
+
+    @Override
+    public boolean unlock(final String name, final boolean permissive) throws IOException {
+        Element element = elements.get(name);
+        if (element != null && element.lockTime.getAndSet(0L) != 0L) {
+            unlocked.added(element.data.length);
+            return true;
+        }
+        if (permissive) {
+            return false;
+        }
+        throw new NoSuchFileException(name);
+    }
+
+    @Override
+    public void remove(final String name) throws IOException {
+        Element element = lockedElement(name);
+        if (!elements.remove(name, element)) {
+            throw new NoSuchFileException(name);
+        }
+        counter.removed(element.data.length);
+        capacity.released();
+    }
+
+    @Override
+    public int count() {
+        return (int) counter.elements();
+    }
+
+    @Override
+    public void purge() {
+        purge(qMaxLock);
+    }
+
+    @Override
+    public void purge(final int maxLock) {
+        if (maxLock <= 0) {
+            return;
+        }
+        long oldlock = System.currentTimeMillis() - maxLock * SECOND;
+        for (Element element: elements.values()) {
+            long lockTime = element.lockTime.get();
+            if (lockTime != 0L && lockTime < oldlock
+                && element.lockTime.compareAndSet(lockTime, 0L)) {
+                unlocked.added(element.data.length);
+            }
+        }
+    }
+
+    @Override
+    public void purge(final int maxLock, final int maxTemp) {
+        // there are no temporary elements in memory
+        purge(maxLock);
+    }
+
+    //
+    // QueueMemory specific methods
+    //
+
+    /**
+     * Get the granularity.
+     *
+     * @return granularity (in seconds)
+     */
+    public int getGranularity() {
+        return granularity;
+    }
+
+    /**
+     * Set the granularity, only used to build element names.
+     *
+     * @param value granularity to be set (in seconds)
+     * @return the object itself
+     */
+    public QueueMemory setGranularity(final int value) {
+        granularity = value;
+        return this;
+    }
+
+    /**
+     * Get the default maxLock for purge().
+     *
+     * @return maximum lock time (in seconds)
+     */
+    public int getMaxLock() {
+        return qMaxLock;
+    }
+
+    /**
+     * Set the default maxLock for purge().
+     *
+     * @param value maximum lock time (in seconds)
+     * @return the object itself
+     */
+    public QueueMemory setMaxLock(final int value) {
+        qMaxLock = value;
+        return this;
+    }
+
+    /**
+     * Get the maximum number of elements.
+     *
+     * @return maximum number of elements (0 means unlimited)
+     */
+    public int getMaxElements() {
+        return capacity.getMaxElements();
+    }
+
+    /**
+     * Set the maximum number of elements (high watermark).
+     *
+     * @param value maximum number of elements (0 means unlimited)
+     * @return the object itself
+     */
+    public QueueMemory setMaxElements(final int value) {
+        capacity.setMaxElements(value);
+        return this;
+    }
+
+    /**
+     * Get the maximum number of bytes.
+     *
+     * @return maximum number of bytes (0 means unlimited)
+     */
+    public long getMaxBytes() {
+        return capacity.getMaxBytes();
+    }
+
+    /**
+     * Set the maximum number of bytes (high watermark).
+     *
+     * @param value maximum number of bytes (0 means unlimited)
+     * @return the object itself
+     */
+    public QueueMemory setMaxBytes(final long value) {
+        capacity.setMaxBytes(value);
+        return this;
+    }
+
+    /**
+     * Get the low watermark.
+     *
+     * @return low watermark (in percents of the maximums)
+     */
+    public int getLowWatermark() {
+        return capacity.getLowWatermark();
+    }
+
+    /**
+     * Set the low watermark, i.e. the level under which a full queue accepts
+     * new elements again.
+     *
+     * @param value low watermark (in percents of the maximums)
+     * @return the object itself
+     */
+    public QueueMemory setLowWatermark(final int value) {
+        capacity.setLowWatermark(value);
+        return this;
+    }
+
+    /**
+     * Get the overflow policy.
+     *
+     * @return overflow policy
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return capacity.getOverflowPolicy();
+    }
+
+    /**
+     * Set the overflow policy, i.e. what to do when adding to a full queue.
+     *
+     * @param value overflow policy
+     * @return the object itself
+     */
+    public QueueMemory setOverflowPolicy(final OverflowPolicy value) {
+        capacity.setOverflowPolicy(value);
+        return this;
+    }
+
+    /**
+     * Get the overflow timeout used by the {@link OverflowPolicy#BLOCK} policy.
+     *
+     * @return overflow timeout (in milliseconds)
+     */
+    public long getOverflowTimeout() {
+        return capacity.getOverflowTimeout();
+    }
+
+    /**
+     * Set the overflow timeout used by the {@link OverflowPolicy#BLOCK} policy.
+     *
+     * @param value overflow timeout (in milliseconds)
+     * @return the object itself
+     */
+    public QueueMemory setOverflowTimeout(final long value) {
+        capacity.setOverflowTimeout(value);
+        return this;
+    }
+
+    /**
+     * Get the number of bytes stored.
+     *
+     * @return number of bytes
+     */
+    public long getBytes() {
+        return counter.bytes();
+    }
+
+    /**
+     * Check if the given element is in the queue.
+     *
+     * @param name name of the element
+     * @return true if the element is in the queue
+     */
+    boolean contains(final String name) {
+        return elements.containsKey(name);
+    }
+
+    //
+    // helper methods
+    //
+
+    private Element lockedElement(final String name) throws IOException {
+        Element element = elements.get(name);
+        if (element == null || element.lockTime.get() == 0L) {
+            throw new NoSuchFileException(name);
+        }
+        return element;
+    }
+
+    private String newName(final long now) {
+        long time = now / SECOND;
+        long start = time;
+        if (granularity > 0) {
+            start -= start % granularity;
+        }
+        return String.format("%08x/%s", start, QueueSimple.elementName(rndHex, time));
+    }
+
+    private String addHelper(final byte[] data) throws IOException {
+        capacity.check(this, data.length);
+        Element element = new Element(data);
+        String name;
+        while (true) {
+            name = newName(System.currentTimeMillis());
+            if (elements.putIfAbsent(name, element) == null) {
+                break;
+            }
+            // RACE: someone else may have used the same name
+        }
+        counter.added(data.length);
+        unlocked.added(data.length);
+        return name;
+    }
+
+    //
+    // helper classes
+    //
+
+    /**
+     * Element stored in memory, with its lock time (0 when unlocked).
+     */
+    private static final class Element {
+        private final byte[] data;
+        private final AtomicLong lockTime = new AtomicLong();
+
+        Element(final byte[] data) {
+            this.data = data;
+        }
+    }
+
+    //
+    // iterator class
+    //
+
+    /**
+     * Iterator for the in-memory queue.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return new QueueMemoryIterator(elements.keySet().iterator());
+    }
+
+    /**
+     * Iterator for the in-memory queue (private), weakly consistent.
+     */
+    private static class QueueMemoryIterator implements Iterator<String> {
+
+        private final Iterator<String> itNames;
+
+        /**
+         * Constructor for the in-memory queue iterator.
+         *
+         * @param names iterator on the element names
+         */
+        QueueMemoryIterator(final Iterator<String> names) {
+            itNames = names;
+        }
+
+        /**
+         * Returns true if the iteration has more elements.
+         */
+        @Override
+        public boolean hasNext() {
+            return itNames.hasNext();
+        }
+
+        /**
+         * Returns the next element in the iteration.
+         */
+        @Override
+        public String next() {
+            return itNames.next();
+        }
+
+        /**
+         * Removes from the underlying collection the last element returned by this iterator.
+         */
+        @Override
+        public void remove() {
+        }
+
+    }
+
+}
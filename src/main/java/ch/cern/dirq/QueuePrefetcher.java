@@ -0,0 +1,364 @@
+package ch.cern.dirq;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * QueuePrefetcher - read-ahead consumer for a {@link ch.cern.dirq.QueueSimple}.
+ * <br>
+ * A consumer doing lock, get, process and remove one element at a time leaves
+ * the disk idle while it processes. This class uses a background thread to
+ * lock and read the next elements while the current one is being processed.
+ * The prefetched elements are kept in a bounded buffer and handed out by
+ * take(), the consumer must then give them back with either remove() or
+ * unlock().
+ * <br>
+ * The prefetch depth adapts to the observed timings: it is roughly the time
+ * needed to lock and read an element divided by the time needed to process
+ * one, plus one, within the given maximum. Fast storage and slow processing
+ * therefore lead to a small depth (few elements locked for nothing) while
+ * high-latency storage leads to a deeper prefetch.
+ * <br>
+ * If the consumer does not call take() for longer than the idle timeout, or
+ * when the prefetcher is closed, the prefetched elements are unlocked so that
+ * other consumers can process them.
+ * <br>
+ * The background thread walks the queue with an in-memory
+ * {@link ch.cern.dirq.QueueCursor}, resuming each pass where the previous
+ * one stopped instead of rescanning the head of the queue, so the elements
+ * locked by other consumers are not listed again and again.
+ * <br>
+ * Here is how to use it:
+ * <pre>
+ * QueuePrefetcher prefetcher = new QueuePrefetcher(dirq, 16);
+ * try {
+ *     while (true) {
+ *         QueuePrefetcher.Element elt = prefetcher.take(1000);
+ *         if (elt == null) {
+ *             break;
+ *         }
+ *         // ... process elt.getData() ...
+ *         prefetcher.remove(elt);
+ *     }
+ * } finally {
+ *     prefetcher.close();
+ * }
+ * </pre>
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+
+public class QueuePrefetcher implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueuePrefetcher.class);
+
+    private static final long DEFAULT_IDLE_TIMEOUT = 60000L;
+    private static final long POLL_TIMEOUT = 100L;
+    private static final double ALPHA = 0.2;
+
+    private final QueueSimple queue;
+    private final int maxDepth;
+    private final LinkedBlockingQueue<Element> buffer;
+    private final Object space = new Object();
+    private final Thread prefetcher;
+    private final QueueCursor cursor = new QueueCursor();
+    private Iterator<String> names;
+    private volatile boolean rewind;
+    private volatile boolean closed;
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile long lastTake = System.currentTimeMillis();
+    private double fetchNanos;
+    private double processNanos;
+
+    /**
+     * Element prefetched from the queue, i.e. locked and read.
+     */
+    public static final class Element {
+        private final String name;
+        private final byte[] data;
+        private long takeTime;
+
+        private Element(final String name, final byte[] data) {
+            this.name = name;
+            this.data = data;
+        }
+
+        /**
+         * Get the name of the element.
+         *
+         * @return name of the element
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the data of the element.
+         *
+         * @return data of the element
+         */
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    /**
+     * Constructor for a prefetcher, starting the background thread.
+     *
+     * @param queue queue to consume
+     * @param maxDepth maximum number of elements prefetched
+     */
+    public QueuePrefetcher(final QueueSimple queue, final int maxDepth) {
+        if (maxDepth <= 0) {
+            throw new IllegalArgumentException("invalid maximum depth: " + maxDepth);
+        }
+        this.queue = queue;
+        this.maxDepth = maxDepth;
+        this.buffer = new LinkedBlockingQueue<Element>(maxDepth);
+        this.prefetcher = new Thread(new Prefetcher(), "dirq-prefetch-" + queue.getId());
+        this.prefetcher.setDaemon(true);
+        this.prefetcher.start();
+    }
+
+    /**
+     * Get the idle timeout.
+     *
+     * @return idle timeout (in milliseconds)
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Set the idle timeout, after which the prefetched elements are unlocked
+     * if take() has not been called.
+     *
+     * @param value idle timeout to be set (in milliseconds)
+     * @return the object itself
+     */
+    public QueuePrefetcher setIdleTimeout(final long value) {
+        idleTimeout = value;
+        return this;
+    }
+
+    /**
+     * Get the current prefetch depth.
+     *
+     * @return number of elements to prefetch
+     */
+    public synchronized int getDepth() {
+        if (fetchNanos == 0 || processNanos == 0) {
+            return 1;
+        }
+        double depth = Math.ceil(fetchNanos / processNanos) + 1;
+        return (int) Math.min(depth, maxDepth);
+    }
+
+    /**
+     * Get the number of prefetched elements not taken yet.
+     *
+     * @return number of prefetched elements
+     */
+    public int getPrefetched() {
+        return buffer.size();
+    }
+
+    /**
+     * Take the next prefetched element, waiting if needed.
+     *
+     * @param timeout maximum time to wait (in milliseconds)
+     * @return element (locked) or null if none became available in time
+     * @throws IOException if the prefetcher is closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Element take(final long timeout) throws IOException, InterruptedException {
+        if (closed) {
+            throw new IOException("prefetcher closed: " + queue.getQueuePath());
+        }
+        lastTake = System.currentTimeMillis();
+        wakeUp();
+        Element elt = buffer.poll(timeout, TimeUnit.MILLISECONDS);
+        if (elt != null) {
+            wakeUp();
+            elt.takeTime = System.nanoTime();
+        }
+        return elt;
+    }
+
+    /**
+     * Remove an element previously taken.
+     *
+     * @param elt element to remove
+     * @throws IOException if any file operation fails
+     */
+    public void remove(final Element elt) throws IOException {
+        processed(elt);
+        queue.remove(elt.name);
+    }
+
+    /**
+     * Unlock an element previously taken, for instance if it could not be
+     * processed.
+     *
+     * @param elt element to unlock
+     * @throws IOException if any file operation fails
+     */
+    public void unlock(final Element elt) throws IOException {
+        processed(elt);
+        queue.unlock(elt.name, true);
+        // the cursor has moved past it: make the next pass find it again
+        rewind = true;
+    }
+
+    /**
+     * Stop the background thread and unlock the elements prefetched but not
+     * taken.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        wakeUp();
+        try {
+            prefetcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        release();
+    }
+
+    //
+    // helper methods
+    //
+
+    private synchronized void fetched(final long nanos) {
+        fetchNanos = fetchNanos == 0 ? nanos : ALPHA * nanos + (1 - ALPHA) * fetchNanos;
+    }
+
+    private synchronized void processed(final Element elt) {
+        if (elt.takeTime == 0) {
+            return;
+        }
+        long nanos = Math.max(System.nanoTime() - elt.takeTime, 1);
+        processNanos = processNanos == 0 ? nanos : ALPHA * nanos + (1 - ALPHA) * processNanos;
+        elt.takeTime = 0;
+    }
+
+    private void wakeUp() {
+        synchronized (space) {
+            space.notifyAll();
+        }
+    }
+
+    private boolean isIdle() {
+        return System.currentTimeMillis() - lastTake > idleTimeout;
+    }
+
+    /**
+     * Unlock all the prefetched elements not taken yet.
+     */
+    private void release() {
+        Element elt;
+        while ((elt = buffer.poll()) != null) {
+            try {
+                queue.unlock(elt.name, true);
+            } catch (IOException e) {
+                logger.warn("cannot unlock prefetched element {}: {}", elt.name, e.toString());
+            }
+            rewind = true;
+        }
+    }
+
+    /**
+     * Lock the next element, continuing the current pass over the queue or
+     * starting a new one from the cursor, return null if there is none for
+     * now.
+     */
+    private String lockNext() throws IOException {
+        if (rewind) {
+            rewind = false;
+            cursor.reset();
+            names = null;
+        }
+        if (names == null) {
+            names = queue.iterator(cursor);
+        }
+        while (names.hasNext()) {
+            String name = names.next();
+            if (queue.lock(name)) {
+                return name;
+            }
+        }
+        names = null;
+        return null;
+    }
+
+    /**
+     * Lock and read the next element, if any, waiting a bit otherwise.
+     */
+    private void prefetch() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        String name = lockNext();
+        if (name == null) {
+            synchronized (space) {
+                space.wait(POLL_TIMEOUT);
+            }
+            return;
+        }
+        byte[] data;
+        try {
+            data = queue.getAsByteArray(name);
+        } catch (IOException e) {
+            queue.unlock(name, true);
+            throw e;
+        }
+        fetched(System.nanoTime() - start);
+        if (closed || isIdle() || !buffer.offer(new Element(name, data))) {
+            queue.unlock(name, true);
+        }
+    }
+
+    //
+    // helper classes
+    //
+
+    /**
+     * Background task keeping the buffer filled up to the current depth.
+     */
+    private class Prefetcher implements Runnable {
+        public void run() {
+            while (!closed) {
+                try {
+                    if (isIdle()) {
+                        release();
+                    }
+                    if (isIdle() || buffer.size() >= getDepth()) {
+                        synchronized (space) {
+                            space.wait(POLL_TIMEOUT);
+                        }
+                        continue;
+                    }
+                    prefetch();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    logger.warn("cannot prefetch from {}: {}", queue.getQueuePath(),
+                                e.toString());
+                    try {
+                        Thread.sleep(POLL_TIMEOUT);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,242 @@
+package ch.cern.dirq;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One purge of a {@link ch.cern.dirq.QueueSimple}, processing intermediate
+ * directories one by one: removing the expired elements, the stale locks
+ * and temporary files and then the directory itself if it is empty and
+ * removable.
+ * <br>
+ * The file operations (listings, stats and deletions) are counted so that
+ * the caller can enforce a budget, and so are the removed files and
+ * directories so that the caller can report them.
+ * <br>
+ * This is a private class to be used only by the directory queue classes.
+ * Its API can change at any time without any notice.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+final class QueuePurge {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueuePurge.class);
+
+    private final QueueSimple queue;
+    private final String queuePath;
+    private final long now;
+    private final long oldlock;
+    private final long oldtemp;
+    private int operations;
+    private int expired;
+    private int locks;
+    private int temporaries;
+    private int directories;
+
+    /**
+     * Prepare a purge.
+     *
+     * @param queue queue to purge
+     * @param now current time (in milliseconds since the Epoch)
+     * @param maxLock maximum lock time (in seconds, 0 meaning forever)
+     * @param maxTemp maximum temporary time (in seconds, 0 meaning forever)
+     */
+    QueuePurge(final QueueSimple queue, final long now, final int maxLock,
+               final int maxTemp) {
+        this.queue = queue;
+        this.queuePath = queue.getQueuePath();
+        this.now = now;
+        this.oldlock = maxLock > 0 ? now - maxLock * QueueSimple.SECOND : 0;
+        this.oldtemp = maxTemp > 0 ? now - maxTemp * QueueSimple.SECOND : 0;
+    }
+
+    /**
+     * Return the number of file operations done so far.
+     *
+     * @return number of operations
+     */
+    int getOperations() {
+        return operations;
+    }
+
+    /**
+     * Return the number of expired elements removed so far.
+     *
+     * @return number of elements
+     */
+    int getExpired() {
+        return expired;
+    }
+
+    /**
+     * Return the number of stale locks released so far.
+     *
+     * @return number of locks
+     */
+    int getLocks() {
+        return locks;
+    }
+
+    /**
+     * Return the number of temporary files removed so far.
+     *
+     * @return number of files
+     */
+    int getTemporaries() {
+        return temporaries;
+    }
+
+    /**
+     * Return the number of intermediate directories removed so far.
+     *
+     * @return number of directories
+     */
+    int getDirectories() {
+        return directories;
+    }
+
+    /**
+     * Purge one intermediate directory.
+     *
+     * @param iname name of the directory
+     * @param removable true if the directory can be removed when empty
+     * @throws IOException if any file operation fails
+     */
+    void directory(final String iname, final boolean removable) throws IOException {
+        int ttl = queue.getTtl();
+        long end = QueueSimple.nameTime(iname) + Math.max(queue.getGranularity(), 1);
+        if (ttl > 0 && end <= now / QueueSimple.SECOND - ttl) {
+            expire(iname);
+        }
+        if (oldtemp > 0 || oldlock > 0) {
+            volatileFiles(iname);
+        }
+        if (removable) {
+            removeDirectory(new File(queuePath + File.separator + iname));
+            operations++;
+        }
+    }
+
+    //
+    // helper methods
+    //
+
+    /**
+     * Remove the stale locks and temporary files of an intermediate
+     * directory.
+     */
+    private void volatileFiles(final String iname) throws IOException {
+        operations++;
+        for (String name: queue.listEntries(iname)) {
+            if (!name.contains(".")) {
+                continue;
+            }
+            File elt = new File(queuePath + File.separator + name);
+            long mtime = elt.lastModified();
+            operations++;
+            if (mtime == 0L) {
+                if (elt.exists()) {
+                    throw new IOException(String.format("cannot stat(%s)", elt));
+                } else {
+                    continue;
+                }
+            }
+            if (elt.isDirectory()) {
+                continue;
+            }
+            boolean locked = name.endsWith(QueueSimple.LOCKED_SUFFIX);
+            if (name.endsWith(QueueSimple.TEMPORARY_SUFFIX) && mtime >= oldtemp) {
+                continue;
+            }
+            if (locked && mtime >= oldlock) {
+                continue;
+            }
+            if (locked && queue.getMaxAttempts() > 0 && queue.isPoison(name)) {
+                continue;
+            }
+            logger.warn("removing too old volatile file: {}", elt);
+            if (locked) {
+                queue.untagOwner(elt.toPath());
+            }
+            if (Files.deleteIfExists(elt.toPath())) {
+                if (locked) {
+                    locks++;
+                } else {
+                    temporaries++;
+                }
+            }
+            operations++;
+        }
+    }
+
+    /**
+     * Remove the unlocked elements of an expired intermediate directory, and
+     * the directory itself if it is then empty.
+     * <br>
+     * Like remove(), each element is first locked so that an element locked
+     * by a consumer after the listing is left alone.
+     */
+    private void expire(final String iname) throws IOException {
+        List<String> names = queue.listEntries(iname);
+        Set<String> entries = new HashSet<String>(names);
+        int count = 0;
+        operations += 2;
+        for (String name: names) {
+            String lname = name + QueueSimple.LOCKED_SUFFIX;
+            if (!QueueSimple.isElement(name) || entries.contains(lname)) {
+                continue;
+            }
+            Path file = Paths.get(queuePath + File.separator + name);
+            Path lock = Paths.get(queuePath + File.separator + lname);
+            operations++;
+            try {
+                Files.createLink(lock, file);
+            } catch (FileAlreadyExistsException | NoSuchFileException e) {
+                // RACE: locked or removed by someone else in the meantime
+                continue;
+            }
+            Files.delete(file);
+            Files.delete(lock);
+            operations += 2;
+            count++;
+        }
+        if (count > 0) {
+            logger.debug("removed {} expired elements from {}", count, iname);
+            expired += count;
+        }
+        removeDirectory(new File(queuePath + File.separator + iname));
+    }
+
+    /**
+     * Remove the given intermediate directory, and its hashed subdirectories,
+     * if they are empty.
+     */
+    private void removeDirectory(final File idir) throws IOException {
+        String[] names = idir.list();
+        if (names == null) {
+            return;
+        }
+        for (String name: names) {
+            if (QueueSimple.SHARD_REGEXP.matcher(name).matches()) {
+                FileUtils.deleteEmptyDirectory(new File(idir, name).toPath());
+            }
+        }
+        if (FileUtils.deleteEmptyDirectory(idir.toPath())) {
+            directories++;
+        }
+    }
+
+}
@@ -0,0 +1,211 @@
+package ch.cern.dirq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Startup recovery scan of a {@link ch.cern.dirq.QueueSimple}.
+ * <br>
+ * The intermediate directories are scanned in parallel. The volatile files
+ * (locks and temporary elements) whose owner tag designates a dead process
+ * are released or removed and the element counters are resynchronized.
+ * <br>
+ * The owner tag is <i>host</i>:<i>pid</i>. A process is considered dead only
+ * if it ran on this host and /proc shows it is gone, so on other systems
+ * nothing is released and the volatile files are left to purge().
+ * <br>
+ * A lock is a hard link to the element so its tag is stored on the inode
+ * shared with the element. It is therefore followed by the modification time
+ * set when locking and a tag that does not match the current time, left by
+ * a previous lock, is ignored.
+ * <br>
+ * This is a private class to be used only by the directory queue classes.
+ * Its API can change at any time without any notice.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+final class QueueRecovery {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueueRecovery.class);
+
+    /* Owner tag of the current process. */
+    static final String OWNER;
+
+    private static final String HOST;
+    private static final String PID;
+    private static final boolean HAS_PROC = new File("/proc/self").exists();
+    private static final long NANO2MILLI = 1000000L;
+
+    static {
+        // this is pid@host with all the known JVMs
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int index = name.indexOf('@');
+        PID = index > 0 ? name.substring(0, index) : name;
+        HOST = index > 0 ? name.substring(index + 1) : "localhost";
+        OWNER = HOST + ":" + PID;
+    }
+
+    private final QueueSimple queue;
+    private final boolean tagged;
+    private final boolean withBytes;
+    private final AtomicLong elements = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger releasedLocks = new AtomicInteger();
+    private final AtomicInteger removedTemporaries = new AtomicInteger();
+    private final AtomicInteger untagged = new AtomicInteger();
+
+    QueueRecovery(final QueueSimple queue, final boolean tagged, final boolean withBytes) {
+        this.queue = queue;
+        this.tagged = tagged;
+        this.withBytes = withBytes;
+    }
+
+    /**
+     * Check if the given owner tag designates a dead process.
+     *
+     * @param tag owner tag
+     * @return true if the owner is known to be dead
+     */
+    static boolean isDeadOwner(final String tag) {
+        int index = tag.lastIndexOf(':');
+        if (index < 0 || !HAS_PROC || !HOST.equals(tag.substring(0, index))) {
+            return false;
+        }
+        String pid = tag.substring(index + 1);
+        if (pid.equals(PID) || !pid.matches("[0-9]+")) {
+            return false;
+        }
+        return !new File("/proc/" + pid).exists();
+    }
+
+    /**
+     * Get the owner tag of a lock, bound to its modification time.
+     *
+     * @param owner owner tag
+     * @param mtime modification time of the lock
+     * @return lock tag
+     */
+    static String lockTag(final String owner, final long mtime) {
+        return owner + " " + mtime;
+    }
+
+    /**
+     * Get the owner from the tag of a lock.
+     *
+     * @param tag lock tag
+     * @param mtime current modification time of the lock
+     * @return owner tag or null if the tag belongs to a previous lock
+     */
+    static String lockOwner(final String tag, final long mtime) {
+        int index = tag.lastIndexOf(' ');
+        if (index < 0 || !tag.substring(index + 1).equals(Long.toString(mtime))) {
+            return null;
+        }
+        return tag.substring(0, index);
+    }
+
+    /**
+     * Scan the queue.
+     *
+     * @param inames names of the intermediate directories
+     * @param threads number of threads to use
+     * @return report of the scan
+     * @throws IOException if any file operation fails
+     */
+    RecoveryReport run(final List<String> inames, final int threads) throws IOException {
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final String iname: inames) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        scan(iname);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future: futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("recovery interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return new RecoveryReport(inames.size(), elements.get(), bytes.get(),
+                                  releasedLocks.get(), removedTemporaries.get(),
+                                  untagged.get(), (System.nanoTime() - start) / NANO2MILLI);
+    }
+
+    /**
+     * Scan one intermediate directory.
+     */
+    private void scan(final String iname) throws IOException {
+        String prefix = queue.getQueuePath() + File.separator;
+        for (String name: queue.listEntries(iname)) {
+            if (QueueSimple.isElement(name)) {
+                elements.incrementAndGet();
+                if (withBytes) {
+                    bytes.addAndGet(new File(prefix + name).length());
+                }
+                continue;
+            }
+            boolean lock = name.endsWith(QueueSimple.LOCKED_SUFFIX);
+            if (!lock && !name.endsWith(QueueSimple.TEMPORARY_SUFFIX)) {
+                continue;
+            }
+            Path path = Paths.get(prefix + name);
+            String owner = null;
+            if (tagged) {
+                try {
+                    owner = FileUtils.readUserAttribute(path, QueueSimple.OWNER_ATTRIBUTE);
+                } catch (IOException e) {
+                    // RACE: the file may have been removed by someone else
+                    continue;
+                }
+                if (owner != null && lock) {
+                    owner = lockOwner(owner, path.toFile().lastModified());
+                }
+            }
+            if (owner == null) {
+                untagged.incrementAndGet();
+            } else if (isDeadOwner(owner)) {
+                if (lock) {
+                    queue.untagOwner(path);
+                }
+                if (Files.deleteIfExists(path)) {
+                    logger.warn("{} volatile file of dead process {}: {}",
+                                lock ? "releasing" : "removing", owner, path);
+                    (lock ? releasedLocks : removedTemporaries).incrementAndGet();
+                }
+            }
+        }
+    }
+
+}
@@ -4,22 +4,34 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.file.DirectoryNotEmptyException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.PosixFilePermission;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -87,6 +99,24 @@ import org.slf4j.LoggerFactory;
  * small directories. However, in this case, you will create many directories
  * and this will limit the total number of elements you can store.
  * <br>
+ * Alternatively, the granularity can be adapted to the add rate (see
+ * {@link #setAdaptiveGranularity(int)}): the granularity is then only the
+ * maximum bucket length, used when few elements are added, and shorter
+ * buckets are used during bursts so that intermediate directories do not get
+ * more than a given number of entries. Only the elements added by the current
+ * process are taken into account. The intermediate directory names keep the
+ * same format and order.
+ * <br>
+ * With many concurrent producers, all of them add elements to the same
+ * intermediate directory and contend on its lock inside the kernel. To avoid
+ * this, intermediate directories can be split in hashed subdirectories (see
+ * {@link #setShards(int)}) with a 2-digits long hexadecimal name, each thread
+ * using only one of them. The element names then have three parts
+ * (<i>directory_name</i>/<i>subdirectory_name</i>/<i>file_name</i>) and the
+ * iterators merge the subdirectories in element time order. Both layouts can
+ * be mixed in a queue but this one is not understood by the other (Perl and
+ * Python) implementations.
+ * <br>
  * The elements themselves are stored in files (one per element) with a
  * 14-digits long hexadecimal name <i>SSSSSSSSMMMMMR</i> where:
  * <ul>
@@ -100,6 +130,85 @@ import org.slf4j.LoggerFactory;
  * <br>
  * A locked element will have a hard link with the same name and the
  * <code>.lck</code> suffix.
+ * <h2>Capacity</h2>
+ * By default, a queue can grow without limits. A maximum number of elements
+ * and/or a maximum number of bytes can be set (see {@link #setMaxElements(int)}
+ * and {@link #setMaxBytes(long)}), they act as high watermarks: once one of
+ * them is reached, the queue is considered to be full until it goes back
+ * under the low watermark (see {@link #setLowWatermark(int)}). What happens
+ * when adding to a full queue is controlled by the overflow policy (see
+ * {@link ch.cern.dirq.OverflowPolicy}).
+ * <br>
+ * To keep adding elements cheap, the capacity checks use approximate counters
+ * that are maintained in memory and periodically resynchronized with the real
+ * queue contents by a background thread. Elements added or removed by other
+ * processes are therefore only taken into account with some delay.
+ * <h2>Expiration</h2>
+ * A queue can be given a time to live (see {@link #setTtl(int)}). Expired
+ * elements, i.e. elements older than the time to live, are skipped by the
+ * iterators: their age is found by decoding their names so this does not
+ * require any additional file operation.
+ * <br>
+ * The purge() method removes the intermediate directories that only contain
+ * expired elements, as a whole, without looking at the individual elements.
+ * Locked elements are left untouched as a consumer may still be using them.
+ * Until they are purged, expired elements are still counted.
+ * <h2>Delayed elements</h2>
+ * An element can be added with a time before which it is not visible (see
+ * {@link #add(String, long)}). Such an element is stored as if it had been
+ * added at that time: in the intermediate directory and with the name
+ * corresponding to that time. The iterators therefore skip the delayed
+ * elements, and even whole intermediate directories, just by looking at their
+ * names. The elements become visible on time without anything having to be
+ * moved, with a one second resolution. See also {@link #lockNext(long)} to
+ * wait for an element.
+ * <br>
+ * Delayed elements are counted and, for expiration, their age only starts
+ * when they become visible.
+ * <br>
+ * Note: this is specific to this implementation. The Perl and Python ones
+ * do not know about delayed elements and consume them immediately.
+ * <h2>Poison elements</h2>
+ * An element that makes its consumer crash stays locked until purge() finds
+ * the stale lock and unlocks it, the element being then retried. To avoid
+ * retrying it forever, a maximum number of attempts can be set (see
+ * {@link #setMaxAttempts(int)}): purge() then counts how many times the lock
+ * of an element has been found stale and, once the maximum is reached, moves
+ * the element to the dead letter queue (see
+ * {@link #setDeadLetterQueue(Queue)}) instead of unlocking it. If there is
+ * no dead letter queue, the element is removed.
+ * <br>
+ * The number of attempts is stored in a user defined file attribute (aka
+ * extended attribute) of the element file. If these are not supported, it is
+ * only kept in the memory of the process running purge().
+ * <h2>Recovery</h2>
+ * The locks and temporary elements left by a crashed process are normally
+ * only found by purge(), once they are old enough. If the volatile files are
+ * tagged with their owner (see {@link #setOwnerTag(boolean)}), the recover()
+ * method can instead release or remove them right away, at startup.
+ * <h2>Moving elements</h2>
+ * Elements can be moved from one queue to another (see
+ * {@link #moveTo(Queue, String)}) and data can be added to several queues at
+ * once (see {@link #addToAll(List, byte[])}). Within a filesystem, this uses
+ * hard links so that the data is written only once.
+ * <h2>Native file operations</h2>
+ * On Linux and with a JDK providing the Foreign Function and Memory API,
+ * optional native file operations can be used (see
+ * {@link #setNativeIO(boolean)}). Elements are then created as anonymous
+ * files (<code>O_TMPFILE</code>) that get their name with a single
+ * <code>linkat</code>, instead of going through a named temporary file, and
+ * elements are read with a single descriptor through which the kernel is
+ * told that their data will not be needed anymore
+ * (<code>posix_fadvise</code>), to limit page cache pollution. The
+ * file layout is unchanged. When they are not available (other platforms,
+ * older JDKs, filesystems without <code>O_TMPFILE</code>, native access
+ * disabled...), the standard NIO code is used.
+ * <h2>Flight Recorder events</h2>
+ * When the <code>jdk.jfr</code> module is present, the main operations emit
+ * Java Flight Recorder events named <code>ch.cern.dirq.Add</code>,
+ * <code>Lock</code>, <code>Get</code>, <code>Remove</code>,
+ * <code>Purge</code> and <code>DirectoryScan</code>, with a default
+ * threshold of 10 ms (0 ms for purges) that recordings can change.
  * <br>
  * Please refer to {@link ch.cern.dirq.Queue} for general information about
  * directory queues.
@@ -119,30 +228,44 @@ public class QueueSimple implements Queue {
         Pattern.compile("^[0-9a-f]{8}$");
     public static final Pattern ELEMENT_REGEXP =
         Pattern.compile("^[0-9a-f]{14}$");
+    public static final Pattern SHARD_REGEXP =
+        Pattern.compile("^[0-9a-f]{2}$");
 
     private static final int DEFAULT_GRANULARITY = 60;
     private static final int DEFAULT_MAXLOCK = 600;
     private static final int DEFAULT_MAXTEMP = 600;
+    private static final int HEX = 16;
+    private static final int TIME_DIGITS = 8;
+    private static final long MIN_POLL = 10L;
+    private static final long MAX_POLL = 1000L;
+    static final String OWNER_ATTRIBUTE = "dirq.owner";
 
     private static final int MAX_RNDHEX = 16;
+    private static final int MAX_SHARDS = 256;
     private static final int MAX_UMASK = 0777;
     private static final int MAX_DIRECTORY_UMASK = 0777;
     private static final int MAX_FILE_UMASK = 0666;
 
-    private static final long SECOND = 1000L;
+    static final long SECOND = 1000L;
     private static final long NANO2MICRO = 1000L;
     private static final long MAX_MICRO = 1000000L;
 
-    private static final FileFilter INTERMEDIATE_DIRECTORY_FF =
+    static final FileFilter INTERMEDIATE_DIRECTORY_FF =
         new IntermediateDirectoryFF();
-    private static final FileFilter ELEMENT_FF =
-        new ElementFF();
-    private static final FileFilter DOT_ELEMENT_FF =
-        new DotElementFF();
+    static final Comparator<String> BASE_NAME_ORDER =
+        new BaseNameComparator();
+    private static final Set<StandardOpenOption> CREATE_OPTIONS =
+        EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
 
     private static Random rand = new Random();
 
     private int granularity = DEFAULT_GRANULARITY;
+    private BucketSizer bucketSizer;
+    private int shards;
+    private boolean nativeIO;
+    private boolean ownerTag;
+    private boolean metadataHeader;
+    private final IncrementalPurge incrementalPurge = new IncrementalPurge();
     private int qMaxLock = DEFAULT_MAXLOCK;
     private int qMaxTemp = DEFAULT_MAXTEMP;
     private int rndHex;
@@ -151,6 +274,16 @@ public class QueueSimple implements Queue {
     private String queuePath;
     private Set<PosixFilePermission> directoryPermissions;
     private Set<PosixFilePermission> filePermissions;
+    private FileAttribute<?> fileAttribute;
+    private volatile Boolean createPermissions;
+    private final QueueCounter counter = new QueueCounter();
+    private final QueueCapacity capacity = new QueueCapacity(counter);
+    private int ttl;
+    private int maxAttempts;
+    private Queue deadLetterQueue;
+    private Boolean userAttributes;
+    private final QueueAttempts attempts = new QueueAttempts();
+    private volatile QueueStats stats;
 
     //
     // constructors
@@ -181,6 +314,7 @@ public class QueueSimple implements Queue {
         } else if (0 <= numask && numask <= MAX_UMASK) {
             directoryPermissions = directoryPerms(numask);
             filePermissions = filePerms(numask);
+            fileAttribute = FileUtils.fileAttributesFromInteger(MAX_FILE_UMASK & ~numask);
         } else {
             throw new IllegalArgumentException("invalid umask: " + numask);
         }
@@ -218,34 +352,178 @@ public class QueueSimple implements Queue {
 
     @Override
     public String add(final String data) throws IOException {
-        String dir = directoryName();
-        return addPathHelper(addDataHelper(dir, data), dir);
+        return add(data, 0L);
     }
 
     @Override
     public String add(final byte[] data) throws IOException {
-        String dir = directoryName();
-        return addPathHelper(addDataHelper(dir, data), dir);
+        return add(data, 0L);
     }
 
     @Override
     public String addPath(final String path) throws IOException {
-        String dir = directoryName();
+        Object event = QueueEvents.begin(QueueEvents.ADD);
+        long size = 0;
+        if (capacity.getMaxBytes() > 0) {
+            size = Files.size(Paths.get(path));
+        }
+        capacity.check(this, size);
+        long time = elementTime(0L);
+        String dir = directoryName(time);
         Path dirPath = Paths.get(queuePath + File.separator + dir);
         ensureDirectory(dirPath);
-        return addPathHelper(Paths.get(path), dir);
+        String name = addPathHelper(Paths.get(path), dir, time);
+        return added(event, name, size);
+    }
+
+    /**
+     * Add a new element whose data is written directly into its file by the
+     * given writer, with a visibility time and metadata as for
+     * {@link #add(byte[], long)} and {@link #add(byte[], Map)}.
+     *
+     * @param writer writer of the element data
+     * @param size size of the element data or -1 if it is not known in
+     *             advance, in which case the capacity check ignores it
+     * @param notBefore time at which the element becomes visible (in
+     *                  milliseconds since the Epoch)
+     * @param metadata metadata to be stored with the element, possibly empty
+     * @return element name (&lt;directory name&gt;/&lt;file name&gt;)
+     * @throws IOException if any file operation fails
+     */
+    String add(final ElementWriter writer, final long size, final long notBefore,
+               final Map<String, String> metadata) throws IOException {
+        Object event = QueueEvents.begin(QueueEvents.ADD);
+        capacity.check(this, Math.max(size, 0));
+        long time = elementTime(notBefore);
+        String dir = directoryName(time);
+        boolean attributes = !metadata.isEmpty() && hasUserAttributes();
+        if (!metadata.isEmpty() && !attributes && !metadataHeader) {
+            throw new UnsupportedOperationException("user defined attributes: " + queuePath);
+        }
+        Path tmp = addDataHelper(dir, metadata.isEmpty() || attributes ? writer
+                                 : ElementMetadata.headerWriter(metadata, writer));
+        long actual = size < 0 ? Files.size(tmp) : size;
+        if (attributes) {
+            try {
+                ElementMetadata.writeAttributes(tmp, metadata);
+            } catch (FileSystemException e) {
+                // e.g. value too big for the filesystem: use a header if allowed
+                if (!metadataHeader) {
+                    Files.delete(tmp);
+                    throw e;
+                }
+                logger.debug("cannot store metadata in attributes: {}", e.toString());
+                Path copy = addDataHelper(dir, ElementMetadata.headerWriter(
+                    metadata, ElementWriter.of(tmp)));
+                Files.delete(tmp);
+                tmp = copy;
+            }
+        }
+        String name = addPathHelper(tmp, dir, time);
+        return added(event, name, actual);
     }
 
     @Override
     public String get(final String name) throws IOException {
+        Object event = QueueEvents.begin(QueueEvents.GET);
         String path = queuePath + File.separator + name + LOCKED_SUFFIX;
-        return FileUtils.readToString(path);
+        byte[] data = readElement(path);
+        observe(QueueEvents.GET, event, name, data.length);
+        return new String(data, StandardCharsets.UTF_8);
     }
 
     @Override
     public byte[] getAsByteArray(final String name) throws IOException {
+        Object event = QueueEvents.begin(QueueEvents.GET);
         String path = queuePath + File.separator + name + LOCKED_SUFFIX;
-        return FileUtils.readToByteArray(path);
+        byte[] data = readElement(path);
+        observe(QueueEvents.GET, event, name, data.length);
+        return data;
+    }
+
+    // read the object of a locked element directly from its file, for TypedQueue
+    <T> T get(final String name, final Serializer<T> serializer) throws IOException {
+        Object event = QueueEvents.begin(QueueEvents.GET);
+        try (FileChannel channel = FileChannel.open(Paths.get(getPath(name)),
+                                                    StandardOpenOption.READ)) {
+            long size = channel.size();
+            size -= metadataHeader ? ElementMetadata.skipHeader(channel) : 0;
+            T value = serializer.read(channel, size);
+            observe(QueueEvents.GET, event, name, size);
+            return value;
+        }
+    }
+
+    /**
+     * Get the data of a locked element into the given buffer, starting at
+     * its position, without allocating a new array.
+     *
+     * @param name name of the element
+     * @param dst destination buffer, its position is advanced
+     * @return length of the element data
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     * @throws IOException if any file operation fails
+     */
+    public int get(final String name, final ByteBuffer dst) throws IOException {
+        Object event = QueueEvents.begin(QueueEvents.GET);
+        String path = getPath(name);
+        int pos = dst.position();
+        int length = nativeIO ? NativeIO.readAll(path, dst) : -1;
+        if (length < 0) {
+            length = FileUtils.readToBuffer(Paths.get(path), dst);
+        }
+        length = metadataHeader ? ElementMetadata.strip(dst, pos, length) : length;
+        observe(QueueEvents.GET, event, name, length);
+        return length;
+    }
+
+    /**
+     * Get the data of a locked element into the given array, starting at the
+     * given offset, without allocating a new array.
+     *
+     * @param name name of the element
+     * @param dst destination array
+     * @param off offset in the array
+     * @return length of the element data
+     * @throws java.nio.BufferOverflowException if the array is too small
+     * @throws IOException if any file operation fails
+     */
+    public int get(final String name, final byte[] dst, final int off) throws IOException {
+        Object event = QueueEvents.begin(QueueEvents.GET);
+        String path = getPath(name);
+        int length = nativeIO
+            ? NativeIO.readAll(path, ByteBuffer.wrap(dst, off, dst.length - off)) : -1;
+        if (length < 0) {
+            length = FileUtils.readToByteArray(Paths.get(path), dst, off);
+        }
+        length = metadataHeader ? ElementMetadata.strip(dst, off, length) : length;
+        observe(QueueEvents.GET, event, name, length);
+        return length;
+    }
+
+    /**
+     * Get the data of a locked element into a buffer taken from the given
+     * pool. The buffer is returned ready to be read and should be given back
+     * to the pool once it is not needed anymore.
+     *
+     * @param name name of the element
+     * @param pool buffer pool
+     * @return buffer holding the element data
+     * @throws IOException if any file operation fails
+     */
+    public ByteBuffer getAsByteBuffer(final String name, final FileUtils.BufferPool pool)
+        throws IOException {
+        Object event = QueueEvents.begin(QueueEvents.GET);
+        String path = getPath(name);
+        ByteBuffer buffer = nativeIO ? NativeIO.readAll(path, pool) : null;
+        if (buffer == null) {
+            buffer = FileUtils.readToPooledBuffer(Paths.get(path), pool);
+        }
+        if (metadataHeader) {
+            buffer.limit(ElementMetadata.strip(buffer.duplicate(), 0, buffer.limit()));
+        }
+        observe(QueueEvents.GET, event, name, buffer.remaining());
+        return buffer;
     }
 
     @Override
@@ -260,6 +538,14 @@ public class QueueSimple implements Queue {
 
     @Override
     public boolean lock(final String name, final boolean permissive) throws IOException {
+        Object event = QueueEvents.begin(QueueEvents.LOCK);
+        boolean result = lockHelper(name, permissive);
+        observe(QueueEvents.LOCK, event, name, result ? 1 : 0);
+        return result;
+    }
+
+    private boolean lockHelper(final String name, final boolean permissive)
+        throws IOException {
         File file = new File(queuePath + File.separator + name);
         File lock = new File(queuePath + File.separator + name + LOCKED_SUFFIX);
         try {
@@ -273,6 +559,7 @@ public class QueueSimple implements Queue {
             throw e;
         }
         if (touchFile(file)) {
+            tagOwner(lock.toPath(), true);
             return true;
         }
         if (permissive && !file.exists()) {
@@ -294,6 +581,7 @@ public class QueueSimple implements Queue {
     @Override
     public boolean unlock(final String name, final boolean permissive) throws IOException {
         Path lock = Paths.get(queuePath + File.separator + name + LOCKED_SUFFIX);
+        untagOwner(lock);
         if (permissive) {
             return Files.deleteIfExists(lock);
         }
@@ -303,8 +591,17 @@ public class QueueSimple implements Queue {
 
     @Override
     public void remove(final String name) throws IOException {
+        Object event = QueueEvents.begin(QueueEvents.REMOVE);
+        Path lock = Paths.get(queuePath + File.separator + name + LOCKED_SUFFIX);
+        long size = 0;
+        if (capacity.getMaxBytes() > 0) {
+            size = Files.size(lock);
+        }
         Files.delete(Paths.get(queuePath + File.separator + name));
-        Files.delete(Paths.get(queuePath + File.separator + name + LOCKED_SUFFIX));
+        Files.delete(lock);
+        counter.removed(size);
+        capacity.released();
+        observe(QueueEvents.REMOVE, event, name, size);
     }
 
     @Override
@@ -317,9 +614,10 @@ public class QueueSimple implements Queue {
         // count the elements in each intermediate directory
         int count = 0;
         for (File idir: idirs) {
-            File[] elts = idir.listFiles(ELEMENT_FF);
-            if (elts != null) {
-                count += elts.length;
+            for (String name: listEntries(idir.getName())) {
+                if (isElement(name)) {
+                    count++;
+                }
             }
         }
         return count;
@@ -337,67 +635,408 @@ public class QueueSimple implements Queue {
 
     @Override
     public void purge(final int maxLock, final int maxTemp) throws IOException {
-        File[] idirs = new File(queuePath).listFiles(INTERMEDIATE_DIRECTORY_FF);
-        if (idirs == null) {
-            return;
-        }
+        Object event = QueueEvents.begin(QueueEvents.PURGE);
+        List<String> inames = intermediateDirectories();
         long now = System.currentTimeMillis();
-        long oldlock = 0;
-        long oldtemp = 0;
-        if (maxLock > 0) {
-            oldlock = now - maxLock * SECOND;
+        String current = currentDirectory(inames, now);
+        QueuePurge purge = new QueuePurge(this, now, maxLock, maxTemp);
+        for (String iname: inames) {
+            // try to purge the intermediate directories older than the current one
+            purge.directory(iname, iname.compareTo(current) < 0);
+        }
+        purged(event, purge);
+    }
+
+    //
+    // QueueSimple specific methods
+    //
+
+    /**
+     * Add String data to the queue, the element becoming visible only at the
+     * given time.
+     *
+     * @param data data to be added
+     * @param notBefore time at which the element becomes visible (in
+     *                  milliseconds since the Epoch), a time in the past means now
+     * @return element name (as <i>directory_name</i>/<i>file_name</i>)
+     * @throws IOException if any file operation fails
+     */
+    public String add(final String data, final long notBefore) throws IOException {
+        Object event = QueueEvents.begin(QueueEvents.ADD);
+        long size = FileUtils.utf8Length(data);
+        capacity.check(this, size);
+        long time = elementTime(notBefore);
+        String dir = directoryName(time);
+        String name = null;
+        if (nativeIO) {
+            name = addNativeHelper(dir, data.getBytes(StandardCharsets.UTF_8), time);
         }
-        if (maxTemp > 0) {
-            oldtemp = now - maxTemp * SECOND;
+        if (name == null) {
+            name = addPathHelper(addDataHelper(dir, ElementWriter.of(data)), dir, time);
         }
-        if (maxTemp > 0 || maxLock > 0) {
-            for (File idir: idirs) {
-                File[] elts = idir.listFiles(DOT_ELEMENT_FF);
-                if (elts == null) {
-                    continue;
-                }
-                for (File elt: elts) {
-                    long mtime = elt.lastModified();
-                    if (mtime == 0L) {
-                        if (elt.exists()) {
-                            throw new IOException(String.format("cannot stat(%s)", elt));
-                        } else {
-                            continue;
-                        }
-                    }
-                    if (elt.getName().endsWith(TEMPORARY_SUFFIX) && mtime >= oldtemp) {
-                        continue;
-                    }
-                    if (elt.getName().endsWith(LOCKED_SUFFIX) && mtime >= oldlock) {
-                        continue;
+        return added(event, name, size);
+    }
+
+    /**
+     * Add byte array data to the queue, the element becoming visible only at
+     * the given time.
+     *
+     * @param data data to be added
+     * @param notBefore time at which the element becomes visible (in
+     *                  milliseconds since the Epoch), a time in the past means now
+     * @return element name (as <i>directory_name</i>/<i>file_name</i>)
+     * @throws IOException if any file operation fails
+     */
+    public String add(final byte[] data, final long notBefore) throws IOException {
+        Object event = QueueEvents.begin(QueueEvents.ADD);
+        long size = data.length;
+        capacity.check(this, size);
+        long time = elementTime(notBefore);
+        String dir = directoryName(time);
+        String name = null;
+        if (nativeIO) {
+            name = addNativeHelper(dir, data, time);
+        }
+        if (name == null) {
+            name = addPathHelper(addDataHelper(dir, ElementWriter.of(data)), dir, time);
+        }
+        return added(event, name, size);
+    }
+
+    /**
+     * Add byte array data to the queue together with some metadata, which
+     * can later be read without reading the data.
+     * <br>
+     * The metadata is stored in user defined file attributes named
+     * <code>dirq.meta.KEY</code>. If the filesystem does not support them
+     * (or cannot store the values), it is stored in a small header at the
+     * start of the element file only if the queue has been set up to use
+     * metadata headers (see {@link #setMetadataHeader(boolean)}).
+     *
+     * @param data data to be added
+     * @param metadata metadata to be stored with the element
+     * @return element name (as <i>directory_name</i>/<i>file_name</i>)
+     * @throws UnsupportedOperationException if attributes are not supported
+     *         and metadata headers are not used
+     * @throws IOException if any file operation fails
+     */
+    public String add(final byte[] data, final Map<String, String> metadata)
+        throws IOException {
+        return metadata.isEmpty() ? add(data)
+            : add(ElementWriter.of(data), data.length, 0L, metadata);
+    }
+
+    /**
+     * Add String data to the queue together with some metadata.
+     * <br>
+     * See {@link #add(byte[], Map)}.
+     *
+     * @param data data to be added
+     * @param metadata metadata to be stored with the element
+     * @return element name (as <i>directory_name</i>/<i>file_name</i>)
+     * @throws IOException if any file operation fails
+     */
+    public String add(final String data, final Map<String, String> metadata)
+        throws IOException {
+        return add(data.getBytes(StandardCharsets.UTF_8), metadata);
+    }
+
+    /**
+     * Get the metadata of an element, locked or not, without reading its data.
+     *
+     * @param name name of the element
+     * @return metadata, empty if there is none
+     * @throws IOException if any file operation fails
+     */
+    public Map<String, String> getMetadata(final String name) throws IOException {
+        return ElementMetadata.read(Paths.get(queuePath + File.separator + name),
+                                    hasUserAttributes(), metadataHeader);
+    }
+
+    /**
+     * Move a locked element to another queue.
+     * <br>
+     * The element is moved using {@link Queue#addPath(String)} so, with a
+     * {@link QueueSimple} target on the same filesystem, this is a hard link
+     * and the data is not copied. If the target is on a different filesystem,
+     * the data is copied. The number of attempts, if any, is kept.
+     *
+     * @param target queue to move the element to
+     * @param name name of the element to be moved
+     * @return name of the element in the target queue
+     * @throws IOException if any file operation fails
+     */
+    public String moveTo(final Queue target, final String name) throws IOException {
+        Path lock = Paths.get(queuePath + File.separator + name + LOCKED_SUFFIX);
+        long size = 0;
+        if (capacity.getMaxBytes() > 0) {
+            size = Files.size(lock);
+        }
+        untagOwner(lock);
+        String result;
+        try {
+            result = target.addPath(lock.toString());
+        } catch (FileSystemException e) {
+            String tpath = target.getQueuePath();
+            if (tpath == null || !FileUtils.isCrossDevice(lock, Paths.get(tpath))) {
+                throw e;
+            }
+            // EXDEV: fall back to copying the data
+            logger.debug("cannot link {}, copying it: {}", name, e.toString());
+            result = target.add(FileUtils.readToByteArray(lock));
+            Files.delete(lock);
+        }
+        Files.delete(Paths.get(queuePath + File.separator + name));
+        counter.removed(size);
+        capacity.released();
+        observe(QueueEvents.REMOVE, null, name, size);
+        return result;
+    }
+
+    /**
+     * Add String data to several queues, writing it only once.
+     * <br>
+     * See {@link #addToAll(List, byte[])}.
+     *
+     * @param targets queues to add the data to
+     * @param data data to be added
+     * @return element names, in the same order as the queues
+     * @throws IOException if any file operation fails
+     */
+    public static List<String> addToAll(final List<QueueSimple> targets, final String data)
+        throws IOException {
+        return addToAll(targets, data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Add byte array data to several queues, writing it only once.
+     * <br>
+     * The data is written to a temporary file and then hard linked into
+     * every queue, exactly like addPath() does. The linked elements share
+     * their inode: the same file permissions (set according to the umask of
+     * the first linked queue), the same modification time (that a lock in one queue
+     * refreshes for all) and the same user defined attributes. The data is
+     * therefore copied into the queues on a different filesystem and into
+     * the ones storing per-element state in attributes, i.e. with a maximum
+     * number of attempts or owner tags.
+     *
+     * @param targets queues to add the data to
+     * @param data data to be added
+     * @return element names, in the same order as the queues
+     * @throws IOException if any file operation fails
+     */
+    public static List<String> addToAll(final List<QueueSimple> targets, final byte[] data)
+        throws IOException {
+        List<String> result = new ArrayList<String>(targets.size());
+        if (targets.isEmpty()) {
+            return result;
+        }
+        long size = data.length;
+        for (QueueSimple target: targets) {
+            target.capacity.check(target, size);
+        }
+        long time = elementTime(0L);
+        Path tmp = null;
+        try {
+            for (QueueSimple target: targets) {
+                String name = null;
+                if (target.maxAttempts == 0 && !target.ownerTag) {
+                    String dir = target.directoryName(time);
+                    if (tmp == null) {
+                        tmp = target.addDataHelper(dir, ElementWriter.of(data));
                     }
-                    logger.warn("removing too old volatile file: {}", elt);
-                    Files.deleteIfExists(elt.toPath());
+                    name = target.linkHelper(tmp, dir, time);
+                }
+                if (name == null) {
+                    result.add(target.add(data));
+                } else {
+                    result.add(target.added(null, name, size));
                 }
             }
+        } finally {
+            if (tmp != null) {
+                Files.deleteIfExists(tmp);
+            }
         }
-        // try to purge all but the last intermediate directory
-        if (idirs.length > 1) {
-            Arrays.sort(idirs);
-            for (int i = 0; i < idirs.length - 1; i++) {
-                File idir = idirs[i];
-                if (idir.exists()) {
-                    File[] elts = idir.listFiles();
-                    if (elts != null && elts.length == 0) {
-                        try {
-                            Files.delete(idir.toPath());
-                        } catch (DirectoryNotEmptyException | NoSuchFileException e) {
-                            // RACE: the directory has been reused or purged
-                        }
-                    }
+        return result;
+    }
+
+    /**
+     * Lock up to the given number of elements in a single pass over the
+     * queue. The elements already locked are skipped without trying to lock
+     * them.
+     *
+     * @param max maximum number of elements to lock
+     * @return names of the locked elements, in queue order
+     * @throws IOException if any file operation fails
+     */
+    public List<String> lockBatch(final int max) throws IOException {
+        return lockBatch(max, 0);
+    }
+
+    /**
+     * Lock up to the given number of elements in a single pass over the
+     * queue, within the given time budget. The elements already locked are
+     * skipped without trying to lock them.
+     *
+     * @param max maximum number of elements to lock
+     * @param budget maximum time to spend (in milliseconds), 0 meaning no limit
+     * @return names of the locked elements, in queue order
+     * @throws IOException if any file operation fails
+     */
+    public List<String> lockBatch(final int max, final long budget) throws IOException {
+        long deadline = budget > 0 ? System.currentTimeMillis() + budget : 0;
+        List<String> result = new ArrayList<String>();
+        QueueSimpleIterator it = new QueueSimpleIterator(this, null, true);
+        while (result.size() < max && it.hasNext()) {
+            if (deadline > 0 && System.currentTimeMillis() >= deadline) {
+                break;
+            }
+            String name = it.next();
+            if (lock(name)) {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remove all the given locked elements, for instance a batch returned by
+     * {@link #lockBatch(int)}. All the elements are tried even if some fail.
+     *
+     * @param names names of the elements to remove
+     * @throws IOException if the removal of any element fails, the first
+     *                     failure being thrown with the others suppressed
+     */
+    public void removeAll(final Collection<String> names) throws IOException {
+        IOException error = null;
+        for (String name: names) {
+            try {
+                remove(name);
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                } else {
+                    error.addSuppressed(e);
                 }
             }
         }
+        if (error != null) {
+            throw error;
+        }
     }
 
-    //
-    // QueueSimple specific methods
-    //
+    /**
+     * Unlock all the given locked elements, for instance a batch returned by
+     * {@link #lockBatch(int)}, ignoring the ones that are not locked.
+     *
+     * @param names names of the elements to unlock
+     * @return number of elements unlocked
+     * @throws IOException if any file operation fails
+     */
+    public int unlockAll(final Collection<String> names) throws IOException {
+        int count = 0;
+        for (String name: names) {
+            if (unlock(name, true)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Purge the queue incrementally, using the default maxLock and maxTemp
+     * values, within the given time budget.
+     * <br>
+     * See {@link #purge(Duration, int)}.
+     *
+     * @param budget maximum time to spend
+     * @return true if the pass over the old intermediate directories completed
+     * @throws IOException if any file operation fails
+     */
+    public boolean purge(final Duration budget) throws IOException {
+        return purge(budget, 0);
+    }
+
+    /**
+     * Purge the queue incrementally, using the default maxLock and maxTemp
+     * values, within the given time and file operations budgets.
+     * <br>
+     * Each call processes intermediate directories until one of the budgets
+     * is exhausted (but at least one directory) and the next call continues
+     * where the previous one stopped. The most recent intermediate
+     * directories, where the consumers are active, are processed on every
+     * call while the older ones are processed in turn.
+     *
+     * @param budget maximum time to spend
+     * @param maxOperations maximum number of file operations (listings,
+     *                      stats and deletions), 0 meaning no limit
+     * @return true if the pass over the old intermediate directories completed
+     * @throws IOException if any file operation fails
+     */
+    public boolean purge(final Duration budget, final int maxOperations)
+        throws IOException {
+        long deadline = System.nanoTime() + budget.toNanos();
+        List<String> inames = intermediateDirectories();
+        if (inames.isEmpty()) {
+            return true;
+        }
+        Object event = QueueEvents.begin(QueueEvents.PURGE);
+        long now = System.currentTimeMillis();
+        String current = currentDirectory(inames, now);
+        QueuePurge purge = new QueuePurge(this, now, qMaxLock, qMaxTemp);
+        boolean complete = true;
+        for (String iname: incrementalPurge.schedule(inames)) {
+            int operations = purge.getOperations();
+            if (operations > 0 && (System.nanoTime() >= deadline
+                                   || maxOperations > 0 && operations >= maxOperations)) {
+                complete = false;
+                break;
+            }
+            purge.directory(iname, iname.compareTo(current) < 0);
+            incrementalPurge.visited(iname);
+        }
+        if (complete) {
+            incrementalPurge.completed();
+        }
+        purged(event, purge);
+        return complete;
+    }
+
+    /**
+     * Wait for a visible element and lock it.
+     * <br>
+     * This sleeps between scans of the queue, waking up on time for the next
+     * delayed element if there is one.
+     *
+     * @param timeout maximum time to wait (in milliseconds)
+     * @return name of the locked element or <code>null</code> on timeout
+     * @throws IOException if any file operation fails
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public String lockNext(final long timeout) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long sleep = MIN_POLL;
+        while (true) {
+            QueueSimpleIterator it = new QueueSimpleIterator(this, null, true);
+            while (it.hasNext()) {
+                String name = it.next();
+                if (lock(name)) {
+                    return name;
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                return null;
+            }
+            long wait = Math.min(sleep, deadline - now);
+            if (it.getNextDue() > 0) {
+                wait = Math.min(wait, Math.max(it.getNextDue() * SECOND - now, 0));
+            }
+            Thread.sleep(wait);
+            sleep = Math.min(sleep * 2, MAX_POLL);
+        }
+    }
 
     /**
      * Get the granularity.
@@ -420,143 +1059,792 @@ public class QueueSimple implements Queue {
     }
 
     /**
-     * Get the umask.
+     * Get the target maximum number of entries per intermediate directory used
+     * by the adaptive granularity.
      *
-     * @return numerical umask
+     * @return maximum number of entries (0 means no adaptive granularity)
      */
-    public int getUmask() {
-        return umask;
+    public int getAdaptiveGranularity() {
+        return bucketSizer == null ? 0 : bucketSizer.getMaxEntries();
     }
 
     /**
-     * Set the umask.
+     * Set the target maximum number of entries per intermediate directory used
+     * by the adaptive granularity, the granularity being then the maximum
+     * bucket length.
      *
-     * @param value umask to be set (numerical)
+     * @param value maximum number of entries (0 means no adaptive granularity)
      * @return the object itself
      */
-    public QueueSimple setUmask(final int value) {
-        if (value == -1) {
-            directoryPermissions = null;
-            filePermissions = null;
-        } else if (0 <= value && value <= MAX_UMASK) {
-            directoryPermissions = directoryPerms(value);
-            filePermissions = filePerms(value);
-        } else {
-            throw new IllegalArgumentException("invalid umask: " + value);
+    public QueueSimple setAdaptiveGranularity(final int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("invalid maximum number of entries: "
+                                               + value);
         }
-        umask = value;
+        bucketSizer = value == 0 ? null : new BucketSizer(value);
         return this;
     }
 
     /**
-     * Get the default maxLock for purge().
+     * Get the number of hashed subdirectories per intermediate directory.
      *
-     * @return maximum lock time (in seconds)
+     * @return number of hashed subdirectories (0 means none)
      */
-    public int getMaxLock() {
-        return qMaxLock;
+    public int getShards() {
+        return shards;
     }
 
     /**
-     * Set the default maxLock for purge().
+     * Set the number of hashed subdirectories per intermediate directory, the
+     * subdirectory used being chosen per thread.
      *
-     * @param value maximum lock time (in seconds)
+     * @param value number of hashed subdirectories (0 or 1 means none)
      * @return the object itself
      */
-    public QueueSimple setMaxLock(final int value) {
-        qMaxLock = value;
+    public QueueSimple setShards(final int value) {
+        if (value < 0 || value > MAX_SHARDS) {
+            throw new IllegalArgumentException("invalid number of hashed subdirectories: "
+                                               + value);
+        }
+        shards = value;
         return this;
     }
 
     /**
-     * Get the default maxTemp for purge().
+     * Check if the native file operations are used, i.e. if they have been
+     * enabled and are available.
      *
-     * @return maximum temporary time (in seconds)
+     * @return true if the native file operations are used
      */
-    public int getMaxTemp() {
-        return qMaxTemp;
+    public boolean isNativeIO() {
+        return nativeIO && NativeIO.isAvailable();
     }
 
     /**
-     * Set the default maxTemp for purge().
+     * Enable or disable the native file operations, falling back to the
+     * standard NIO code if they are not available.
      *
-     * @param value maximum temporary time (in seconds)
+     * @param value true to enable the native file operations
      * @return the object itself
      */
-    public QueueSimple setMaxTemp(final int value) {
-        qMaxTemp = value;
+    public QueueSimple setNativeIO(final boolean value) {
+        nativeIO = value;
         return this;
     }
 
     /**
-     * Get the random hexadecimal digit.
+     * Check if the volatile files are tagged with their owner.
      *
-     * @return numerical hexadecimal digit
+     * @return true if the volatile files are tagged
      */
-    public int getRndHex() {
-        return rndHex;
+    public boolean isOwnerTag() {
+        return ownerTag;
     }
 
     /**
-     * Set the random hexadecimal digit.
+     * Enable or disable the tagging of the volatile files (locks and
+     * temporary elements) with their owner, see {@link #recover(int)}.
      *
-     * @param value hexadecimal digit to be set (numerical)
+     * @param value true to tag the volatile files
      * @return the object itself
      */
-    public QueueSimple setRndHex(final int value) {
-        rndHex = value % MAX_RNDHEX;
+    public QueueSimple setOwnerTag(final boolean value) {
+        ownerTag = value;
         return this;
     }
 
-    //
-    // helper methods
-    //
-
-    private static Set<PosixFilePermission> directoryPerms(final int numask) {
-        return FileUtils.posixPermissionsFromInteger(MAX_DIRECTORY_UMASK & ~numask);
+    /**
+     * Check if the element metadata can be stored in a header at the start of
+     * the element files.
+     *
+     * @return true if metadata headers are used
+     */
+    public boolean isMetadataHeader() {
+        return metadataHeader;
     }
 
-    private static Set<PosixFilePermission> filePerms(final int numask) {
-        return FileUtils.posixPermissionsFromInteger(MAX_FILE_UMASK & ~numask);
+    /**
+     * Enable or disable the storage of the element metadata in a header at the
+     * start of the element files, where user defined attributes cannot be
+     * used. The headers are then stripped by the get methods so all the
+     * processes using the queue must enable this; other implementations
+     * (Perl, Python) see the header as part of the data.
+     *
+     * @param value true to use metadata headers
+     * @return the object itself
+     */
+    public QueueSimple setMetadataHeader(final boolean value) {
+        metadataHeader = value;
+        return this;
     }
 
-    private String directoryName() {
-        long now = System.currentTimeMillis() / SECOND;
-        if (granularity > 0) {
-            now -= now % granularity;
-        }
-        return String.format("%08x", now);
-    }
+    /**
+     * Recover the queue at startup, for instance after a crash.
+     * <br>
+     * All the intermediate directories are scanned in parallel. The locks
+     * and temporary elements tagged (see {@link #setOwnerTag(boolean)}) by a
+     * process that is now dead are respectively released and removed, without
+     * waiting for them to be old enough for purge(). The element counters
+     * used for the capacity checks are resynchronized.
+     *
+     * @param threads number of threads to use
+     * @return report of the recovery, including how long it took
+     * @throws IOException if any file operation fails
+     */
+    public RecoveryReport recover(final int threads) throws IOException {
+        List<String> inames = intermediateDirectories();
+        QueueRecovery recovery = new QueueRecovery(this, hasUserAttributes(),
+                                                   capacity.getMaxBytes() > 0);
+        RecoveryReport report = recovery.run(inames, threads);
+        counter.reset(report.getElements(), report.getBytes());
+        return report;
+    }
+
+    /**
+     * Get the umask.
+     *
+     * @return numerical umask
+     */
+    public int getUmask() {
+        return umask;
+    }
+
+    /**
+     * Set the umask.
+     *
+     * @param value umask to be set (numerical)
+     * @return the object itself
+     */
+    public QueueSimple setUmask(final int value) {
+        if (value == -1) {
+            directoryPermissions = null;
+            filePermissions = null;
+            fileAttribute = null;
+        } else if (0 <= value && value <= MAX_UMASK) {
+            directoryPermissions = directoryPerms(value);
+            filePermissions = filePerms(value);
+            fileAttribute = FileUtils.fileAttributesFromInteger(MAX_FILE_UMASK & ~value);
+        } else {
+            throw new IllegalArgumentException("invalid umask: " + value);
+        }
+        umask = value;
+        createPermissions = null;
+        return this;
+    }
+
+    /**
+     * Get the default maxLock for purge().
+     *
+     * @return maximum lock time (in seconds)
+     */
+    public int getMaxLock() {
+        return qMaxLock;
+    }
+
+    /**
+     * Set the default maxLock for purge().
+     *
+     * @param value maximum lock time (in seconds)
+     * @return the object itself
+     */
+    public QueueSimple setMaxLock(final int value) {
+        qMaxLock = value;
+        return this;
+    }
+
+    /**
+     * Get the default maxTemp for purge().
+     *
+     * @return maximum temporary time (in seconds)
+     */
+    public int getMaxTemp() {
+        return qMaxTemp;
+    }
+
+    /**
+     * Set the default maxTemp for purge().
+     *
+     * @param value maximum temporary time (in seconds)
+     * @return the object itself
+     */
+    public QueueSimple setMaxTemp(final int value) {
+        qMaxTemp = value;
+        return this;
+    }
+
+    /**
+     * Get the random hexadecimal digit.
+     *
+     * @return numerical hexadecimal digit
+     */
+    public int getRndHex() {
+        return rndHex;
+    }
+
+    /**
+     * Set the random hexadecimal digit.
+     *
+     * @param value hexadecimal digit to be set (numerical)
+     * @return the object itself
+     */
+    public QueueSimple setRndHex(final int value) {
+        rndHex = value % MAX_RNDHEX;
+        return this;
+    }
+
+    /**
+     * Get the maximum number of elements.
+     *
+     * @return maximum number of elements (0 means unlimited)
+     */
+    public int getMaxElements() {
+        return capacity.getMaxElements();
+    }
+
+    /**
+     * Set the maximum number of elements (high watermark).
+     *
+     * @param value maximum number of elements (0 means unlimited)
+     * @return the object itself
+     */
+    public QueueSimple setMaxElements(final int value) {
+        capacity.setMaxElements(value);
+        return this;
+    }
+
+    /**
+     * Get the maximum number of bytes.
+     *
+     * @return maximum number of bytes (0 means unlimited)
+     */
+    public long getMaxBytes() {
+        return capacity.getMaxBytes();
+    }
+
+    /**
+     * Set the maximum number of bytes (high watermark).
+     * <br>
+     * Note: this requires a stat() on removal, to know how many bytes have
+     * been freed.
+     *
+     * @param value maximum number of bytes (0 means unlimited)
+     * @return the object itself
+     */
+    public QueueSimple setMaxBytes(final long value) {
+        capacity.setMaxBytes(value);
+        return this;
+    }
+
+    /**
+     * Get the low watermark.
+     *
+     * @return low watermark (in percents of the maximums)
+     */
+    public int getLowWatermark() {
+        return capacity.getLowWatermark();
+    }
+
+    /**
+     * Set the low watermark, i.e. the level under which a full queue accepts
+     * new elements again.
+     *
+     * @param value low watermark (in percents of the maximums)
+     * @return the object itself
+     */
+    public QueueSimple setLowWatermark(final int value) {
+        capacity.setLowWatermark(value);
+        return this;
+    }
+
+    /**
+     * Get the overflow policy.
+     *
+     * @return overflow policy
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return capacity.getOverflowPolicy();
+    }
+
+    /**
+     * Set the overflow policy, i.e. what to do when adding to a full queue.
+     *
+     * @param value overflow policy
+     * @return the object itself
+     */
+    public QueueSimple setOverflowPolicy(final OverflowPolicy value) {
+        capacity.setOverflowPolicy(value);
+        return this;
+    }
+
+    /**
+     * Get the overflow timeout used by the {@link OverflowPolicy#BLOCK} policy.
+     *
+     * @return overflow timeout (in milliseconds)
+     */
+    public long getOverflowTimeout() {
+        return capacity.getOverflowTimeout();
+    }
+
+    /**
+     * Set the overflow timeout used by the {@link OverflowPolicy#BLOCK} policy.
+     *
+     * @param value overflow timeout (in milliseconds)
+     * @return the object itself
+     */
+    public QueueSimple setOverflowTimeout(final long value) {
+        capacity.setOverflowTimeout(value);
+        return this;
+    }
+
+    /**
+     * Get the time to live of the elements.
+     *
+     * @return time to live (in seconds, 0 means forever)
+     */
+    public int getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Set the time to live of the elements.
+     *
+     * @param value time to live (in seconds, 0 means forever)
+     * @return the object itself
+     */
+    public QueueSimple setTtl(final int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("invalid time to live: " + value);
+        }
+        ttl = value;
+        return this;
+    }
+
+    /**
+     * Get the maximum number of attempts to process an element.
+     *
+     * @return maximum number of attempts (0 means unlimited)
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Set the maximum number of attempts to process an element, i.e. how many
+     * times its lock can be found stale by purge() before it is moved to the
+     * dead letter queue.
+     *
+     * @param value maximum number of attempts (0 means unlimited)
+     * @return the object itself
+     */
+    public QueueSimple setMaxAttempts(final int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("invalid maximum number of attempts: "
+                                               + value);
+        }
+        maxAttempts = value;
+        return this;
+    }
+
+    /**
+     * Get the dead letter queue.
+     *
+     * @return dead letter queue (can be null)
+     */
+    public Queue getDeadLetterQueue() {
+        return deadLetterQueue;
+    }
+
+    /**
+     * Set the dead letter queue, where elements go after too many attempts.
+     * <br>
+     * The elements are moved using {@link Queue#addPath(String)} so a
+     * {@link QueueSimple} dead letter queue must be on the same filesystem.
+     *
+     * @param value dead letter queue (can be null)
+     * @return the object itself
+     */
+    public QueueSimple setDeadLetterQueue(final Queue value) {
+        deadLetterQueue = value;
+        return this;
+    }
+
+    /**
+     * Get the shared statistics of the queue, if enabled.
+     *
+     * @return queue statistics (can be null)
+     */
+    public QueueStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Enable or disable the maintenance of the statistics shared by all the
+     * processes using the queue, see {@link QueueStats}.
+     *
+     * @param value true to update the statistics file
+     * @return the object itself
+     * @throws IOException if the statistics file cannot be opened
+     */
+    public QueueSimple setStats(final boolean value) throws IOException {
+        stats = value ? QueueStats.create(this) : null;
+        return this;
+    }
+
+    /**
+     * Get the number of times the lock of the given element has been found
+     * stale by purge().
+     *
+     * @param name name of the element
+     * @return number of attempts
+     * @throws IOException if any file operation fails
+     */
+    public int getAttempts(final String name) throws IOException {
+        return attempts.get(name, Paths.get(queuePath + File.separator + name),
+                            hasUserAttributes());
+    }
+
+    //
+    // helper methods
+    //
+
+    private boolean hasUserAttributes() throws IOException {
+        if (userAttributes == null) {
+            userAttributes = FileUtils.supportsUserAttributes(Paths.get(queuePath));
+        }
+        return userAttributes;
+    }
+
+    /**
+     * Count one more attempt for the element with the given stale lock and
+     * dead letter it if needed, return true if the element has been handled.
+     */
+    boolean isPoison(final String lname) throws IOException {
+        String name = lname.substring(0, lname.length() - LOCKED_SUFFIX.length());
+        if (!new File(queuePath + File.separator + name).exists()) {
+            // orphan lock
+            return false;
+        }
+        int count = attempts.increment(name, Paths.get(queuePath + File.separator + lname),
+                                       hasUserAttributes());
+        if (count < maxAttempts) {
+            return false;
+        }
+        try {
+            if (deadLetterQueue == null) {
+                logger.warn("removing element after {} attempts: {}", count, name);
+                remove(name);
+            } else {
+                logger.warn("dead lettering element after {} attempts: {}", count, name);
+                moveTo(deadLetterQueue, name);
+            }
+            attempts.forget(name);
+        } catch (IOException e) {
+            // the element stays locked and will be retried by the next purge()
+            logger.warn("cannot dead letter element {}: {}", name, e.toString());
+        }
+        return true;
+    }
+
+    /**
+     * Return the name of the intermediate directory where the producers
+     * currently add elements: the newest one that is not in the future, as
+     * the future ones only hold delayed elements. With only future ones,
+     * return a name older than all of them.
+     */
+    private static String currentDirectory(final List<String> inames, final long now) {
+        String current = "";
+        for (String iname: inames) {
+            if (nameTime(iname) <= now / SECOND) {
+                current = iname;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Return the time (in seconds since the Epoch) encoded in the given
+     * intermediate directory or element file name.
+     */
+    static long nameTime(final String name) {
+        return Long.parseLong(name.substring(0, TIME_DIGITS), HEX);
+    }
+
+    /**
+     * List the names of the intermediate directories, in order.
+     */
+    List<String> intermediateDirectories() {
+        List<String> inames = new ArrayList<String>();
+        File[] idirs = new File(queuePath).listFiles(INTERMEDIATE_DIRECTORY_FF);
+        if (idirs != null) {
+            for (File idir: idirs) {
+                inames.add(idir.getName());
+            }
+            Collections.sort(inames);
+        }
+        return inames;
+    }
+
+    /**
+     * List the entries of the given intermediate directory, including the ones
+     * of its hashed subdirectories, as names relative to the queue path.
+     */
+    List<String> listEntries(final String iname) {
+        List<String> result = new ArrayList<String>();
+        String[] names = new File(queuePath + File.separator + iname).list();
+        if (names == null) {
+            return result;
+        }
+        for (String name: names) {
+            if (!SHARD_REGEXP.matcher(name).matches()) {
+                result.add(iname + File.separator + name);
+                continue;
+            }
+            String sname = iname + File.separator + name;
+            String[] snames = new File(queuePath + File.separator + sname).list();
+            if (snames == null) {
+                continue;
+            }
+            for (String n: snames) {
+                result.add(sname + File.separator + n);
+            }
+        }
+        return result;
+    }
+
+    static String baseName(final String name) {
+        return name.substring(name.lastIndexOf(File.separatorChar) + 1);
+    }
+
+    static boolean isElement(final String name) {
+        return ELEMENT_REGEXP.matcher(baseName(name)).matches();
+    }
+
+    private static Set<PosixFilePermission> directoryPerms(final int numask) {
+        return FileUtils.posixPermissionsFromInteger(MAX_DIRECTORY_UMASK & ~numask);
+    }
+
+    private static Set<PosixFilePermission> filePerms(final int numask) {
+        return FileUtils.posixPermissionsFromInteger(MAX_FILE_UMASK & ~numask);
+    }
+
+    /**
+     * Return the approximate number of elements without walking the queue,
+     * the counters being resynchronized in the background if too old.
+     */
+    long approximateCount() {
+        capacity.refresh(this, QueueCapacity.COUNTER_MAX_AGE, true);
+        return counter.elements();
+    }
+
+    /**
+     * Resynchronize the approximate counters with the real queue contents.
+     */
+    void syncCounter() {
+        long elements = 0;
+        long bytes = 0;
+        File[] idirs = new File(queuePath).listFiles(INTERMEDIATE_DIRECTORY_FF);
+        if (idirs != null) {
+            for (File idir: idirs) {
+                for (String name: listEntries(idir.getName())) {
+                    if (!isElement(name)) {
+                        continue;
+                    }
+                    elements++;
+                    if (capacity.getMaxBytes() > 0) {
+                        bytes += new File(queuePath + File.separator + name).length();
+                    }
+                }
+            }
+        }
+        counter.reset(elements, bytes);
+    }
+
+    // element time (in seconds) for an element visible at the given time
+    private static long elementTime(final long notBefore) {
+        return Math.max(System.currentTimeMillis(), notBefore) / SECOND;
+    }
+
+    private String directoryName(final long time) {
+        long start = time;
+        BucketSizer sizer = bucketSizer;
+        if (sizer != null) {
+            start = sizer.bucketStart(time, System.currentTimeMillis() / SECOND, granularity);
+        } else if (granularity > 0) {
+            start -= start % granularity;
+        }
+        if (shards > 1) {
+            long shard = Thread.currentThread().getId() % shards;
+            return String.format("%08x%s%02x", start, File.separator, shard);
+        }
+        return String.format("%08x", start);
+    }
 
     private static String elementName(final int rnd) {
-        long now = System.currentTimeMillis() / SECOND;
+        return elementName(rnd, System.currentTimeMillis() / SECOND);
+    }
+
+    static String elementName(final int rnd, final long time) {
         long micro = System.nanoTime() / NANO2MICRO;
-        return String.format("%08x%05x%01x", now, micro % MAX_MICRO, rnd);
+        return String.format("%08x%05x%01x", time, micro % MAX_MICRO, rnd);
     }
 
-    private String addPathHelper(final Path tmp, final String dir) throws IOException {
+    private String addPathHelper(final Path tmp, final String dir, final long time)
+        throws IOException {
+        String name = linkPathHelper(tmp, dir, time);
+        Files.delete(tmp);
+        return name;
+    }
+
+    /**
+     * Link the given file into this queue, returning null if it is on a
+     * different filesystem.
+     */
+    private String linkHelper(final Path tmp, final String dir, final long time)
+        throws IOException {
+        try {
+            ensureDirectory(Paths.get(queuePath, dir));
+            return linkPathHelper(tmp, dir, time);
+        } catch (FileSystemException e) {
+            if (!FileUtils.isCrossDevice(tmp, Paths.get(queuePath))) {
+                throw e;
+            }
+            logger.debug("cannot link into {}, copying: {}", queuePath, e.toString());
+            return null;
+        }
+    }
+
+    private String linkPathHelper(final Path tmp, final String dir, final long time)
+        throws IOException {
         String dirPrefix = queuePath + File.separator + dir + File.separator;
         String name;
         while (true) {
-            name = elementName(rndHex);
+            name = elementName(rndHex, time);
             try {
                 Files.createLink(Paths.get(dirPrefix + name), tmp);
             } catch (FileAlreadyExistsException e) {
                 // RACE: someone else may have created the file (EEXIST)
                 continue;
             }
-            Files.delete(tmp);
             break;
         }
         return dir + File.separator + name;
     }
 
-    private Path createFile(final String path) throws IOException {
-        Path newPath;
+    private String addNativeHelper(final String dir, final byte[] data, final long time)
+        throws IOException {
+        if (fileAttribute != null && !Boolean.TRUE.equals(createPermissions)) {
+            // the permissions may have to be fixed after creation: use NIO
+            return null;
+        }
+        String dirPath = queuePath + File.separator + dir;
+        int mode = fileAttribute == null ? MAX_FILE_UMASK : MAX_FILE_UMASK & ~umask;
+        int fd;
+        try {
+            fd = NativeIO.createAnonymous(dirPath, data, mode);
+        } catch (NoSuchFileException e) {
+            ensureDirectory(Paths.get(dirPath));
+            fd = NativeIO.createAnonymous(dirPath, data, mode);
+        }
+        if (fd < 0) {
+            return null;
+        }
+        try {
+            while (true) {
+                String name = elementName(rndHex, time);
+                if (NativeIO.link(fd, dirPath + File.separator + name)) {
+                    return dir + File.separator + name;
+                }
+                // RACE: someone else may have created the file (EEXIST)
+            }
+        } finally {
+            NativeIO.close(fd);
+        }
+    }
+
+    private void tagOwner(final Path path, final boolean lock) {
+        if (!ownerTag) {
+            return;
+        }
         try {
-            newPath = Files.createFile(Paths.get(path));
-            if (filePermissions != null) {
-                Files.setPosixFilePermissions(newPath, filePermissions);
+            if (hasUserAttributes()) {
+                // a lock shares its inode with the element: bind the tag to this lock
+                String tag = lock
+                    ? QueueRecovery.lockTag(QueueRecovery.OWNER, path.toFile().lastModified())
+                    : QueueRecovery.OWNER;
+                FileUtils.writeUserAttribute(path, OWNER_ATTRIBUTE, tag);
+            }
+        } catch (IOException e) {
+            // the file will then be left to purge()
+            logger.debug("cannot tag owner of {}: {}", path, e.toString());
+        }
+    }
+
+    /**
+     * Remove the owner tag of a lock about to be released, so that the
+     * element does not keep it.
+     *
+     * @param lock path of the lock
+     */
+    void untagOwner(final Path lock) {
+        if (!ownerTag) {
+            return;
+        }
+        try {
+            if (hasUserAttributes()) {
+                FileUtils.removeUserAttribute(lock, OWNER_ATTRIBUTE);
+            }
+        } catch (IOException e) {
+            // the tag is bound to the lock time anyway
+            logger.debug("cannot untag owner of {}: {}", lock, e.toString());
+        }
+    }
+
+    private void purged(final Object event, final QueuePurge purge) {
+        if (purge.getExpired() > 0) {
+            counter.invalidate();
+        }
+        QueueEvents.endPurge(event, queuePath, purge);
+    }
+
+    private String added(final Object event, final String name, final long size) {
+        counter.added(size);
+        observe(QueueEvents.ADD, event, name, size);
+        return name;
+    }
+
+    // read the data of a locked element, natively to also drop it from the page cache
+    private byte[] readElement(final String path) throws IOException {
+        byte[] data = nativeIO ? NativeIO.readAll(path) : null;
+        data = data == null ? FileUtils.readToByteArray(path) : data;
+        return metadataHeader ? ElementMetadata.strip(data) : data;
+    }
+
+    private void observe(final int type, final Object event, final String name,
+                         final long value) {
+        QueueEvents.end(event, name, value);
+        QueueStats current = stats;
+        if (current != null) {
+            current.update(type, value);
+        }
+    }
+
+    private FileChannel createFile(final Path path) throws IOException {
+        FileChannel channel;
+        try {
+            if (fileAttribute == null) {
+                channel = FileChannel.open(path, CREATE_OPTIONS);
+                tagOwner(path, false);
+            } else {
+                // the permissions are set atomically, but the process umask applies
+                channel = FileChannel.open(path, CREATE_OPTIONS, fileAttribute);
+                if (createPermissions == null) {
+                    createPermissions = Boolean.valueOf(
+                        Files.getPosixFilePermissions(path).equals(filePermissions));
+                }
+                if (!createPermissions.booleanValue()) {
+                    Files.setPosixFilePermissions(path, filePermissions);
+                }
+                tagOwner(path, false);
             }
         } catch (NoSuchFileException e) {
             // RACE: the containing directory may be mising (ENOENT)
@@ -565,35 +1853,31 @@ public class QueueSimple implements Queue {
             // RACE: someone else may have created the file (EEXIST)
             return null;
         }
-        return newPath;
+        return channel;
     }
 
-    private Path getNewPath(final String dir) throws IOException {
+    private Path addDataHelper(final String dir, final ElementWriter writer)
+        throws IOException {
         File dirFile = new File(queuePath + File.separator + dir);
         String dirPrefix = queuePath + File.separator + dir + File.separator;
         Path newPath;
+        FileChannel channel;
         while (true) {
             String name = elementName(rndHex);
-            newPath = createFile(dirPrefix + name + TEMPORARY_SUFFIX);
-            if (newPath != null) {
+            newPath = Paths.get(dirPrefix + name + TEMPORARY_SUFFIX);
+            channel = createFile(newPath);
+            if (channel != null) {
                 break;
             }
             if (!dirFile.exists()) {
                 ensureDirectory(dirFile.toPath());
             }
         }
-        return newPath;
-    }
-
-    private Path addDataHelper(final String dir, final byte[] data) throws IOException {
-        Path newPath = getNewPath(dir);
-        FileUtils.writeToFile(newPath, data);
-        return newPath;
-    }
-
-    private Path addDataHelper(final String dir, final String data) throws IOException {
-        Path newPath = getNewPath(dir);
-        FileUtils.writeToFile(newPath, data);
+        try {
+            writer.write(channel);
+        } finally {
+            channel.close();
+        }
         return newPath;
     }
 
@@ -601,6 +1885,10 @@ public class QueueSimple implements Queue {
         Files.createDirectories(path);
         if (directoryPermissions != null) {
             Files.setPosixFilePermissions(path, directoryPermissions);
+            if (SHARD_REGEXP.matcher(path.getFileName().toString()).matches()) {
+                // the intermediate directory may also have been created
+                Files.setPosixFilePermissions(path.getParent(), directoryPermissions);
+            }
         }
     }
 
@@ -647,32 +1935,15 @@ public class QueueSimple implements Queue {
     }
 
     /**
-     * FileFilter class to iterate over (normal) elements.
+     * Comparator class to sort element names on their file names only.
      */
-    private static class ElementFF implements FileFilter {
-        public boolean accept(final File file) {
-            if (file.isDirectory()) {
-                return false;
-            }
-            if (!ELEMENT_REGEXP.matcher(file.getName()).matches()) {
-                return false;
-            }
-            return true;
-        }
-    }
-
-    /**
-     * FileFilter class to iterate over temporary or locked elements.
-     */
-    private static class DotElementFF implements FileFilter {
-        public boolean accept(final File file) {
-            if (file.isDirectory()) {
-                return false;
-            }
-            if (!file.getName().contains(".")) {
-                return false;
+    private static class BaseNameComparator implements Comparator<String> {
+        public int compare(final String name1, final String name2) {
+            int result = baseName(name1).compareTo(baseName(name2));
+            if (result != 0) {
+                return result;
             }
-            return true;
+            return name1.compareTo(name2);
         }
     }
 
@@ -685,92 +1956,44 @@ public class QueueSimple implements Queue {
      */
     @Override
     public Iterator<String> iterator() {
-        return new QueueSimpleIterator(this);
+        return new QueueSimpleIterator(this, null);
     }
 
     /**
-     * Iterator for the simple directory queue (private).
+     * Lazily list the visible elements of the queue, in order, with their
+     * size, modification time and lock state. Only one intermediate
+     * directory is held in memory at a time.
+     *
+     * @return stream of element information, throwing
+     *         {@link java.io.UncheckedIOException} if a directory cannot be read
      */
-    private static class QueueSimpleIterator implements Iterator<String> {
-
-        private QueueSimple itQueue;
-        private List<String> itDirs = new ArrayList<String>();
-        private List<String> itElts = new ArrayList<String>();
-
-        /**
-         * Helper method to build the list of elements to iterate over.
-         */
-        private boolean buildElements() {
-            boolean result = false;
-            while (!result && !itDirs.isEmpty()) {
-                String iname = itDirs.remove(0);
-                File idir = new File(itQueue.getQueuePath() + File.separator + iname);
-                File[] elts = idir.listFiles(ELEMENT_FF);
-                if (elts == null || elts.length == 0) {
-                    continue;
-                } else {
-                    result = true;
-                }
-                for (File elt: elts) {
-                    itElts.add(iname + File.separator + elt.getName());
-                }
-                Collections.sort(itElts);
-            }
-            return result;
-        }
-
-        /**
-         * Constructor for the simple directory queue iterator.
-         *
-         * @param queue queue to be iterated on
-         */
-        QueueSimpleIterator(final QueueSimple queue) {
-            itQueue = queue;
-            File[] idirs = new File(itQueue.getQueuePath())
-                .listFiles(INTERMEDIATE_DIRECTORY_FF);
-            if (idirs != null) {
-                for (File idir: idirs) {
-                    itDirs.add(idir.getName());
-                }
-                Collections.sort(itDirs);
-            }
-        }
-
-        /**
-         * Returns true if the iteration has more elements.
-         */
-        @Override
-        public boolean hasNext() {
-            if (!itElts.isEmpty()) {
-                return true;
-            }
-            if (buildElements()) {
-                return true;
-            }
-            return false;
-        }
-
-        /**
-         * Returns the next element in the iteration.
-         */
-        @Override
-        public String next() {
-            if (!itElts.isEmpty()) {
-                return itElts.remove(0);
-            }
-            if (buildElements()) {
-                return itElts.remove(0);
-            }
-            throw new NoSuchElementException();
-        }
+    public Stream<ElementInfo> elements() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+            new QueueSimpleLister(this),
+            Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
 
-        /**
-         * Removes from the underlying collection the last element returned by this iterator.
-         */
-        @Override
-        public void remove() {
-        }
+    /**
+     * Iterator for the simple directory queue resuming from the given cursor
+     * and moving it forward, the locked elements being skipped.
+     *
+     * @param cursor consumer cursor
+     * @return iterator
+     */
+    public Iterator<String> iterator(final QueueCursor cursor) {
+        return new QueueSimpleIterator(this, cursor);
+    }
 
+    /**
+     * Get the persisted cursor of the given consumer, see
+     * {@link ch.cern.dirq.QueueCursor}.
+     *
+     * @param consumer name of the consumer
+     * @return cursor
+     * @throws IOException if any file operation fails
+     */
+    public QueueCursor getCursor(final String consumer) throws IOException {
+        return new QueueCursor(QueueCursor.path(queuePath, consumer));
     }
 
 }
@@ -0,0 +1,220 @@
+package ch.cern.dirq;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Iterator for the simple directory queue.
+ * <br>
+ * This is a private class to be used only by the directory queue classes.
+ * Its API can change at any time without any notice.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+final class QueueSimpleIterator implements Iterator<String> {
+
+    private QueueSimple itQueue;
+    private QueueCursor itCursor;
+    private boolean itFull;
+    private boolean itAdvancing;
+    private boolean itSkipLocked;
+    private List<String> itDirs = new ArrayList<String>();
+    private List<String> itElts = new ArrayList<String>();
+    private long itOldest;
+    private long itNow;
+    private long itNextDue;
+
+    /**
+     * Return the earliest time (in seconds since the Epoch) at which a
+     * skipped delayed element becomes visible, 0 if none.
+     */
+    long getNextDue() {
+        return itNextDue;
+    }
+
+    /**
+     * Helper method to remember the earliest time something was skipped.
+     */
+    private void skipUntil(final long time) {
+        if (itNextDue == 0 || time < itNextDue) {
+            itNextDue = time;
+        }
+    }
+
+    /**
+     * Helper method to build the list of elements to iterate over.
+     */
+    private boolean buildElements() {
+        while (itElts.isEmpty() && !itDirs.isEmpty()) {
+            String iname = itDirs.remove(0);
+            Object event = QueueEvents.begin(QueueEvents.SCAN);
+            List<String> names = itQueue.listEntries(iname);
+            QueueEvents.end(event, iname, names.size());
+            if (itSkipLocked) {
+                buildUnlockedElements(iname, names);
+                continue;
+            }
+            // only look at the names: expired elements are skipped without stat()
+            for (String name: names) {
+                if (!QueueSimple.isElement(name)) {
+                    continue;
+                }
+                long time = QueueSimple.nameTime(QueueSimple.baseName(name));
+                if (itOldest > 0 && time < itOldest) {
+                    continue;
+                }
+                if (time > itNow) {
+                    // delayed element, not yet visible
+                    skipUntil(time);
+                    continue;
+                }
+                itElts.add(name);
+            }
+            // merge the hashed subdirectories in element time order
+            Collections.sort(itElts, QueueSimple.BASE_NAME_ORDER);
+        }
+        if (itCursor != null && itElts.isEmpty()) {
+            itCursor.saveQuietly();
+        }
+        return !itElts.isEmpty();
+    }
+
+    /**
+     * Helper method to build the list of elements skipping the locked ones.
+     * If there is a cursor, it moves forward as long as only consumed (locked,
+     * removed or expired) elements are seen.
+     */
+    private void buildUnlockedElements(final String iname, final List<String> names) {
+        Set<String> locked = new HashSet<String>();
+        List<String> elts = new ArrayList<String>();
+        int suffix = QueueSimple.LOCKED_SUFFIX.length();
+        for (String name: names) {
+            if (name.endsWith(QueueSimple.LOCKED_SUFFIX)) {
+                locked.add(name.substring(0, name.length() - suffix));
+            } else if (QueueSimple.isElement(name)) {
+                elts.add(name);
+            }
+        }
+        Collections.sort(elts, QueueSimple.BASE_NAME_ORDER);
+        if (itAdvancing && elts.isEmpty()) {
+            itCursor.advance(iname, "");
+        }
+        for (String name: elts) {
+            String base = QueueSimple.baseName(name);
+            if (itCursor != null && !itFull && itCursor.skipElement(iname, base)) {
+                continue;
+            }
+            long time = QueueSimple.nameTime(base);
+            boolean expired = itOldest > 0 && time < itOldest;
+            if (time > itNow) {
+                // delayed element, not yet visible: never move past it
+                skipUntil(time);
+                itAdvancing = false;
+                continue;
+            }
+            if (expired || locked.contains(name)) {
+                if (itAdvancing) {
+                    itCursor.advance(iname, base);
+                }
+                continue;
+            }
+            itAdvancing = false;
+            itElts.add(name);
+        }
+    }
+
+    /**
+     * Constructor for the simple directory queue iterator.
+     *
+     * @param queue queue to be iterated on
+     * @param cursor consumer cursor or null
+     */
+    QueueSimpleIterator(final QueueSimple queue, final QueueCursor cursor) {
+        this(queue, cursor, cursor != null);
+    }
+
+    /**
+     * Constructor for the simple directory queue iterator, optionally
+     * skipping the locked elements.
+     *
+     * @param queue queue to be iterated on
+     * @param cursor consumer cursor or null
+     * @param skipLocked true to skip the locked elements
+     */
+    QueueSimpleIterator(final QueueSimple queue, final QueueCursor cursor,
+                        final boolean skipLocked) {
+        itQueue = queue;
+        itCursor = cursor;
+        itSkipLocked = skipLocked || cursor != null;
+        if (cursor != null) {
+            itFull = cursor.startScan();
+            itAdvancing = true;
+        }
+        itNow = System.currentTimeMillis() / QueueSimple.SECOND;
+        if (queue.getTtl() > 0) {
+            itOldest = itNow - queue.getTtl();
+        }
+        File[] idirs = new File(itQueue.getQueuePath())
+            .listFiles(QueueSimple.INTERMEDIATE_DIRECTORY_FF);
+        if (idirs != null) {
+            for (File idir: idirs) {
+                String iname = idir.getName();
+                long time = QueueSimple.nameTime(iname);
+                if (time > itNow) {
+                    // only holding delayed elements, not yet visible
+                    skipUntil(time);
+                    continue;
+                }
+                if (cursor != null && !itFull && cursor.skipDirectory(iname)) {
+                    continue;
+                }
+                itDirs.add(iname);
+            }
+            Collections.sort(itDirs);
+        }
+    }
+
+    /**
+     * Returns true if the iteration has more elements.
+     */
+    @Override
+    public boolean hasNext() {
+        if (!itElts.isEmpty()) {
+            return true;
+        }
+        if (buildElements()) {
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the next element in the iteration.
+     */
+    @Override
+    public String next() {
+        if (!itElts.isEmpty()) {
+            return itElts.remove(0);
+        }
+        if (buildElements()) {
+            return itElts.remove(0);
+        }
+        throw new NoSuchElementException();
+    }
+
+    /**
+     * Removes from the underlying collection the last element returned by this iterator.
+     */
+    @Override
+    public void remove() {
+    }
+
+}
@@ -0,0 +1,149 @@
+package ch.cern.dirq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Lazy listing of the elements of the simple directory queue, with their
+ * attributes.
+ * <br>
+ * Each intermediate directory (and its hashed subdirectories) is read with
+ * one directory stream pass when the listing reaches it, the lock states
+ * being derived from the names seen. The attributes of an element are then
+ * read with a single stat() when it is returned.
+ * <br>
+ * This is a private class to be used only by the directory queue classes.
+ * Its API can change at any time without any notice.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+final class QueueSimpleLister implements Iterator<ElementInfo> {
+
+    private final QueueSimple queue;
+    private final String prefix;
+    private final Iterator<String> dirs;
+    private final List<String> elts = new ArrayList<String>();
+    private final Set<String> locked = new HashSet<String>();
+    private final long now;
+    private long oldest;
+    private ElementInfo nextInfo;
+
+    QueueSimpleLister(final QueueSimple queue) {
+        this.queue = queue;
+        prefix = queue.getQueuePath() + File.separator;
+        dirs = queue.intermediateDirectories().iterator();
+        now = System.currentTimeMillis() / QueueSimple.SECOND;
+        if (queue.getTtl() > 0) {
+            oldest = now - queue.getTtl();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (nextInfo == null) {
+            if (elts.isEmpty() && !buildElements()) {
+                return false;
+            }
+            nextInfo = elementInfo(elts.remove(elts.size() - 1));
+        }
+        return true;
+    }
+
+    @Override
+    public ElementInfo next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ElementInfo result = nextInfo;
+        nextInfo = null;
+        return result;
+    }
+
+    //
+    // helper methods
+    //
+
+    /**
+     * Read the next non-empty intermediate directory, keeping its visible
+     * elements in reverse order.
+     */
+    private boolean buildElements() {
+        while (elts.isEmpty() && dirs.hasNext()) {
+            String iname = dirs.next();
+            locked.clear();
+            Object event = QueueEvents.begin(QueueEvents.SCAN);
+            try {
+                readDirectory(iname);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            QueueEvents.end(event, iname, elts.size() + locked.size());
+            Collections.sort(elts, Collections.reverseOrder(QueueSimple.BASE_NAME_ORDER));
+        }
+        return !elts.isEmpty();
+    }
+
+    private void readDirectory(final String name) throws IOException {
+        DirectoryStream<Path> stream;
+        try {
+            stream = Files.newDirectoryStream(Paths.get(prefix + name));
+        } catch (NoSuchFileException e) {
+            // RACE: the directory has been purged in the meantime
+            return;
+        }
+        try {
+            for (Path path: stream) {
+                String base = path.getFileName().toString();
+                String entry = name + File.separator + base;
+                if (base.endsWith(QueueSimple.LOCKED_SUFFIX)) {
+                    locked.add(entry.substring(
+                        0, entry.length() - QueueSimple.LOCKED_SUFFIX.length()));
+                } else if (QueueSimple.ELEMENT_REGEXP.matcher(base).matches()) {
+                    long time = QueueSimple.nameTime(base);
+                    if (time <= now && (oldest == 0 || time >= oldest)) {
+                        elts.add(entry);
+                    }
+                } else if (QueueSimple.SHARD_REGEXP.matcher(base).matches()) {
+                    readDirectory(entry);
+                }
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Return the information about the given element, null if it has been
+     * removed in the meantime.
+     */
+    private ElementInfo elementInfo(final String name) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(Paths.get(prefix + name), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            // RACE: the element has been removed in the meantime
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new ElementInfo(name, attrs.size(), attrs.lastModifiedTime().toMillis(),
+                               locked.contains(name));
+    }
+
+}
@@ -0,0 +1,393 @@
+package ch.cern.dirq;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * QueueStats - statistics of a queue shared by all the processes using it.
+ * <br>
+ * The statistics are kept in the <code>.stats</code> file of the queue
+ * toplevel directory, which is memory mapped and updated with atomic
+ * operations, so that any process can read them in constant time, without
+ * walking the queue. They are maintained by the {@link QueueSimple} objects
+ * that have them enabled (see {@link QueueSimple#setStats(boolean)}) and can
+ * be read with {@link #open(String)}.
+ * <br>
+ * The file is made of 64-bit little-endian integers: a magic string
+ * (<code>DIRQSTA1</code>), the number of elements when the file was
+ * created, the numbers of elements added and removed, the numbers of
+ * successful and failed locks, the numbers of bytes added and read and the
+ * time of the last activity (in milliseconds since the Epoch). Tools
+ * written in other languages can read it directly.
+ * <br>
+ * The adds and removes include the elements moved between queues (see
+ * {@link QueueSimple#moveTo(Queue, String)}, also used for dead lettering),
+ * added to several queues at once and imported from archives. They do not
+ * include the elements expired by purge() (see
+ * {@link QueueSimple#setTtl(int)}) nor the changes made by processes not
+ * maintaining the statistics, the depth then drifting.
+ * <br>
+ * The updates use <code>VarHandle</code> atomic operations when available
+ * (Java 9 or later) and otherwise a lock on the file, which is much slower.
+ * They are best effort: failures are logged and otherwise ignored.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public final class QueueStats {
+
+    /* Name of the statistics file in the queue toplevel directory. */
+    public static final String STATS_FILE = ".stats";
+
+    private static final Logger logger = LoggerFactory.getLogger(QueueStats.class);
+
+    /* Per file monitors: a JVM cannot hold overlapping locks on the same file. */
+    private static final ConcurrentMap<Path, Object> MONITORS =
+        new ConcurrentHashMap<Path, Object>();
+
+    private static final byte[] MAGIC = "DIRQSTA1".getBytes(StandardCharsets.US_ASCII);
+    private static final int INITIAL = 8;
+    private static final int ADDS = 16;
+    private static final int REMOVES = 24;
+    private static final int LOCKS = 32;
+    private static final int LOCK_FAILURES = 40;
+    private static final int BYTES_IN = 48;
+    private static final int BYTES_OUT = 56;
+    private static final int LAST_ACTIVITY = 64;
+    private static final int SIZE = 72;
+
+    /* VarHandle access modes as method handles, null before Java 9. */
+    private static final MethodHandle GET_AND_ADD;
+    private static final MethodHandle SET;
+    private static final MethodHandle GET;
+
+    static {
+        MethodHandle[] handles = varHandles("GET_AND_ADD", "SET_VOLATILE", "GET_VOLATILE");
+        GET_AND_ADD = handles[0];
+        SET = handles[1];
+        GET = handles[2];
+    }
+
+    private final Path path;
+    private final ByteBuffer buffer;
+    private final FileChannel channel;
+
+    private QueueStats(final Path path, final ByteBuffer buffer, final FileChannel channel) {
+        this.path = path;
+        this.buffer = buffer;
+        this.channel = channel;
+    }
+
+    /**
+     * Open the statistics of the given queue, for reading only.
+     *
+     * @param queuePath path of the queue toplevel directory
+     * @return queue statistics
+     * @throws IOException if the statistics file is missing or invalid
+     */
+    public static QueueStats open(final String queuePath) throws IOException {
+        Path path = Paths.get(queuePath + File.separator + STATS_FILE);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            if (channel.size() < SIZE) {
+                throw new IOException("invalid statistics file: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, SIZE);
+            checkMagic(path, buffer);
+            return new QueueStats(path, buffer.order(ByteOrder.LITTLE_ENDIAN), null);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Open the statistics of the given queue for updating, creating the file
+     * if needed.
+     *
+     * @param queue queue to maintain statistics for
+     * @return queue statistics
+     * @throws IOException if any file operation fails
+     */
+    static QueueStats create(final QueueSimple queue) throws IOException {
+        Path path = Paths.get(queue.getQueuePath() + File.separator + STATS_FILE);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                                               StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE);
+        boolean success = false;
+        try {
+            synchronized (monitor(path)) {
+                FileLock lock = channel.lock();
+                try {
+                    if (channel.size() < SIZE) {
+                        // first user: initialize the file
+                        ByteBuffer init =
+                            ByteBuffer.allocate(SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                        init.put(MAGIC).putLong(INITIAL, queue.count());
+                        init.rewind();
+                        while (init.hasRemaining()) {
+                            channel.write(init, init.position());
+                        }
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+            checkMagic(path, buffer);
+            success = true;
+            // the channel is only kept open to lock the file when needed
+            return new QueueStats(path, buffer.order(ByteOrder.LITTLE_ENDIAN),
+                                  GET_AND_ADD == null ? channel : null);
+        } finally {
+            if (!success || GET_AND_ADD != null) {
+                channel.close();
+            }
+        }
+    }
+
+    //
+    // updates
+    //
+
+    /**
+     * Update the statistics after the given operation (see
+     * {@link QueueEvents}) with the associated value: the size for adds and
+     * gets, 1 for successful locks and 0 for failed ones.
+     */
+    void update(final int type, final long value) {
+        if (type == QueueEvents.ADD) {
+            update(ADDS, 1, BYTES_IN, value);
+        } else if (type == QueueEvents.GET) {
+            update(BYTES_OUT, value, LAST_ACTIVITY, 0);
+        } else if (type == QueueEvents.LOCK) {
+            update(value != 0 ? LOCKS : LOCK_FAILURES, 1, LAST_ACTIVITY, 0);
+        } else if (type == QueueEvents.REMOVE) {
+            update(REMOVES, 1, LAST_ACTIVITY, 0);
+        }
+    }
+
+    //
+    // reader API
+    //
+
+    /**
+     * Get the number of elements in the queue when the statistics file was
+     * created.
+     *
+     * @return number of elements
+     */
+    public long getInitialElements() {
+        return get(INITIAL);
+    }
+
+    /**
+     * Get the number of elements added.
+     *
+     * @return number of elements
+     */
+    public long getAdds() {
+        return get(ADDS);
+    }
+
+    /**
+     * Get the number of elements removed.
+     *
+     * @return number of elements
+     */
+    public long getRemoves() {
+        return get(REMOVES);
+    }
+
+    /**
+     * Get the number of successful locks.
+     *
+     * @return number of locks
+     */
+    public long getLocks() {
+        return get(LOCKS);
+    }
+
+    /**
+     * Get the number of failed locks, typically because another consumer
+     * locked the element first.
+     *
+     * @return number of locks
+     */
+    public long getLockFailures() {
+        return get(LOCK_FAILURES);
+    }
+
+    /**
+     * Get the number of bytes added.
+     *
+     * @return number of bytes
+     */
+    public long getBytesIn() {
+        return get(BYTES_IN);
+    }
+
+    /**
+     * Get the number of bytes read.
+     *
+     * @return number of bytes
+     */
+    public long getBytesOut() {
+        return get(BYTES_OUT);
+    }
+
+    /**
+     * Get the time of the last activity.
+     *
+     * @return time (in milliseconds since the Epoch), 0 if none
+     */
+    public long getLastActivity() {
+        return get(LAST_ACTIVITY);
+    }
+
+    /**
+     * Get the approximate number of elements in the queue. This ignores the
+     * elements expired by purge() and the changes made by processes not
+     * maintaining the statistics.
+     *
+     * @return number of elements
+     */
+    public long getDepth() {
+        return Math.max(getInitialElements() + getAdds() - getRemoves(), 0);
+    }
+
+    @Override
+    public String toString() {
+        return path + " (adds=" + getAdds() + ", removes=" + getRemoves()
+            + ", locks=" + getLocks() + ", lockFailures=" + getLockFailures()
+            + ", bytesIn=" + getBytesIn() + ", bytesOut=" + getBytesOut()
+            + ", depth=" + getDepth() + ")";
+    }
+
+    //
+    // helper methods
+    //
+
+    /**
+     * Return the monitor to hold while locking the given file.
+     */
+    private static Object monitor(final Path path) {
+        Path key = path.toAbsolutePath().normalize();
+        Object monitor = MONITORS.get(key);
+        if (monitor == null) {
+            Object created = new Object();
+            monitor = MONITORS.putIfAbsent(key, created);
+            if (monitor == null) {
+                monitor = created;
+            }
+        }
+        return monitor;
+    }
+
+    private static void checkMagic(final Path path, final ByteBuffer buffer)
+        throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        buffer.duplicate().get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("invalid statistics file: " + path);
+        }
+    }
+
+    /**
+     * Return the method handles of the given access modes of a long view
+     * VarHandle on byte buffers, or nulls if VarHandle is not available.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static MethodHandle[] varHandles(final String... modes) {
+        MethodHandle[] result = new MethodHandle[modes.length];
+        try {
+            Method view = MethodHandles.class.getMethod("byteBufferViewVarHandle",
+                                                        Class.class, ByteOrder.class);
+            Object handle = view.invoke(null, long[].class, ByteOrder.LITTLE_ENDIAN);
+            Class accessMode = Class.forName("java.lang.invoke.VarHandle$AccessMode");
+            Method toMethodHandle = handle.getClass().getMethod("toMethodHandle", accessMode);
+            for (int i = 0; i < modes.length; i++) {
+                result[i] = (MethodHandle) toMethodHandle.invoke(
+                    handle, Enum.valueOf(accessMode, modes[i]));
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // before Java 9: the file will be locked instead
+            Arrays.fill(result, null);
+        }
+        return result;
+    }
+
+    private long get(final int index) {
+        if (GET == null) {
+            return buffer.getLong(index);
+        }
+        try {
+            return (long) GET.invokeExact(buffer, index);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Atomically add the given values to the given counters and record the
+     * activity time.
+     */
+    private void update(final int index1, final long delta1, final int index2,
+                        final long delta2) {
+        long now = System.currentTimeMillis();
+        if (GET_AND_ADD == null) {
+            updateLocked(index1, delta1, index2, delta2, now);
+            return;
+        }
+        try {
+            long ignored = (long) GET_AND_ADD.invokeExact(buffer, index1, delta1);
+            if (index2 != LAST_ACTIVITY) {
+                ignored = (long) GET_AND_ADD.invokeExact(buffer, index2, delta2);
+            }
+            SET.invokeExact(buffer, LAST_ACTIVITY, now);
+        } catch (Throwable e) {
+            // statistics are best effort
+            logger.warn("cannot update {}: {}", path, e.toString());
+        }
+    }
+
+    private void updateLocked(final int index1, final long delta1, final int index2,
+                              final long delta2, final long now) {
+        synchronized (monitor(path)) {
+            try {
+                FileLock lock = channel.lock();
+                try {
+                    buffer.putLong(index1, buffer.getLong(index1) + delta1);
+                    if (index2 != LAST_ACTIVITY) {
+                        buffer.putLong(index2, buffer.getLong(index2) + delta2);
+                    }
+                    buffer.putLong(LAST_ACTIVITY, now);
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException | RuntimeException e) {
+                // statistics are best effort
+                logger.warn("cannot update {}: {}", path, e.toString());
+            }
+        }
+    }
+
+}
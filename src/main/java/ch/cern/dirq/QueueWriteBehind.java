@@ -0,0 +1,405 @@
+package ch.cern.dirq;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * QueueWriteBehind - directory based queue with an in-memory write buffer.
+ * <br>
+ * The goal of this module is to decouple the producers from the filesystem
+ * latency: added elements are first stored in a bounded in-memory buffer
+ * (a {@link ch.cern.dirq.QueueMemory}) and a background thread moves them,
+ * in batches, to the backing {@link ch.cern.dirq.QueueSimple}. Once moved,
+ * the elements are normal elements of the backing queue and can be used by
+ * any other process.
+ * <br>
+ * The buffer is flushed at least every flush interval, which bounds how much
+ * data would be lost if the process died, and as soon as it is half full.
+ * If the background thread does not keep up, adding blocks until the buffer
+ * is back to half full (see {@link ch.cern.dirq.OverflowPolicy#BLOCK}). Only
+ * the elements that can be flushed use the buffer capacity: the ones locked
+ * by consumers do not. The
+ * flush() method is a barrier: when it returns, all the elements added before
+ * have been given to the backing queue, except the ones locked by consumers.
+ * The close() method stops the background thread and flushes the buffer.
+ * <br>
+ * The consumers of this queue see the elements of the buffer and of the
+ * backing queue merged in name (i.e. time) order. An element still in the
+ * buffer can be
+ * locked, retrieved and removed without ever touching the filesystem, it is
+ * not flushed while it is locked. Such an element does not have a path so
+ * getPath() will throw an <code>UnsupportedOperationException</code>
+ * exception for it. Note that the name of an element changes when it is
+ * flushed.
+ * <br>
+ * Please refer to {@link ch.cern.dirq.Queue} for general information about
+ * directory queues.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+
+public class QueueWriteBehind implements Queue, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueueWriteBehind.class);
+    private static final int LOW_WATERMARK = 50;
+
+    private final QueueSimple backing;
+    private final QueueMemory buffer;
+    private final long flushInterval;
+    private final int flushThreshold;
+    private final Object flushLock = new Object();
+    private final Object signal = new Object();
+    private final Thread flusher;
+    private volatile boolean closed;
+    private boolean flushRequested;
+
+    /**
+     * Constructor for a write behind queue.
+     *
+     * @param backing queue where the elements are eventually stored
+     * @param capacity maximum number of elements in the buffer
+     * @param flushInterval maximum time between flushes (in milliseconds)
+     */
+    public QueueWriteBehind(final QueueSimple backing, final int capacity,
+                            final long flushInterval) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+        if (flushInterval <= 0) {
+            throw new IllegalArgumentException("invalid flush interval: " + flushInterval);
+        }
+        this.backing = backing;
+        this.buffer = new QueueMemory(false);
+        this.buffer.setMaxElements(capacity).setLowWatermark(LOW_WATERMARK)
+            .setOverflowPolicy(OverflowPolicy.BLOCK);
+        this.flushInterval = flushInterval;
+        this.flushThreshold = Math.max(capacity / 2, 1);
+        this.flusher = new Thread(new Flusher(), "dirq-write-behind-" + backing.getId());
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    //
+    // Queue interface implementation
+    //
+
+    @Override
+    public String getQueuePath() {
+        return backing.getQueuePath();
+    }
+
+    @Override
+    public String getId() {
+        return backing.getId();
+    }
+
+    @Override
+    public String add(final String data) throws IOException {
+        checkOpen();
+        wakeUpIfNeeded();
+        String name = buffer.add(data);
+        wakeUpIfNeeded();
+        return name;
+    }
+
+    @Override
+    public String add(final byte[] data) throws IOException {
+        checkOpen();
+        wakeUpIfNeeded();
+        String name = buffer.add(data);
+        wakeUpIfNeeded();
+        return name;
+    }
+
+    @Override
+    public String addPath(final String path) throws IOException {
+        // the data is already in a file, there is nothing to gain in buffering it
+        return backing.addPath(path);
+    }
+
+    @Override
+    public String get(final String name) throws IOException {
+        if (buffer.contains(name)) {
+            return buffer.get(name);
+        }
+        return backing.get(name);
+    }
+
+    @Override
+    public byte[] getAsByteArray(final String name) throws IOException {
+        if (buffer.contains(name)) {
+            return buffer.getAsByteArray(name);
+        }
+        return backing.getAsByteArray(name);
+    }
+
+    @Override
+    public String getPath(final String name) {
+        if (buffer.contains(name)) {
+            throw new UnsupportedOperationException("element not flushed yet: " + name);
+        }
+        return backing.getPath(name);
+    }
+
+    @Override
+    public boolean lock(final String name) throws IOException {
+        return lock(name, true);
+    }
+
+    @Override
+    public boolean lock(final String name, final boolean permissive) throws IOException {
+        if (buffer.contains(name)) {
+            return buffer.lock(name, permissive);
+        }
+        return backing.lock(name, permissive);
+    }
+
+    @Override
+    public boolean unlock(final String name) throws IOException {
+        return unlock(name, false);
+    }
+
+    @Override
+    public boolean unlock(final String name, final boolean permissive) throws IOException {
+        if (buffer.contains(name)) {
+            return buffer.unlock(name, permissive);
+        }
+        return backing.unlock(name, permissive);
+    }
+
+    @Override
+    public void remove(final String name) throws IOException {
+        if (buffer.contains(name)) {
+            buffer.remove(name);
+        } else {
+            backing.remove(name);
+        }
+    }
+
+    @Override
+    public int count() {
+        return buffer.count() + backing.count();
+    }
+
+    @Override
+    public void purge() throws IOException {
+        buffer.purge();
+        backing.purge();
+    }
+
+    @Override
+    public void purge(final int maxLock) throws IOException {
+        buffer.purge(maxLock);
+        backing.purge(maxLock);
+    }
+
+    @Override
+    public void purge(final int maxLock, final int maxTemp) throws IOException {
+        buffer.purge(maxLock, maxTemp);
+        backing.purge(maxLock, maxTemp);
+    }
+
+    //
+    // QueueWriteBehind specific methods
+    //
+
+    /**
+     * Get the backing queue.
+     *
+     * @return backing queue
+     */
+    public QueueSimple getBacking() {
+        return backing;
+    }
+
+    /**
+     * Get the number of elements in the buffer, i.e. not flushed yet.
+     *
+     * @return number of buffered elements
+     */
+    public int getBuffered() {
+        return buffer.count();
+    }
+
+    /**
+     * Flush the buffer, i.e. give all its unlocked elements to the backing
+     * queue.
+     *
+     * @throws IOException if any file operation fails
+     */
+    public void flush() throws IOException {
+        synchronized (flushLock) {
+            for (String name: buffer) {
+                if (!buffer.lock(name)) {
+                    // locked by a consumer or already gone
+                    continue;
+                }
+                try {
+                    backing.add(buffer.getAsByteArray(name));
+                } catch (IOException e) {
+                    buffer.unlock(name, true);
+                    throw e;
+                }
+                buffer.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Stop the background thread and flush the buffer.
+     *
+     * @throws IOException if any file operation fails
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        if (buffer.count() > 0) {
+            logger.warn("{} locked elements not flushed in {}", buffer.count(),
+                        backing.getQueuePath());
+        }
+    }
+
+    //
+    // helper methods
+    //
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("queue closed: " + backing.getQueuePath());
+        }
+    }
+
+    private void wakeUpIfNeeded() {
+        if (buffer.count() >= flushThreshold) {
+            synchronized (signal) {
+                flushRequested = true;
+                signal.notifyAll();
+            }
+        }
+    }
+
+    //
+    // helper classes
+    //
+
+    /**
+     * Background task flushing the buffer periodically or on request.
+     */
+    private class Flusher implements Runnable {
+        public void run() {
+            while (!closed) {
+                synchronized (signal) {
+                    if (!flushRequested && !closed) {
+                        try {
+                            signal.wait(flushInterval);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    flushRequested = false;
+                }
+                try {
+                    flush();
+                } catch (IOException e) {
+                    logger.warn("cannot flush to {}: {}", backing.getQueuePath(),
+                                e.toString());
+                }
+            }
+        }
+    }
+
+    //
+    // iterator class
+    //
+
+    /**
+     * Iterator for the write behind queue, in name order.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return new QueueWriteBehindIterator(buffer.iterator(), backing.iterator());
+    }
+
+    /**
+     * Iterator for the write behind queue (private), merging the buffered
+     * elements and the ones of the backing queue.
+     */
+    private static class QueueWriteBehindIterator implements Iterator<String> {
+
+        private final Iterator<String> itBuffered;
+        private final Iterator<String> itBacking;
+        private String nextBuffered;
+        private String nextBacking;
+
+        /**
+         * Constructor for the write behind queue iterator.
+         *
+         * @param buffered iterator on the buffered elements
+         * @param backing iterator on the elements of the backing queue
+         */
+        QueueWriteBehindIterator(final Iterator<String> buffered,
+                                 final Iterator<String> backing) {
+            itBuffered = buffered;
+            itBacking = backing;
+        }
+
+        /**
+         * Returns true if the iteration has more elements.
+         */
+        @Override
+        public boolean hasNext() {
+            if (nextBuffered == null && itBuffered.hasNext()) {
+                nextBuffered = itBuffered.next();
+            }
+            if (nextBacking == null && itBacking.hasNext()) {
+                nextBacking = itBacking.next();
+            }
+            return nextBuffered != null || nextBacking != null;
+        }
+
+        /**
+         * Returns the next element in the iteration.
+         */
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String result;
+            if (nextBacking == null || nextBuffered != null
+                && QueueSimple.BASE_NAME_ORDER.compare(nextBuffered, nextBacking) < 0) {
+                result = nextBuffered;
+                nextBuffered = null;
+            } else {
+                result = nextBacking;
+                nextBacking = null;
+            }
+            return result;
+        }
+
+        /**
+         * Removes from the underlying collection the last element returned by this iterator.
+         */
+        @Override
+        public void remove() {
+        }
+
+    }
+
+}
@@ -0,0 +1,106 @@
+package ch.cern.dirq;
+
+/**
+ * Report of a queue startup recovery scan (see
+ * {@link ch.cern.dirq.QueueSimple#recover(int)}).
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public final class RecoveryReport {
+
+    private final int directories;
+    private final long elements;
+    private final long bytes;
+    private final int releasedLocks;
+    private final int removedTemporaries;
+    private final int untagged;
+    private final long duration;
+
+    RecoveryReport(final int directories, final long elements, final long bytes,
+                   final int releasedLocks, final int removedTemporaries,
+                   final int untagged, final long duration) {
+        this.directories = directories;
+        this.elements = elements;
+        this.bytes = bytes;
+        this.releasedLocks = releasedLocks;
+        this.removedTemporaries = removedTemporaries;
+        this.untagged = untagged;
+        this.duration = duration;
+    }
+
+    /**
+     * Get the number of intermediate directories scanned.
+     *
+     * @return number of directories
+     */
+    public int getDirectories() {
+        return directories;
+    }
+
+    /**
+     * Get the number of elements found.
+     *
+     * @return number of elements
+     */
+    public long getElements() {
+        return elements;
+    }
+
+    /**
+     * Get the number of bytes found, only computed if the queue has a
+     * maximum number of bytes.
+     *
+     * @return number of bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get the number of locks released because their owner was dead.
+     *
+     * @return number of released locks
+     */
+    public int getReleasedLocks() {
+        return releasedLocks;
+    }
+
+    /**
+     * Get the number of temporary elements removed because their owner was
+     * dead.
+     *
+     * @return number of removed temporary elements
+     */
+    public int getRemovedTemporaries() {
+        return removedTemporaries;
+    }
+
+    /**
+     * Get the number of volatile files without owner tag, left to purge().
+     *
+     * @return number of untagged volatile files
+     */
+    public int getUntagged() {
+        return untagged;
+    }
+
+    /**
+     * Get how long the scan took.
+     *
+     * @return duration (in milliseconds)
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d directories, %d elements, %d bytes, %d released locks, "
+                             + "%d removed temporaries, %d untagged in %d ms",
+                             directories, elements, bytes, releasedLocks,
+                             removedTemporaries, untagged, duration);
+    }
+
+}
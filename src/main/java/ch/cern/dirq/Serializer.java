@@ -0,0 +1,57 @@
+package ch.cern.dirq;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Serializer - conversion between objects and element data, used by
+ * {@link ch.cern.dirq.TypedQueue}.
+ * <br>
+ * A serializer writes directly to the channel of the element file and
+ * reads directly from it, so that no intermediate byte array is needed. An
+ * implementation working with streams can wrap the channels with
+ * {@link java.nio.channels.Channels#newOutputStream(WritableByteChannel)}
+ * and {@link java.nio.channels.Channels#newInputStream(ReadableByteChannel)}.
+ * <br>
+ * Some serializers are provided by {@link ch.cern.dirq.Serializers}.
+ *
+ * @param <T> type of the serialized objects
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public interface Serializer<T> {
+
+    /**
+     * Write the given object to the channel, which must not be closed.
+     *
+     * @param value object to be written
+     * @param channel channel of the element file
+     * @throws IOException if any file operation fails
+     */
+    void write(T value, WritableByteChannel channel) throws IOException;
+
+    /**
+     * Read an object from the channel, which must not be closed.
+     *
+     * @param channel channel of the element file
+     * @param size number of bytes of element data available in the channel
+     * @return object read
+     * @throws IOException if any file operation fails
+     */
+    T read(ReadableByteChannel channel, long size) throws IOException;
+
+    /**
+     * Return the number of bytes the given object will be written as, used
+     * for the capacity checks, or -1 if it is not known in advance.
+     *
+     * @param value object to be written
+     * @return size in bytes or -1
+     */
+    default long size(T value) {
+        return -1;
+    }
+
+}
@@ -0,0 +1,147 @@
+package ch.cern.dirq;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Serializers - the standard {@link ch.cern.dirq.Serializer} implementations.
+ * <br>
+ * The byte array and byte buffer serializers write the data as is, without
+ * any copy, and read it directly into the returned object. The string
+ * serializer encodes and decodes UTF-8 in chunks through a pooled direct
+ * buffer.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public final class Serializers {
+
+    private static final Serializer<String> STRING = new StringSerializer();
+    private static final Serializer<byte[]> BYTE_ARRAY = new ByteArraySerializer();
+    private static final Serializer<ByteBuffer> BYTE_BUFFER = new ByteBufferSerializer();
+
+    // this utility class cannot be instantiated
+    private Serializers() {
+    }
+
+    /**
+     * Return the UTF-8 string serializer.
+     *
+     * @return serializer
+     */
+    public static Serializer<String> string() {
+        return STRING;
+    }
+
+    /**
+     * Return the byte array serializer.
+     *
+     * @return serializer
+     */
+    public static Serializer<byte[]> byteArray() {
+        return BYTE_ARRAY;
+    }
+
+    /**
+     * Return the byte buffer serializer: it writes the remaining bytes of the
+     * buffer, without changing its position, and reads into a new heap buffer
+     * ready to be read.
+     *
+     * @return serializer
+     */
+    public static Serializer<ByteBuffer> byteBuffer() {
+        return BYTE_BUFFER;
+    }
+
+    //
+    // helper methods
+    //
+
+    private static void readFully(final ReadableByteChannel channel, final ByteBuffer buffer)
+        throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("unexpected end of data");
+            }
+        }
+    }
+
+    private static int checkSize(final long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("element too big: " + size);
+        }
+        return (int) size;
+    }
+
+    //
+    // helper classes
+    //
+
+    /**
+     * UTF-8 string serializer.
+     */
+    private static final class StringSerializer implements Serializer<String> {
+        public void write(final String value, final WritableByteChannel channel)
+            throws IOException {
+            FileUtils.writeToChannel(channel, value);
+        }
+
+        public String read(final ReadableByteChannel channel, final long size)
+            throws IOException {
+            return FileUtils.readFromChannel(channel, size);
+        }
+    }
+
+    /**
+     * Byte array serializer.
+     */
+    private static final class ByteArraySerializer implements Serializer<byte[]> {
+        public void write(final byte[] value, final WritableByteChannel channel)
+            throws IOException {
+            FileUtils.writeToChannel(channel, value);
+        }
+
+        public byte[] read(final ReadableByteChannel channel, final long size)
+            throws IOException {
+            byte[] result = new byte[checkSize(size)];
+            readFully(channel, ByteBuffer.wrap(result));
+            return result;
+        }
+
+        @Override
+        public long size(final byte[] value) {
+            return value.length;
+        }
+    }
+
+    /**
+     * Byte buffer serializer.
+     */
+    private static final class ByteBufferSerializer implements Serializer<ByteBuffer> {
+        public void write(final ByteBuffer value, final WritableByteChannel channel)
+            throws IOException {
+            ByteBuffer buffer = value.duplicate();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        public ByteBuffer read(final ReadableByteChannel channel, final long size)
+            throws IOException {
+            ByteBuffer result = ByteBuffer.allocate(checkSize(size));
+            readFully(channel, result);
+            result.flip();
+            return result;
+        }
+
+        @Override
+        public long size(final ByteBuffer value) {
+            return value.remaining();
+        }
+    }
+
+}
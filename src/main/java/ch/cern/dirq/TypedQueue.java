@@ -0,0 +1,147 @@
+package ch.cern.dirq;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * TypedQueue - a {@link ch.cern.dirq.QueueSimple} holding objects.
+ * <br>
+ * The objects are converted by a {@link ch.cern.dirq.Serializer} that
+ * writes directly into the new element files and reads directly from them,
+ * without intermediate byte arrays. If the queue uses metadata headers (see
+ * {@link QueueSimple#setMetadataHeader(boolean)}), they are handled
+ * transparently.
+ * <br>
+ * Here is how to use it:
+ * <pre>
+ * TypedQueue&lt;String&gt; tq =
+ *     new TypedQueue&lt;String&gt;(new QueueSimple(path), Serializers.string());
+ * tq.add("hello world");
+ * for (String name: tq) {
+ *     if (!tq.lock(name)) {
+ *         continue;
+ *     }
+ *     String data = tq.get(name);
+ *     // one could use tq.unlock(name) to only browse the queue...
+ *     tq.remove(name);
+ * }
+ * </pre>
+ *
+ * @param <T> type of the queued objects
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public class TypedQueue<T> implements Iterable<String> {
+
+    private final QueueSimple queue;
+    private final Serializer<T> serializer;
+
+    /**
+     * Constructor for a typed queue.
+     *
+     * @param queue underlying queue
+     * @param serializer serializer of the queued objects
+     */
+    public TypedQueue(final QueueSimple queue, final Serializer<T> serializer) {
+        this.queue = queue;
+        this.serializer = serializer;
+    }
+
+    /**
+     * Get the underlying queue.
+     *
+     * @return underlying queue
+     */
+    public QueueSimple getQueue() {
+        return queue;
+    }
+
+    /**
+     * Get the serializer.
+     *
+     * @return serializer
+     */
+    public Serializer<T> getSerializer() {
+        return serializer;
+    }
+
+    /**
+     * Add an object to the queue.
+     *
+     * @param value object to be added
+     * @return element name (as <i>directory_name</i>/<i>file_name</i>)
+     * @throws IOException if any file operation fails
+     */
+    public String add(final T value) throws IOException {
+        return queue.add(new ElementWriter() {
+            public void write(final FileChannel channel) throws IOException {
+                serializer.write(value, channel);
+            }
+        }, serializer.size(value), 0L, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Get the object of a locked element.
+     *
+     * @param name name of the element
+     * @return object read
+     * @throws IOException if any file operation fails
+     */
+    public T get(final String name) throws IOException {
+        return queue.get(name, serializer);
+    }
+
+    /**
+     * Lock an element.
+     *
+     * @param name name of the element to be locked
+     * @return true if the element has been locked
+     * @throws IOException if any file operation fails
+     */
+    public boolean lock(final String name) throws IOException {
+        return queue.lock(name);
+    }
+
+    /**
+     * Unlock an element.
+     *
+     * @param name name of the element to be unlocked
+     * @return true if the element has been unlocked
+     * @throws IOException if any file operation fails
+     */
+    public boolean unlock(final String name) throws IOException {
+        return queue.unlock(name);
+    }
+
+    /**
+     * Remove a locked element from the queue.
+     *
+     * @param name name of the element to be removed
+     * @throws IOException if any file operation fails
+     */
+    public void remove(final String name) throws IOException {
+        queue.remove(name);
+    }
+
+    /**
+     * Return the number of elements in the queue.
+     *
+     * @return number of elements in the queue
+     */
+    public int count() {
+        return queue.count();
+    }
+
+    /**
+     * Iterator over the element names of the queue.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return queue.iterator();
+    }
+
+}
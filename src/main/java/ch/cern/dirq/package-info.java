@@ -2,7 +2,9 @@
  * Directory based queue.
  * For base information about the directory queue concept
  * visit {@link ch.cern.dirq.Queue} page followed by
- * {@link ch.cern.dirq.QueueSimple} and {@link ch.cern.dirq.QueueNull}.
+ * {@link ch.cern.dirq.QueueSimple}, {@link ch.cern.dirq.QueueMemory},
+ * {@link ch.cern.dirq.QueueWriteBehind}, {@link ch.cern.dirq.TypedQueue} and
+ * {@link ch.cern.dirq.QueueNull}.
  *
  * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
  * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
@@ -0,0 +1,407 @@
+package ch.cern.dirq;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+
+/**
+ * Optional native file operations.
+ * <br>
+ * This is the Linux version, using the Foreign Function and Memory API to
+ * call the C library. It is only available on x86_64 and aarch64 (where the
+ * value of O_TMPFILE is known) and with /proc mounted (to link anonymous
+ * files without privileges). If O_TMPFILE turns out to be unsupported by the
+ * filesystem, the native file operations are disabled and the callers fall
+ * back to the standard NIO code.
+ * <br>
+ * This is a private class to be used only by the directory queue classes.
+ * Its API can change at any time without any notice.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+@SuppressWarnings("restricted")
+final class NativeIO {
+
+    private static final int O_RDONLY = 0;
+    private static final int O_WRONLY = 01;
+    private static final int O_TMPFILE = 020200000;
+    private static final int AT_FDCWD = -100;
+    private static final int AT_SYMLINK_FOLLOW = 0x400;
+    private static final int SEEK_END = 2;
+    private static final int POSIX_FADV_DONTNEED = 4;
+
+    private static final int ENOENT = 2;
+    private static final int EINTR = 4;
+    private static final int EEXIST = 17;
+    private static final int EISDIR = 21;
+    private static final int EINVAL = 22;
+    private static final int EOPNOTSUPP = 95;
+
+    private static final StructLayout STATE_LAYOUT;
+    private static final VarHandle ERRNO;
+    private static final MethodHandle OPEN;
+    private static final MethodHandle WRITE;
+    private static final MethodHandle LINKAT;
+    private static final MethodHandle CLOSE;
+    private static final MethodHandle FADVISE;
+    private static final MethodHandle LSEEK;
+    private static final MethodHandle PREAD;
+
+    private static volatile boolean available;
+
+    static {
+        StructLayout layout = null;
+        VarHandle errno = null;
+        MethodHandle[] handles = new MethodHandle[7];
+        String arch = System.getProperty("os.arch");
+        if ("Linux".equals(System.getProperty("os.name"))
+            && ("amd64".equals(arch) || "aarch64".equals(arch))
+            && Files.isDirectory(Paths.get("/proc/self/fd"))) {
+            try {
+                Linker linker = Linker.nativeLinker();
+                SymbolLookup libc = linker.defaultLookup();
+                Linker.Option capture = Linker.Option.captureCallState("errno");
+                layout = Linker.Option.captureStateLayout();
+                errno = layout.varHandle(MemoryLayout.PathElement.groupElement("errno"));
+                handles[0] = linker.downcallHandle(libc.find("open").orElseThrow(),
+                    FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS,
+                                          ValueLayout.JAVA_INT, ValueLayout.JAVA_INT),
+                    capture, Linker.Option.firstVariadicArg(2));
+                handles[1] = linker.downcallHandle(libc.find("write").orElseThrow(),
+                    FunctionDescriptor.of(ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT,
+                                          ValueLayout.ADDRESS, ValueLayout.JAVA_LONG),
+                    capture);
+                handles[2] = linker.downcallHandle(libc.find("linkat").orElseThrow(),
+                    FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT,
+                                          ValueLayout.ADDRESS, ValueLayout.JAVA_INT,
+                                          ValueLayout.ADDRESS, ValueLayout.JAVA_INT),
+                    capture);
+                handles[3] = linker.downcallHandle(libc.find("close").orElseThrow(),
+                    FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT));
+                handles[4] = linker.downcallHandle(libc.find("posix_fadvise").orElseThrow(),
+                    FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT,
+                                          ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG,
+                                          ValueLayout.JAVA_INT));
+                handles[5] = linker.downcallHandle(libc.find("lseek").orElseThrow(),
+                    FunctionDescriptor.of(ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT,
+                                          ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT),
+                    capture);
+                handles[6] = linker.downcallHandle(libc.find("pread").orElseThrow(),
+                    FunctionDescriptor.of(ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT,
+                                          ValueLayout.ADDRESS, ValueLayout.JAVA_LONG,
+                                          ValueLayout.JAVA_LONG),
+                    capture);
+                available = true;
+            } catch (RuntimeException | LinkageError e) {
+                // for instance native access not enabled: use the fallback
+                available = false;
+            }
+        }
+        STATE_LAYOUT = layout;
+        ERRNO = errno;
+        OPEN = handles[0];
+        WRITE = handles[1];
+        LINKAT = handles[2];
+        CLOSE = handles[3];
+        FADVISE = handles[4];
+        LSEEK = handles[5];
+        PREAD = handles[6];
+    }
+
+    // this utility class cannot be instantiated
+    private NativeIO() {
+    }
+
+    /**
+     * Check if the native file operations are available.
+     *
+     * @return true if available
+     */
+    static boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * Create an anonymous file (O_TMPFILE) in the given directory and write
+     * the given data to it.
+     *
+     * @param dir directory path
+     * @param data data to be written
+     * @param mode numerical permissions of the file
+     * @return file descriptor or -1 if not supported
+     * @throws java.nio.file.NoSuchFileException if the directory is missing
+     * @throws IOException if any other file operation fails
+     */
+    static int createAnonymous(final String dir, final byte[] data, final int mode)
+        throws IOException {
+        if (!available) {
+            return -1;
+        }
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment state = arena.allocate(STATE_LAYOUT);
+            int fd = (int) OPEN.invokeExact(state, arena.allocateFrom(dir),
+                                            O_TMPFILE | O_WRONLY, mode);
+            if (fd < 0) {
+                int error = errno(state);
+                if (error == EOPNOTSUPP || error == EISDIR || error == EINVAL) {
+                    // O_TMPFILE not supported by the kernel or the filesystem
+                    available = false;
+                    return -1;
+                }
+                if (error == ENOENT) {
+                    throw new NoSuchFileException(dir);
+                }
+                throw new IOException("cannot open(O_TMPFILE) " + dir + ": errno " + error);
+            }
+            try {
+                MemorySegment buffer = arena.allocateFrom(ValueLayout.JAVA_BYTE, data);
+                long done = 0;
+                while (done < data.length) {
+                    long count = (long) WRITE.invokeExact(state, fd,
+                        buffer.asSlice(done), data.length - done);
+                    if (count < 0) {
+                        if (errno(state) == EINTR) {
+                            continue;
+                        }
+                        throw new IOException("cannot write() in " + dir + ": errno "
+                                              + errno(state));
+                    }
+                    done += count;
+                }
+            } catch (Throwable t) {
+                close(fd);
+                throw t;
+            }
+            return fd;
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IOException(t);
+        }
+    }
+
+    /**
+     * Give a name to an anonymous file (linkat).
+     *
+     * @param fd file descriptor returned by createAnonymous()
+     * @param path path of the new name
+     * @return false if the path already exists
+     * @throws IOException if any other file operation fails
+     */
+    static boolean link(final int fd, final String path) throws IOException {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment state = arena.allocate(STATE_LAYOUT);
+            // linking via /proc does not need CAP_DAC_READ_SEARCH, unlike AT_EMPTY_PATH
+            int result = (int) LINKAT.invokeExact(state, AT_FDCWD,
+                arena.allocateFrom("/proc/self/fd/" + fd), AT_FDCWD,
+                arena.allocateFrom(path), AT_SYMLINK_FOLLOW);
+            if (result == 0) {
+                return true;
+            }
+            int error = errno(state);
+            if (error == EEXIST) {
+                return false;
+            }
+            if (error == ENOENT) {
+                throw new NoSuchFileException(path);
+            }
+            throw new IOException("cannot linkat() " + path + ": errno " + error);
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IOException(t);
+        }
+    }
+
+    /**
+     * Close a file descriptor returned by createAnonymous().
+     *
+     * @param fd file descriptor
+     */
+    static void close(final int fd) {
+        try {
+            int result = (int) CLOSE.invokeExact(fd);
+        } catch (Throwable t) {
+            // nothing sensible can be done
+        }
+    }
+
+    /**
+     * Read a whole file and tell the kernel that its data will not be needed
+     * anymore (posix_fadvise with POSIX_FADV_DONTNEED on the same descriptor).
+     *
+     * @param path file path
+     * @return bytes or null if not supported
+     * @throws java.nio.file.NoSuchFileException if the file is missing
+     * @throws IOException if any other file operation fails
+     */
+    static byte[] readAll(final String path) throws IOException {
+        if (!available) {
+            return null;
+        }
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment state = arena.allocate(STATE_LAYOUT);
+            int fd = openRead(arena, state, path);
+            try {
+                MemorySegment data = read(arena, state, fd, path, Integer.MAX_VALUE);
+                return data.toArray(ValueLayout.JAVA_BYTE);
+            } finally {
+                dropAndClose(fd);
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IOException(t);
+        }
+    }
+
+    /**
+     * Read a whole file into the given buffer, starting at its position, and
+     * tell the kernel that its data will not be needed anymore.
+     *
+     * @param path file path
+     * @param dst destination buffer, its position is advanced
+     * @return number of bytes read or -1 if not supported
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     * @throws java.nio.file.NoSuchFileException if the file is missing
+     * @throws IOException if any other file operation fails
+     */
+    static int readAll(final String path, final ByteBuffer dst) throws IOException {
+        if (!available) {
+            return -1;
+        }
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment state = arena.allocate(STATE_LAYOUT);
+            int fd = openRead(arena, state, path);
+            try {
+                MemorySegment data = read(arena, state, fd, path, dst.remaining());
+                int length = (int) data.byteSize();
+                MemorySegment.copy(data, 0, MemorySegment.ofBuffer(dst), 0, length);
+                dst.position(dst.position() + length);
+                return length;
+            } finally {
+                dropAndClose(fd);
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IOException(t);
+        }
+    }
+
+    /**
+     * Read a whole file into a buffer taken from the given pool and tell the
+     * kernel that its data will not be needed anymore. The buffer is returned
+     * ready to be read.
+     *
+     * @param path file path
+     * @param pool buffer pool
+     * @return buffer or null if not supported
+     * @throws java.nio.file.NoSuchFileException if the file is missing
+     * @throws IOException if any other file operation fails
+     */
+    static ByteBuffer readAll(final String path, final FileUtils.BufferPool pool)
+        throws IOException {
+        if (!available) {
+            return null;
+        }
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment state = arena.allocate(STATE_LAYOUT);
+            int fd = openRead(arena, state, path);
+            try {
+                MemorySegment data = read(arena, state, fd, path, Integer.MAX_VALUE);
+                int length = (int) data.byteSize();
+                ByteBuffer buffer = pool.acquire(length);
+                MemorySegment.copy(data, 0, MemorySegment.ofBuffer(buffer), 0, length);
+                buffer.position(length);
+                buffer.flip();
+                return buffer;
+            } finally {
+                dropAndClose(fd);
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IOException(t);
+        }
+    }
+
+    // open a file for reading
+    private static int openRead(final Arena arena, final MemorySegment state,
+                                final String path)
+        throws Throwable {
+        int fd = (int) OPEN.invokeExact(state, arena.allocateFrom(path), O_RDONLY, 0);
+        if (fd < 0) {
+            int error = errno(state);
+            if (error == ENOENT) {
+                throw new NoSuchFileException(path);
+            }
+            throw new IOException("cannot open() " + path + ": errno " + error);
+        }
+        return fd;
+    }
+
+    // read a whole file into native memory, checking its size against the given maximum
+    private static MemorySegment read(final Arena arena, final MemorySegment state,
+                                      final int fd, final String path, final int max)
+        throws Throwable {
+        long size = (long) LSEEK.invokeExact(state, fd, 0L, SEEK_END);
+        if (size < 0) {
+            throw new IOException("cannot lseek() " + path + ": errno " + errno(state));
+        }
+        if (size > max) {
+            if (max == Integer.MAX_VALUE) {
+                throw new IOException("file too big: " + path);
+            }
+            throw new BufferOverflowException();
+        }
+        MemorySegment buffer = arena.allocate(Math.max(size, 1L));
+        long done = 0;
+        while (done < size) {
+            long count = (long) PREAD.invokeExact(state, fd, buffer.asSlice(done),
+                                                  size - done, done);
+            if (count < 0) {
+                if (errno(state) == EINTR) {
+                    continue;
+                }
+                throw new IOException("cannot pread() " + path + ": errno " + errno(state));
+            }
+            if (count == 0) {
+                // the file has been truncated meanwhile
+                break;
+            }
+            done += count;
+        }
+        return buffer.asSlice(0, done);
+    }
+
+    // drop the file data from the page cache (only a hint) and close the descriptor
+    private static void dropAndClose(final int fd) {
+        try {
+            int result = (int) FADVISE.invokeExact(fd, 0L, 0L, POSIX_FADV_DONTNEED);
+        } catch (Throwable t) {
+            // this is only a hint
+        }
+        close(fd);
+    }
+
+    private static int errno(final MemorySegment state) {
+        return (int) ERRNO.get(state, 0L);
+    }
+
+}
@@ -0,0 +1,54 @@
+package ch.cern.dirq;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ch.cern.dirq.BucketSizer}.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public class BucketSizerTest {
+
+    /**
+     * Test that quiet queues use the maximum bucket length.
+     */
+    @Test
+    public void quiet() {
+        BucketSizer sizer = new BucketSizer(100);
+        Assert.assertEquals(960, sizer.bucketStart(1000, 1000, 60));
+        Assert.assertEquals(960, sizer.bucketStart(1010, 1010, 60));
+        Assert.assertEquals(1020, sizer.bucketStart(1030, 1030, 60));
+        Assert.assertEquals(60, sizer.length(60));
+    }
+
+    /**
+     * Test that bursts use shorter buckets, without going back in time.
+     */
+    @Test
+    public void burst() {
+        BucketSizer sizer = new BucketSizer(100);
+        for (int i = 0; i < 1000; i++) {
+            sizer.bucketStart(1000, 1000, 60);
+        }
+        Assert.assertEquals(1, sizer.length(60));
+        Assert.assertEquals(1000, sizer.bucketStart(1000, 1000, 60));
+        Assert.assertEquals(1001, sizer.bucketStart(1001, 1001, 60));
+        // after a long quiet period, the bucket grows again but never goes back
+        Assert.assertEquals(1001, sizer.bucketStart(1010, 1010, 60));
+        Assert.assertEquals(1020, sizer.bucketStart(1021, 1021, 60));
+    }
+
+    /**
+     * Test that delayed elements do not move the current bucket.
+     */
+    @Test
+    public void delayed() {
+        BucketSizer sizer = new BucketSizer(1000);
+        Assert.assertEquals(1980, sizer.bucketStart(2000, 1000, 60));
+        Assert.assertEquals(960, sizer.bucketStart(1000, 1000, 60));
+    }
+
+}
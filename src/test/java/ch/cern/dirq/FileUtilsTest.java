@@ -2,11 +2,16 @@ package ch.cern.dirq;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Map;
 
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -74,6 +79,86 @@ public class FileUtilsTest {
         Assert.assertEquals(7, file.length());
     }
 
+    //
+    // Test the UTF-8 length computation
+    //
+    @Test
+    public void testUtf8Length() {
+        String[] strings = {
+            "", "abc", "h\u00e9llo", "\u20ac", "\ud83d\ude00 x", "abc\ud83d", "\ude00\ud83d",
+        };
+        for (String data: strings) {
+            Assert.assertEquals(data.getBytes(StandardCharsets.UTF_8).length,
+                                FileUtils.utf8Length(data));
+        }
+    }
+
+    //
+    // Test chunked string encoding
+    //
+    @Test
+    public void testWriteBigString() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 200000) {
+            sb.append("Hell\u00f6 W\u00f8rld \ud83d\ude00 ");
+        }
+        String data = sb.toString();
+        String path = tempPath() + File.separator + "testWriteBigString";
+        FileUtils.writeToFile(path, data);
+        Assert.assertEquals(data, FileUtils.readToString(path));
+        // malformed input is replaced as with getBytes()
+        String malformed = "abc\ud83d";
+        FileUtils.writeToFile(path, malformed);
+        Assert.assertTrue(Arrays.equals(malformed.getBytes(StandardCharsets.UTF_8),
+                                        FileUtils.readToByteArray(path)));
+    }
+
+    //
+    // Test reading into buffers
+    //
+    @Test
+    public void testReadToBuffer() throws IOException {
+        byte[] data = { 0x20, 0x30, 0x40, 0x50, 0x00, 0x32, 0x3F };
+        String path = tempPath() + File.separator + "testReadToBuffer";
+        FileUtils.writeToFile(path, data);
+        ByteBuffer buffer = ByteBuffer.allocate(10);
+        buffer.put((byte) 0x01);
+        Assert.assertEquals(7, FileUtils.readToBuffer(Paths.get(path), buffer));
+        Assert.assertEquals(8, buffer.position());
+        byte[] array = new byte[9];
+        Assert.assertEquals(7, FileUtils.readToByteArray(Paths.get(path), array, 2));
+        Assert.assertTrue(Arrays.equals(data, Arrays.copyOfRange(array, 2, 9)));
+        try {
+            FileUtils.readToByteArray(Paths.get(path), array, 3);
+            Assert.fail("reading into a too small array should fail");
+        } catch (BufferOverflowException e) {
+            // expected
+        }
+    }
+
+    //
+    // Test buffer pool
+    //
+    @Test
+    public void testBufferPool() throws IOException {
+        byte[] data = { 0x20, 0x30, 0x40, 0x50, 0x00, 0x32, 0x3F };
+        String path = tempPath() + File.separator + "testBufferPool";
+        FileUtils.writeToFile(path, data);
+        FileUtils.BufferPool pool = new FileUtils.BufferPool(1000, 2);
+        ByteBuffer buffer = FileUtils.readToPooledBuffer(Paths.get(path), pool);
+        Assert.assertEquals(7, buffer.remaining());
+        byte[] read = new byte[7];
+        buffer.get(read);
+        Assert.assertTrue(Arrays.equals(data, read));
+        pool.release(buffer);
+        // the same buffer is reused for the next read
+        Assert.assertSame(buffer, FileUtils.readToPooledBuffer(Paths.get(path), pool));
+        ByteBuffer big = pool.acquire(700);
+        Assert.assertEquals(1024, big.capacity());
+        Assert.assertEquals(700, big.limit());
+        Assert.assertEquals(2000, pool.acquire(2000).capacity());
+    }
+
     //
     // Test read/write mix
     //
@@ -121,4 +206,34 @@ public class FileUtilsTest {
         Assert.assertNotNull(FileUtils.fileKey(path));
     }
 
+    //
+    // Test cross-device detection
+    //
+    @Test
+    public void testCrossDevice() throws IOException {
+        String path = tempPath() + File.separator + "testCrossDevice";
+        FileUtils.writeToFile(path, "");
+        Assert.assertFalse(FileUtils.isCrossDevice(Paths.get(path), Paths.get(tempPath())));
+        Assume.assumeTrue(new File("/proc/self").exists());
+        Assert.assertTrue(FileUtils.isCrossDevice(Paths.get(path), Paths.get("/proc/self")));
+    }
+
+    //
+    // Test user defined attributes
+    //
+    @Test
+    public void testUserAttributes() throws IOException {
+        String path = tempPath() + File.separator + "testUserAttributes";
+        FileUtils.writeToFile(path, "");
+        Assume.assumeTrue(FileUtils.supportsUserAttributes(Paths.get(path)));
+        Assert.assertNull(FileUtils.readUserAttribute(Paths.get(path), "dirq.test"));
+        FileUtils.writeUserAttribute(Paths.get(path), "dirq.test", "W\u00f8rld");
+        Assert.assertEquals("W\u00f8rld",
+                            FileUtils.readUserAttribute(Paths.get(path), "dirq.test"));
+        FileUtils.writeUserAttribute(Paths.get(path), "other", "x");
+        Map<String, String> attrs = FileUtils.readUserAttributes(Paths.get(path), "dirq.");
+        Assert.assertEquals(1, attrs.size());
+        Assert.assertEquals("W\u00f8rld", attrs.get("test"));
+    }
+
 }
@@ -0,0 +1,174 @@
+package ch.cern.dirq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ch.cern.dirq.QueueArchive}.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public class QueueArchiveTest extends QueueTestBase {
+
+    private String qsPath;
+    private QueueSimple qsObject;
+
+    @Before
+    public void setUp() throws IOException {
+        qsPath = tempPath() + File.separator + "qs";
+        qsObject = new QueueSimple(qsPath);
+    }
+
+    /**
+     * Test an export followed by an import through a file.
+     */
+    @Test
+    public void exportImport() throws IOException {
+        byte[] big = new byte[200000];
+        Arrays.fill(big, (byte) 'x');
+        qsObject.add("first");
+        qsObject.add(big);
+        qsObject.add("");
+        String locked = qsObject.add("locked");
+        Assert.assertTrue(qsObject.lock(locked));
+        String archive = tempPath() + File.separator + "archive";
+        FileChannel out = FileChannel.open(Paths.get(archive),
+            StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            Assert.assertEquals(3, QueueArchive.export(qsObject, out, true));
+        } finally {
+            out.close();
+        }
+        QueueSimple copy = new QueueSimple(tempPath() + File.separator + "copy");
+        FileChannel in = FileChannel.open(Paths.get(archive), StandardOpenOption.READ);
+        try {
+            Assert.assertEquals(3, QueueArchive.importFrom(copy, in, true));
+        } finally {
+            in.close();
+        }
+        Assert.assertEquals(3, copy.count());
+        // the new names may not sort like the old ones within a second
+        Set<String> found = new HashSet<String>();
+        for (String name: copy) {
+            Assert.assertTrue(copy.lock(name));
+            byte[] data = copy.getAsByteArray(name);
+            if (data.length == big.length) {
+                Assert.assertArrayEquals(big, data);
+                found.add("big");
+            } else {
+                found.add(new String(data, StandardCharsets.UTF_8));
+            }
+        }
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("first", "big", "")), found);
+    }
+
+    /**
+     * Test that the metadata and the visibility time survive an export
+     * followed by an import.
+     */
+    @Test
+    public void metadataAndDelay() throws IOException {
+        qsObject.setMetadataHeader(true);
+        Map<String, String> metadata = new HashMap<String, String>();
+        metadata.put("type", "test");
+        qsObject.add("with metadata", metadata);
+        qsObject.add("delayed", System.currentTimeMillis() + 3600 * 1000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Assert.assertEquals(2, QueueArchive.export(qsObject, Channels.newChannel(bytes),
+                                                   false));
+        QueueSimple copy = new QueueSimple(tempPath() + File.separator + "copy");
+        copy.setMetadataHeader(true);
+        Assert.assertEquals(2, QueueArchive.importFrom(copy,
+            Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())), false));
+        Assert.assertEquals(2, copy.count());
+        int visible = 0;
+        for (String name: copy) {
+            Assert.assertEquals(metadata, copy.getMetadata(name));
+            Assert.assertTrue(copy.lock(name));
+            Assert.assertEquals("with metadata", copy.get(name));
+            visible++;
+        }
+        Assert.assertEquals(1, visible);
+        // the delayed element is stored in a directory named after a later time
+        String now = String.format("%08x", System.currentTimeMillis() / 1000);
+        String last = null;
+        for (String dir: new File(copy.getQueuePath()).list()) {
+            last = last == null || dir.compareTo(last) > 0 ? dir : last;
+        }
+        Assert.assertTrue(last.compareTo(now) > 0);
+    }
+
+    /**
+     * Test the import of an archive in the previous format, without metadata
+     * and visibility times.
+     */
+    @Test
+    public void previousFormat() throws IOException {
+        ByteBuffer archive = ByteBuffer.allocate(64);
+        archive.put("DIRQARC1".getBytes(StandardCharsets.US_ASCII));
+        byte[] name = "01234567/0123456789abcd".getBytes(StandardCharsets.UTF_8);
+        archive.putShort((short) name.length).put(name).putLong(3);
+        archive.put("abc".getBytes(StandardCharsets.UTF_8)).putShort((short) 0);
+        QueueSimple copy = new QueueSimple(tempPath() + File.separator + "copy");
+        Assert.assertEquals(1, QueueArchive.importFrom(copy, Channels.newChannel(
+            new ByteArrayInputStream(archive.array(), 0, archive.position())), false));
+        for (String element: copy) {
+            Assert.assertTrue(copy.lock(element));
+            Assert.assertEquals("abc", copy.get(element));
+        }
+        Assert.assertEquals(1, copy.count());
+    }
+
+    /**
+     * Test the export of the locked elements and invalid archives.
+     */
+    @Test
+    public void streams() throws IOException {
+        qsObject.add("abc");
+        String locked = qsObject.add("def");
+        Assert.assertTrue(qsObject.lock(locked));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Assert.assertEquals(2, QueueArchive.export(qsObject, Channels.newChannel(bytes),
+                                                   false));
+        byte[] archive = bytes.toByteArray();
+        QueueSimple copy = new QueueSimple(tempPath() + File.separator + "copy");
+        Assert.assertEquals(2, QueueArchive.importFrom(copy,
+            Channels.newChannel(new ByteArrayInputStream(archive)), false));
+        Assert.assertEquals(2, copy.count());
+        try {
+            QueueArchive.importFrom(copy, Channels.newChannel(
+                new ByteArrayInputStream(Arrays.copyOf(archive, archive.length - 4))), false);
+            Assert.fail("truncated archive accepted");
+        } catch (EOFException e) {
+            // expected
+        }
+        try {
+            QueueArchive.importFrom(copy, Channels.newChannel(
+                new ByteArrayInputStream("not an archive".getBytes())), false);
+            Assert.fail("invalid archive accepted");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("magic"));
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+package ch.cern.dirq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ch.cern.dirq.QueueBlockingAdapter}.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public class QueueBlockingAdapterTest extends QueueTestBase {
+
+    private QueueSimple qsObject;
+    private QueueBlockingAdapter adapter;
+
+    @Before
+    public void setUp() throws IOException {
+        qsObject = new QueueSimple(tempPath() + File.separator + "qs");
+        // fresh counters: no background resynchronization racing with the tests
+        qsObject.syncCounter();
+        adapter = new QueueBlockingAdapter(qsObject);
+    }
+
+    /**
+     * Test that size() does not walk the queue but catches up in the
+     * background.
+     */
+    @Test(timeout = 10000)
+    public void sizeFromCounters() throws IOException, InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            qsObject.add("e" + i);
+        }
+        QueueSimple other = new QueueSimple(qsObject.getQueuePath());
+        QueueBlockingAdapter view = new QueueBlockingAdapter(other);
+        // the counters of the new object are resynchronized in the background
+        while (view.size() != 3) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(view.isEmpty());
+    }
+
+    /**
+     * Test the non blocking methods.
+     */
+    @Test
+    public void nonBlocking() throws IOException {
+        Assert.assertTrue(adapter.isEmpty());
+        Assert.assertNull(adapter.poll());
+        Assert.assertNull(adapter.peek());
+        Assert.assertEquals(Integer.MAX_VALUE, adapter.remainingCapacity());
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(adapter.offer(("e" + i).getBytes()));
+        }
+        Assert.assertEquals(5, adapter.size());
+        Assert.assertEquals("e0", new String(adapter.peek()));
+        Assert.assertEquals("e0", new String(adapter.poll()));
+        Assert.assertEquals(4, adapter.size());
+        List<String> seen = new ArrayList<String>();
+        for (byte[] data: adapter) {
+            seen.add(new String(data));
+        }
+        Assert.assertEquals(4, seen.size());
+        Assert.assertEquals("e1", seen.get(0));
+        List<byte[]> drained = new ArrayList<byte[]>();
+        Assert.assertEquals(2, adapter.drainTo(drained, 2));
+        Assert.assertEquals("e2", new String(drained.get(1)));
+        Assert.assertEquals(2, adapter.drainTo(drained));
+        Assert.assertEquals(4, drained.size());
+        Assert.assertEquals(0, adapter.size());
+        Assert.assertEquals(0, qsObject.count());
+        qsObject.setMaxElements(1);
+        Assert.assertEquals(1, adapter.remainingCapacity());
+        Assert.assertTrue(adapter.offer("x".getBytes()));
+        Assert.assertFalse(adapter.offer("y".getBytes()));
+        Assert.assertEquals(0, adapter.remainingCapacity());
+    }
+
+    /**
+     * Test that peek() does not lock, that failed reads give the element back
+     * and that blocking overflow policies are refused.
+     */
+    @Test
+    public void edgeCases() throws IOException {
+        String first = qsObject.add("e0");
+        qsObject.add("e1");
+        long mtime = new File(qsObject.getQueuePath(), first).lastModified();
+        Assert.assertEquals("e0", new String(adapter.peek()));
+        Assert.assertEquals(mtime, new File(qsObject.getQueuePath(), first).lastModified());
+        Assert.assertTrue(qsObject.lock(first));
+        Assert.assertEquals("e1", new String(adapter.peek()));
+        qsObject.unlock(first);
+        QueueSimple failing = new QueueSimple(qsObject.getQueuePath()) {
+            @Override
+            public byte[] getAsByteArray(final String name) throws IOException {
+                throw new IOException("simulated failure");
+            }
+        };
+        try {
+            new QueueBlockingAdapter(failing).poll();
+            Assert.fail("poll() should fail");
+        } catch (UncheckedIOException e) {
+            // expected
+        }
+        Assert.assertTrue(qsObject.lock(first));
+        qsObject.setOverflowPolicy(OverflowPolicy.BLOCK);
+        try {
+            adapter.offer("x".getBytes());
+            Assert.fail("offer() should refuse to block");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new QueueBlockingAdapter(qsObject);
+            Assert.fail("a blocking queue should be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test the blocking methods.
+     */
+    @Test
+    public void blocking() throws IOException, InterruptedException {
+        Assert.assertNull(adapter.poll(50, TimeUnit.MILLISECONDS));
+        qsObject.setMaxElements(1);
+        adapter.put("first".getBytes());
+        Assert.assertFalse(adapter.offer("second".getBytes(), 50, TimeUnit.MILLISECONDS));
+        Thread consumer = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    adapter.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        consumer.start();
+        // blocks until the consumer made room
+        adapter.put("second".getBytes());
+        consumer.join();
+        Assert.assertEquals("second", new String(adapter.take()));
+        Thread producer = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    adapter.put("third".getBytes());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        producer.start();
+        Assert.assertEquals("third", new String(adapter.poll(5, TimeUnit.SECONDS)));
+        producer.join();
+    }
+
+}
@@ -0,0 +1,47 @@
+package ch.cern.dirq;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ch.cern.dirq.QueueCapacity}.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public class QueueCapacityTest {
+
+    /**
+     * Test leaving the overflow state with a large maximum number of elements.
+     */
+    @Test
+    public void largeMaxElements() throws IOException {
+        QueueCounter counter = new QueueCounter();
+        QueueCapacity capacity = new QueueCapacity(counter);
+        int max = 30 * 1000 * 1000;
+        capacity.setMaxElements(max);
+        QueueMemory queue = new QueueMemory();
+        counter.reset(max, 0);
+        try {
+            capacity.check(queue, 0);
+            Assert.fail("the queue should be full");
+        } catch (QueueFullException e) {
+            // expected
+        }
+        // above the low watermark: still full
+        counter.reset(max - 1, 0);
+        try {
+            capacity.check(queue, 0);
+            Assert.fail("the queue should still be full");
+        } catch (QueueFullException e) {
+            // expected
+        }
+        // below the low watermark (90%): not full anymore
+        counter.reset(max / 2, 0);
+        capacity.check(queue, 0);
+    }
+
+}
@@ -0,0 +1,85 @@
+package ch.cern.dirq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ch.cern.dirq.QueueCounter}.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public class QueueCounterTest {
+
+    /**
+     * Test that a single thread resynchronizes the counters, in the calling
+     * thread the first time and in the background afterwards.
+     */
+    @Test(timeout = 10000)
+    public void singleFlight() throws InterruptedException {
+        final QueueCounter counter = new QueueCounter();
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Runnable slowSync = new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                counter.reset(42, 0);
+            }
+        };
+        Thread first = new Thread() {
+            public void run() {
+                counter.refresh(0, slowSync, false);
+            }
+        };
+        first.start();
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        // the other callers do not wait for the resynchronization in progress
+        List<Thread> others = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread other = new Thread() {
+                public void run() {
+                    counter.refresh(0, slowSync, false);
+                }
+            };
+            other.start();
+            others.add(other);
+        }
+        for (Thread other: others) {
+            other.join();
+        }
+        Assert.assertEquals(1, runs.get());
+        release.countDown();
+        first.join();
+        Assert.assertEquals(42, counter.elements());
+        // the next resynchronizations run in the background
+        Thread.sleep(10);
+        final AtomicReference<String> thread = new AtomicReference<String>();
+        final CountDownLatch done = new CountDownLatch(1);
+        counter.refresh(1, new Runnable() {
+            public void run() {
+                thread.set(Thread.currentThread().getName());
+                counter.reset(7, 0);
+                done.countDown();
+            }
+        }, false);
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals("dirq-counter-sync", thread.get());
+        Assert.assertEquals(7, counter.elements());
+    }
+
+}
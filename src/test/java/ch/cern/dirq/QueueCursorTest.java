@@ -0,0 +1,124 @@
+package ch.cern.dirq;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ch.cern.dirq.QueueCursor}.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public class QueueCursorTest extends QueueTestBase {
+
+    private QueueSimple qsObject;
+    private List<String> elts;
+
+    @Before
+    public void setUp() throws IOException {
+        qsObject = new QueueSimple(tempPath() + File.separator + "qs");
+        elts = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            elts.add(qsObject.add("data" + i));
+        }
+        // within a second, the names may not sort in insertion order
+        Collections.sort(elts);
+    }
+
+    private static List<String> list(final Iterator<String> it) {
+        List<String> result = new ArrayList<String>();
+        while (it.hasNext()) {
+            result.add(it.next());
+        }
+        return result;
+    }
+
+    private static String base(final String name) {
+        return name.substring(name.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Test that the cursor skips the consumed head of the queue.
+     */
+    @Test
+    public void skip() throws IOException {
+        Assert.assertTrue(qsObject.lock(elts.get(0)));
+        Assert.assertTrue(qsObject.lock(elts.get(1)));
+        QueueCursor cursor = new QueueCursor();
+        Assert.assertNull(cursor.getDirectory());
+        Assert.assertEquals(elts.subList(2, 5), list(qsObject.iterator(cursor)));
+        Assert.assertEquals(base(elts.get(1)), cursor.getElement());
+        // consume the next one
+        Assert.assertTrue(qsObject.lock(elts.get(2)));
+        qsObject.remove(elts.get(2));
+        Assert.assertTrue(qsObject.lock(elts.get(3)));
+        Assert.assertEquals(elts.subList(4, 5), list(qsObject.iterator(cursor)));
+        Assert.assertEquals(base(elts.get(3)), cursor.getElement());
+        // the plain iterator still sees everything
+        Assert.assertEquals(4, list(qsObject.iterator()).size());
+    }
+
+    /**
+     * Test that unlocked stragglers are found by the full rescans.
+     */
+    @Test
+    public void rescan() throws IOException {
+        Assert.assertTrue(qsObject.lock(elts.get(0)));
+        QueueCursor cursor = new QueueCursor();
+        Assert.assertEquals(4, list(qsObject.iterator(cursor)).size());
+        Assert.assertTrue(qsObject.unlock(elts.get(0)));
+        Assert.assertEquals(4, list(qsObject.iterator(cursor)).size());
+        cursor.setRescanInterval(0);
+        Assert.assertEquals(elts, list(qsObject.iterator(cursor)));
+    }
+
+    /**
+     * Test that delayed elements are never skipped.
+     */
+    @Test
+    public void delayed() throws IOException {
+        String delayed = qsObject.add("later", System.currentTimeMillis() + 3600000);
+        for (String name: elts) {
+            Assert.assertTrue(qsObject.lock(name));
+        }
+        QueueCursor cursor = new QueueCursor();
+        Assert.assertTrue(list(qsObject.iterator(cursor)).isEmpty());
+        Assert.assertEquals(base(elts.get(4)), cursor.getElement());
+        Assert.assertTrue(cursor.getDirectory().compareTo(delayed) < 0);
+    }
+
+    /**
+     * Test persisted cursors.
+     */
+    @Test
+    public void persisted() throws IOException {
+        Assert.assertTrue(qsObject.lock(elts.get(0)));
+        QueueCursor cursor = qsObject.getCursor("consumer1");
+        list(qsObject.iterator(cursor));
+        cursor.save();
+        Assert.assertTrue(new File(qsObject.getQueuePath() + File.separator
+                                   + ".cursor.consumer1").exists());
+        QueueCursor other = qsObject.getCursor("consumer1");
+        Assert.assertEquals(cursor.getDirectory(), other.getDirectory());
+        Assert.assertEquals(base(elts.get(0)), other.getElement());
+        Assert.assertNull(qsObject.getCursor("consumer2").getDirectory());
+        // the cursor file is not seen as part of the queue
+        Assert.assertEquals(5, qsObject.count());
+        try {
+            qsObject.getCursor("../oops");
+            Assert.fail("invalid consumer names should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
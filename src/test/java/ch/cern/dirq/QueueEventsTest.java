@@ -0,0 +1,131 @@
+package ch.cern.dirq;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Unit tests for the Java Flight Recorder events of
+ * {@link ch.cern.dirq.QueueSimple}.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public class QueueEventsTest extends QueueTestBase {
+
+    private static final String[] EVENTS = {
+        "ch.cern.dirq.Add", "ch.cern.dirq.Lock", "ch.cern.dirq.Get",
+        "ch.cern.dirq.Remove", "ch.cern.dirq.Purge", "ch.cern.dirq.DirectoryScan",
+    };
+
+    /**
+     * Test that the queue operations are recorded.
+     */
+    @Test
+    public void recording() throws IOException {
+        Assume.assumeTrue(QueueEvents.AVAILABLE && FlightRecorder.isAvailable());
+        QueueSimple qs = new QueueSimple(tempPath() + File.separator + "qs");
+        Recording recording = new Recording();
+        for (String name: EVENTS) {
+            recording.enable(name).withThreshold(Duration.ZERO);
+        }
+        recording.start();
+        String added = qs.add("hello");
+        for (String name: qs) {
+            Assert.assertTrue(qs.lock(name));
+            Assert.assertFalse(qs.lock(name, true));
+            qs.get(name);
+            qs.remove(name);
+        }
+        qs.purge();
+        recording.stop();
+        Path dump = Paths.get(tempPath(), "dirq.jfr");
+        recording.dump(dump);
+        recording.close();
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (RecordedEvent event: RecordingFile.readAllEvents(dump)) {
+            String name = event.getEventType().getName();
+            Integer count = counts.get(name);
+            counts.put(name, count == null ? 1 : count + 1);
+            if (name.equals("ch.cern.dirq.Add") || name.equals("ch.cern.dirq.Get")) {
+                Assert.assertEquals(added, event.getString("element"));
+                Assert.assertEquals(5, event.getLong("bytes"));
+            } else if (name.equals("ch.cern.dirq.Purge")) {
+                Assert.assertTrue(event.getString("queue").endsWith("qs"));
+            }
+        }
+        Assert.assertEquals(Integer.valueOf(1), counts.get("ch.cern.dirq.Add"));
+        Assert.assertEquals(Integer.valueOf(2), counts.get("ch.cern.dirq.Lock"));
+        Assert.assertEquals(Integer.valueOf(1), counts.get("ch.cern.dirq.Get"));
+        Assert.assertEquals(Integer.valueOf(1), counts.get("ch.cern.dirq.Remove"));
+        Assert.assertEquals(Integer.valueOf(1), counts.get("ch.cern.dirq.Purge"));
+        Assert.assertNotNull(counts.get("ch.cern.dirq.DirectoryScan"));
+    }
+
+    /**
+     * Test that the purge event reports what has been removed.
+     */
+    @Test
+    public void purgeCounts() throws IOException {
+        Assume.assumeTrue(QueueEvents.AVAILABLE && FlightRecorder.isAvailable());
+        String path = tempPath() + File.separator + "qs";
+        QueueSimple qs = new QueueSimple(path).setTtl(10);
+        long now = System.currentTimeMillis();
+        // one expired element in an old intermediate directory
+        File old = new File(path, String.format("%08x", now / 1000 - 100));
+        Assert.assertTrue(old.mkdir());
+        Assert.assertTrue(new File(old, "0123456789abcd").createNewFile());
+        // one stale lock and one stale temporary file in the current one
+        String name = qs.add("hello");
+        Assert.assertTrue(qs.lock(name));
+        File lock = new File(path, name + QueueSimple.LOCKED_SUFFIX);
+        Assert.assertTrue(lock.setLastModified(now - 100 * 1000));
+        File temp = new File(path, name.substring(0, 9) + "0123456789abcd.tmp");
+        Assert.assertTrue(temp.createNewFile());
+        Assert.assertTrue(temp.setLastModified(now - 100 * 1000));
+        Recording recording = new Recording();
+        recording.enable("ch.cern.dirq.Purge").withThreshold(Duration.ZERO);
+        recording.start();
+        qs.purge(10, 10);
+        recording.stop();
+        Path dump = Paths.get(tempPath(), "purge.jfr");
+        recording.dump(dump);
+        recording.close();
+        int count = 0;
+        for (RecordedEvent event: RecordingFile.readAllEvents(dump)) {
+            Assert.assertEquals(1, event.getLong("expired"));
+            Assert.assertEquals(1, event.getLong("locks"));
+            Assert.assertEquals(1, event.getLong("temporaries"));
+            Assert.assertEquals(1, event.getLong("directories"));
+            Assert.assertTrue(event.getLong("operations") > 0);
+            count++;
+        }
+        Assert.assertEquals(1, count);
+    }
+
+    /**
+     * Test that nothing is recorded when the events are not enabled.
+     */
+    @Test
+    public void disabled() throws IOException {
+        Assume.assumeTrue(QueueEvents.AVAILABLE && FlightRecorder.isAvailable());
+        Assert.assertNull(QueueEvents.begin(QueueEvents.ADD));
+        QueueSimple qs = new QueueSimple(tempPath() + File.separator + "qs");
+        qs.add("hello");
+        Assert.assertEquals(1, qs.count());
+    }
+
+}
@@ -0,0 +1,81 @@
+package ch.cern.dirq;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ch.cern.dirq.QueueMaintainer}.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public class QueueMaintainerTest extends QueueTestBase {
+
+    private String qsPath;
+    private QueueSimple qsObject;
+
+    @Before
+    public void setUp() throws IOException {
+        qsPath = tempPath() + File.separator + "qs";
+        qsObject = new QueueSimple(qsPath);
+    }
+
+    /**
+     * Test the leader election.
+     */
+    @Test
+    public void election() throws IOException {
+        QueueMaintainer first = new QueueMaintainer(qsObject, 60000);
+        QueueMaintainer second = new QueueMaintainer(new QueueSimple(qsPath), 60000);
+        try {
+            Assert.assertTrue(first.runOnce());
+            Assert.assertTrue(first.isLeader());
+            Assert.assertFalse(second.runOnce());
+            Assert.assertFalse(second.isLeader());
+            Assert.assertTrue(new File(qsPath + File.separator
+                                       + QueueMaintainer.LOCK_FILE).exists());
+            // the lock file is not seen as part of the queue
+            Assert.assertEquals(0, qsObject.count());
+            // takeover
+            first.close();
+            Assert.assertFalse(first.isLeader());
+            Assert.assertTrue(second.runOnce());
+            Assert.assertTrue(second.isLeader());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    /**
+     * Test the background maintenance.
+     */
+    @Test
+    public void background() throws IOException, InterruptedException {
+        long now = System.currentTimeMillis() / 1000;
+        File old = new File(qsPath + File.separator + String.format("%08x", now - 1000));
+        Assert.assertTrue(old.mkdir());
+        qsObject.add("abc");
+        QueueMaintainer maintainer = new QueueMaintainer(qsObject, 20)
+            .setJitter(0.5).setBudget(Duration.ofSeconds(1)).start();
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (old.exists() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertFalse(old.exists());
+            Assert.assertTrue(maintainer.isLeader());
+        } finally {
+            maintainer.close();
+        }
+        Assert.assertFalse(maintainer.isLeader());
+        Assert.assertEquals(1, qsObject.count());
+    }
+
+}
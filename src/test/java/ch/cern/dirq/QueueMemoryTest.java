@@ -0,0 +1,200 @@
+package ch.cern.dirq;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ch.cern.dirq.QueueMemory}.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public class QueueMemoryTest extends QueueTestBase {
+
+    private QueueMemory qmObject;
+
+    @Before
+    public void setUp() {
+        qmObject = new QueueMemory();
+    }
+
+    /**
+     * Test constructor.
+     */
+    @Test
+    public void creation() {
+        Assert.assertNull(qmObject.getQueuePath());
+        Assert.assertNotEquals(qmObject.getId(), new QueueMemory().getId());
+    }
+
+    /**
+     * Test add and element names.
+     */
+    @Test
+    public void add() throws IOException {
+        String elem = qmObject.add("abc");
+        String[] parts = elem.split("/");
+        Assert.assertEquals(2, parts.length);
+        Assert.assertTrue(QueueSimple.DIRECTORY_REGEXP.matcher(parts[0]).matches());
+        Assert.assertTrue(QueueSimple.ELEMENT_REGEXP.matcher(parts[1]).matches());
+        qmObject.add("abc".getBytes());
+        Assert.assertEquals(2, qmObject.count());
+        Assert.assertEquals(6, qmObject.getBytes());
+    }
+
+    /**
+     * Test addPath.
+     */
+    @Test
+    public void addPath() throws IOException {
+        String path = tempPath() + File.separator + "elem";
+        FileUtils.writeToFile(path, "abc");
+        String elem = qmObject.addPath(path);
+        Assert.assertFalse(new File(path).exists());
+        Assert.assertTrue(qmObject.lock(elem));
+        Assert.assertEquals("abc", qmObject.get(elem));
+    }
+
+    /**
+     * Test lock/unlock.
+     */
+    @Test
+    public void lockUnlock() throws IOException {
+        String elem = qmObject.add("abc");
+        Assert.assertTrue(qmObject.lock(elem));
+        Assert.assertFalse(qmObject.lock(elem, true));
+        Assert.assertTrue(qmObject.unlock(elem));
+        Assert.assertFalse(qmObject.unlock(elem, true));
+        Assert.assertFalse(qmObject.lock("00000000/00000000000000"));
+    }
+
+    /**
+     * Test failing lock (non permissive).
+     */
+    @Test(expected = FileAlreadyExistsException.class)
+    public void failLock() throws IOException {
+        String elem = qmObject.add("abc");
+        Assert.assertTrue(qmObject.lock(elem));
+        qmObject.lock(elem, false);
+    }
+
+    /**
+     * Test failing get (unlocked).
+     */
+    @Test(expected = NoSuchFileException.class)
+    public void failGet() throws IOException {
+        String elem = qmObject.add("abc");
+        qmObject.get(elem);
+    }
+
+    /**
+     * Test get as byte array.
+     */
+    @Test
+    public void getAsByteArray() throws IOException {
+        byte[] dataBytes = "abc".getBytes();
+        String elem = qmObject.add(dataBytes);
+        qmObject.lock(elem);
+        Assert.assertTrue(Arrays.equals(dataBytes, qmObject.getAsByteArray(elem)));
+    }
+
+    /**
+     * Test getPath.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void getPath() throws IOException {
+        qmObject.getPath(qmObject.add("abc"));
+    }
+
+    /**
+     * Test iterate and remove.
+     */
+    @Test
+    public void iterateRemove() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            qmObject.add("abc " + i);
+        }
+        int count = 0;
+        for (String elem: qmObject) {
+            Assert.assertTrue(qmObject.lock(elem));
+            Assert.assertEquals("abc " + count, qmObject.get(elem));
+            qmObject.remove(elem);
+            count++;
+        }
+        Assert.assertEquals(5, count);
+        Assert.assertEquals(0, qmObject.count());
+        Assert.assertEquals(0, qmObject.getBytes());
+    }
+
+    /**
+     * Test purge of stale locks.
+     */
+    @Test
+    public void purge() throws IOException, InterruptedException {
+        String elem = qmObject.add("abc");
+        Assert.assertTrue(qmObject.lock(elem));
+        qmObject.purge();
+        Assert.assertFalse(qmObject.lock(elem));
+        Thread.sleep(1100);
+        qmObject.purge(1);
+        Assert.assertTrue(qmObject.lock(elem));
+    }
+
+    /**
+     * Test capacity.
+     */
+    @Test
+    public void capacity() throws IOException {
+        qmObject.setMaxElements(2);
+        qmObject.add("abc");
+        qmObject.add("def");
+        try {
+            qmObject.add("too much");
+            Assert.fail("added to a full queue");
+        } catch (QueueFullException e) {
+            // expected
+        }
+        qmObject.setOverflowPolicy(OverflowPolicy.DROP_OLDEST).setLowWatermark(50);
+        qmObject.add("ghi");
+        Assert.assertEquals(2, qmObject.count());
+        Iterator<String> it = qmObject.iterator();
+        String elem = it.next();
+        Assert.assertTrue(qmObject.lock(elem));
+        Assert.assertEquals("def", qmObject.get(elem));
+    }
+
+    /**
+     * Test blocking capacity.
+     */
+    @Test
+    public void capacityBlock() throws Exception {
+        qmObject.setMaxElements(1).setOverflowPolicy(OverflowPolicy.BLOCK)
+            .setOverflowTimeout(5000);
+        final String elem = qmObject.add("abc");
+        Thread consumer = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                    qmObject.lock(elem);
+                    qmObject.remove(elem);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        consumer.start();
+        qmObject.add("def");
+        consumer.join();
+        Assert.assertEquals(1, qmObject.count());
+    }
+
+}
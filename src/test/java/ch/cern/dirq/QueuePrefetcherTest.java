@@ -0,0 +1,109 @@
+package ch.cern.dirq;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ch.cern.dirq.QueuePrefetcher}.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public class QueuePrefetcherTest extends QueueTestBase {
+
+    private QueueSimple qsObject;
+
+    @Before
+    public void setUp() throws IOException {
+        qsObject = new QueueSimple(tempPath() + File.separator + "qs");
+    }
+
+    /**
+     * Test consuming all the elements.
+     */
+    @Test
+    public void consume() throws IOException, InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            qsObject.add("data" + i);
+        }
+        Set<String> data = new HashSet<String>();
+        QueuePrefetcher prefetcher = new QueuePrefetcher(qsObject, 4);
+        try {
+            QueuePrefetcher.Element elt;
+            while ((elt = prefetcher.take(1000)) != null) {
+                data.add(new String(elt.getData()));
+                prefetcher.remove(elt);
+                Assert.assertTrue(prefetcher.getDepth() >= 1);
+                Assert.assertTrue(prefetcher.getDepth() <= 4);
+            }
+        } finally {
+            prefetcher.close();
+        }
+        Assert.assertEquals(10, data.size());
+        Assert.assertEquals(0, qsObject.count());
+    }
+
+    /**
+     * Test that the prefetched elements are unlocked when closing.
+     */
+    @Test
+    public void close() throws IOException, InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            qsObject.add("data" + i);
+        }
+        QueuePrefetcher prefetcher = new QueuePrefetcher(qsObject, 4);
+        QueuePrefetcher.Element elt = prefetcher.take(1000);
+        Assert.assertNotNull(elt);
+        prefetcher.unlock(elt);
+        prefetcher.close();
+        Assert.assertEquals(0, prefetcher.getPrefetched());
+        for (String name: qsObject) {
+            Assert.assertTrue(qsObject.lock(name));
+        }
+        try {
+            prefetcher.take(0);
+            Assert.fail("take() on a closed prefetcher should fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that the prefetched elements are unlocked when idle.
+     */
+    @Test
+    public void idle() throws IOException, InterruptedException {
+        qsObject.add("abc");
+        QueuePrefetcher prefetcher = new QueuePrefetcher(qsObject, 4).setIdleTimeout(200);
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (prefetcher.getPrefetched() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(1, prefetcher.getPrefetched());
+            while (prefetcher.getPrefetched() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0, prefetcher.getPrefetched());
+            // the element is unlocked just after leaving the buffer
+            for (String name: qsObject) {
+                boolean locked = qsObject.lock(name);
+                while (!locked && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                    locked = qsObject.lock(name);
+                }
+                Assert.assertTrue(locked);
+            }
+        } finally {
+            prefetcher.close();
+        }
+    }
+
+}
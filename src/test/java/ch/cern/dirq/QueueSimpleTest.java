@@ -2,14 +2,27 @@ package ch.cern.dirq;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -150,6 +163,185 @@ public class QueueSimpleTest extends QueueTestBase {
         Assert.assertTrue(Arrays.equals(dataBytes, qsObject.getAsByteArray(elem)));
     }
 
+    /**
+     * Test get into caller supplied and pooled buffers.
+     */
+    @Test
+    public void getIntoBuffer() throws IOException {
+        byte[] dataBytes = "abc".getBytes();
+        String elem = qsObject.add(dataBytes);
+        qsObject.lock(elem);
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        Assert.assertEquals(3, qsObject.get(elem, buffer));
+        Assert.assertEquals(3, buffer.position());
+        byte[] array = new byte[4];
+        Assert.assertEquals(3, qsObject.get(elem, array, 1));
+        Assert.assertEquals('a', array[1]);
+        FileUtils.BufferPool pool = new FileUtils.BufferPool(4096, 4);
+        buffer = qsObject.getAsByteBuffer(elem, pool);
+        Assert.assertEquals(3, buffer.remaining());
+        Assert.assertEquals('c', buffer.get(2));
+        pool.release(buffer);
+    }
+
+    /**
+     * Test the permissions of the element files.
+     */
+    @Test
+    public void umask() throws IOException {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews()
+                          .contains("posix"));
+        QueueSimple qs = new QueueSimple(tempPath() + File.separator + "umask", 027);
+        for (int i = 0; i < 2; i++) {
+            String elem = qs.add("abc" + i);
+            Assert.assertEquals(PosixFilePermissions.fromString("rw-r-----"),
+                Files.getPosixFilePermissions(Paths.get(qs.getQueuePath(), elem)));
+        }
+        qs.setUmask(0);
+        String elem = qs.add("def");
+        Assert.assertEquals(PosixFilePermissions.fromString("rw-rw-rw-"),
+            Files.getPosixFilePermissions(Paths.get(qs.getQueuePath(), elem)));
+    }
+
+    /**
+     * Test the native file operations (or their fallback).
+     */
+    @Test
+    public void nativeIO() throws IOException {
+        qsObject.setNativeIO(true);
+        String elem1 = qsObject.add("abc");
+        String elem2 = qsObject.add("def".getBytes());
+        Assert.assertEquals(2, qsObject.count());
+        Assert.assertTrue(qsObject.lock(elem1));
+        Assert.assertEquals("abc", qsObject.get(elem1));
+        Assert.assertTrue(qsObject.lock(elem2));
+        Assert.assertEquals("def", new String(qsObject.getAsByteArray(elem2)));
+        if (Boolean.getBoolean("dirq.nativeIO.expected")) {
+            // run with the Java 22 overlay, see the pom.xml: no fallback allowed
+            Assert.assertTrue(NativeIO.isAvailable());
+        }
+        qsObject.setNativeIO(false);
+        Assert.assertFalse(qsObject.isNativeIO());
+    }
+
+    /**
+     * Test startup recovery.
+     */
+    @Test
+    public void recover() throws IOException {
+        Assume.assumeTrue(FileUtils.supportsUserAttributes(Paths.get(qsPath)));
+        Assume.assumeTrue(new File("/proc/self").exists());
+        qsObject.setOwnerTag(true).setMaxBytes(1000);
+        String elem1 = qsObject.add("abc");
+        String elem2 = qsObject.add("def");
+        String elem3 = qsObject.add("ghi");
+        Assert.assertTrue(qsObject.lock(elem1));
+        Assert.assertTrue(qsObject.lock(elem2));
+        Assert.assertTrue(qsObject.lock(elem3));
+        Path lock1 = Paths.get(qsObject.getPath(elem1));
+        String owner = QueueRecovery.lockOwner(
+            FileUtils.readUserAttribute(lock1, QueueSimple.OWNER_ATTRIBUTE),
+            lock1.toFile().lastModified());
+        Assert.assertEquals(QueueRecovery.OWNER, owner);
+        // pretend that elem2 has been locked by a dead process
+        String dead = owner.substring(0, owner.lastIndexOf(':') + 1) + Integer.MAX_VALUE;
+        Path lock2 = Paths.get(qsObject.getPath(elem2));
+        FileUtils.writeUserAttribute(lock2, QueueSimple.OWNER_ATTRIBUTE,
+            QueueRecovery.lockTag(dead, lock2.toFile().lastModified()));
+        // and that elem3 has been locked by a process on another host
+        Path lock3 = Paths.get(qsObject.getPath(elem3));
+        FileUtils.writeUserAttribute(lock3, QueueSimple.OWNER_ATTRIBUTE,
+            QueueRecovery.lockTag("elsewhere:1", lock3.toFile().lastModified()));
+        FileUtils.writeToFile(qsPath + File.separator + elem1 + "0.tmp", "x");
+        RecoveryReport report = qsObject.recover(4);
+        Assert.assertEquals(3, report.getElements());
+        Assert.assertEquals(9, report.getBytes());
+        Assert.assertEquals(1, report.getReleasedLocks());
+        Assert.assertEquals(0, report.getRemovedTemporaries());
+        Assert.assertEquals(1, report.getUntagged());
+        Assert.assertTrue(report.getDuration() >= 0);
+        Assert.assertTrue(qsObject.lock(elem2));
+        Assert.assertFalse(qsObject.lock(elem3));
+    }
+
+    /**
+     * Test that the owner tag of a released lock is not inherited.
+     */
+    @Test
+    public void recoverStaleTag() throws IOException {
+        Assume.assumeTrue(FileUtils.supportsUserAttributes(Paths.get(qsPath)));
+        Assume.assumeTrue(new File("/proc/self").exists());
+        qsObject.setOwnerTag(true);
+        String elem = qsObject.add("abc");
+        Path lock = Paths.get(qsObject.getPath(elem));
+        Assert.assertTrue(qsObject.lock(elem));
+        Assert.assertNotNull(FileUtils.readUserAttribute(lock, QueueSimple.OWNER_ATTRIBUTE));
+        qsObject.unlock(elem);
+        Path path = Paths.get(qsPath + File.separator + elem);
+        Assert.assertNull(FileUtils.readUserAttribute(path, QueueSimple.OWNER_ATTRIBUTE));
+        // a tag of a dead process left on the element by a previous lock
+        String dead = QueueRecovery.OWNER.substring(0, QueueRecovery.OWNER.lastIndexOf(':') + 1)
+            + Integer.MAX_VALUE;
+        FileUtils.writeUserAttribute(path, QueueSimple.OWNER_ATTRIBUTE,
+            QueueRecovery.lockTag(dead, path.toFile().lastModified() - 1000));
+        // must not release the live lock of a process not tagging its locks
+        QueueSimple other = new QueueSimple(qsPath);
+        Assert.assertTrue(other.lock(elem));
+        RecoveryReport report = qsObject.recover(1);
+        Assert.assertEquals(0, report.getReleasedLocks());
+        Assert.assertEquals(1, report.getUntagged());
+        Assert.assertTrue(Files.exists(lock));
+    }
+
+    /**
+     * Test batch locking, removing and unlocking.
+     */
+    @Test
+    public void lockBatch() throws IOException {
+        List<String> elts = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            elts.add(qsObject.add("data" + i));
+        }
+        Assert.assertTrue(qsObject.lock(elts.get(1)));
+        List<String> batch = qsObject.lockBatch(4);
+        Assert.assertEquals(Arrays.asList(elts.get(0), elts.get(2), elts.get(3), elts.get(4)),
+                            batch);
+        Assert.assertEquals(5, qsObject.lockBatch(100, 1000).size());
+        Assert.assertTrue(qsObject.lockBatch(1).isEmpty());
+        qsObject.removeAll(batch);
+        Assert.assertEquals(6, qsObject.count());
+        Assert.assertEquals(6, qsObject.unlockAll(elts));
+        Assert.assertEquals(6, qsObject.lockBatch(100).size());
+        try {
+            qsObject.removeAll(batch);
+            Assert.fail("removing missing elements should fail");
+        } catch (IOException e) {
+            Assert.assertEquals(3, e.getSuppressed().length);
+        }
+    }
+
+    /**
+     * Test incremental purge.
+     */
+    @Test
+    public void purgeIncremental() throws IOException {
+        long now = System.currentTimeMillis() / 1000;
+        for (int i = 1; i <= 10; i++) {
+            new File(qsPath + File.separator + String.format("%08x", now - i * 100)).mkdir();
+        }
+        qsObject.add("abc");
+        Assert.assertEquals(11, new File(qsPath).list().length);
+        // one directory per call
+        Assert.assertFalse(qsObject.purge(Duration.ofSeconds(10), 1));
+        Assert.assertEquals(10, new File(qsPath).list().length);
+        Assert.assertFalse(qsObject.purge(Duration.ofSeconds(10), 1));
+        Assert.assertEquals(9, new File(qsPath).list().length);
+        // the remaining ones at once
+        Assert.assertTrue(qsObject.purge(Duration.ofSeconds(10)));
+        Assert.assertEquals(1, new File(qsPath).list().length);
+        Assert.assertEquals(1, qsObject.count());
+    }
+
     /**
      * Test count.
      */
@@ -312,4 +504,366 @@ public class QueueSimpleTest extends QueueTestBase {
         Assert.assertTrue(lockFile2.exists());
     }
 
+    /**
+     * Test capacity with the reject policy.
+     */
+    @Test
+    public void capacityReject() throws IOException {
+        qsObject.setMaxElements(3);
+        for (int i = 0; i < 3; i++) {
+            qsObject.add("abc " + i);
+        }
+        try {
+            qsObject.add("too much");
+            Assert.fail("added to a full queue");
+        } catch (QueueFullException e) {
+            // expected
+        }
+        Assert.assertEquals(3, qsObject.count());
+        String elem = qsObject.iterator().next();
+        qsObject.lock(elem);
+        qsObject.remove(elem);
+        qsObject.add("fits again");
+        Assert.assertEquals(3, qsObject.count());
+    }
+
+    /**
+     * Test capacity in bytes.
+     */
+    @Test(expected = QueueFullException.class)
+    public void capacityBytes() throws IOException {
+        qsObject.setMaxBytes(5);
+        qsObject.add("abc");
+        qsObject.add("abc".getBytes());
+    }
+
+    /**
+     * Test capacity with the drop oldest policy.
+     */
+    @Test
+    public void capacityDropOldest() throws IOException {
+        qsObject.setMaxElements(2).setLowWatermark(50)
+            .setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+        qsObject.add("first");
+        qsObject.add("second");
+        qsObject.add("third");
+        Assert.assertEquals(2, qsObject.count());
+        String elem = qsObject.iterator().next();
+        qsObject.lock(elem);
+        Assert.assertEquals("second", qsObject.get(elem));
+    }
+
+    /**
+     * Test capacity with the block policy.
+     */
+    @Test
+    public void capacityBlock() throws IOException {
+        qsObject.setMaxElements(1).setOverflowPolicy(OverflowPolicy.BLOCK)
+            .setOverflowTimeout(200);
+        qsObject.add("abc");
+        long start = System.currentTimeMillis();
+        try {
+            qsObject.add("abc");
+            Assert.fail("added to a full queue");
+        } catch (QueueFullException e) {
+            // expected
+        }
+        Assert.assertTrue(System.currentTimeMillis() - start >= 200);
+        Assert.assertEquals(1, qsObject.count());
+    }
+
+    /**
+     * Test expiration.
+     */
+    @Test
+    public void expiration() throws IOException {
+        long old = System.currentTimeMillis() / 1000 - 3600;
+        String oldDir = String.format("%08x", old - old % 60);
+        String oldElem = oldDir + File.separator + String.format("%08x000000", old);
+        Files.createDirectories(Paths.get(qsPath, oldDir));
+        FileUtils.writeToFile(qsPath + File.separator + oldElem, "old");
+        String newElem = qsObject.add("new");
+        Assert.assertEquals(2, qsObject.count());
+        Assert.assertEquals(oldElem, qsObject.iterator().next());
+        qsObject.setTtl(60);
+        Iterator<String> it = qsObject.iterator();
+        Assert.assertEquals(newElem, it.next());
+        Assert.assertFalse(it.hasNext());
+        Assert.assertEquals(2, qsObject.count());
+        qsObject.purge();
+        Assert.assertEquals(1, qsObject.count());
+        Assert.assertFalse(new File(qsPath + File.separator + oldDir).exists());
+    }
+
+    /**
+     * Test that locked expired elements are not purged.
+     */
+    @Test
+    public void expirationLocked() throws IOException {
+        long old = System.currentTimeMillis() / 1000 - 3600;
+        String oldDir = String.format("%08x", old - old % 60);
+        String oldElem = oldDir + File.separator + String.format("%08x000000", old);
+        Files.createDirectories(Paths.get(qsPath, oldDir));
+        FileUtils.writeToFile(qsPath + File.separator + oldElem, "old");
+        Assert.assertTrue(qsObject.lock(oldElem));
+        qsObject.setTtl(60).purge();
+        Assert.assertEquals(1, qsObject.count());
+        Assert.assertEquals("old", qsObject.get(oldElem));
+    }
+
+    /**
+     * Test delayed elements.
+     */
+    @Test
+    public void delayed() throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        String later = qsObject.add("later", start + 2000);
+        String now = qsObject.add("now".getBytes(), start - 2000);
+        Assert.assertEquals(2, qsObject.count());
+        Iterator<String> it = qsObject.iterator();
+        Assert.assertEquals(now, it.next());
+        Assert.assertFalse(it.hasNext());
+        Assert.assertEquals(now, qsObject.lockNext(0));
+        Assert.assertNull(qsObject.lockNext(100));
+        Assert.assertEquals(later, qsObject.lockNext(5000));
+        Assert.assertTrue(System.currentTimeMillis() >= start + 1000);
+        Assert.assertEquals("later", qsObject.get(later));
+    }
+
+    /**
+     * Test that purge keeps the current intermediate directory even when a
+     * delayed element created a newer one.
+     */
+    @Test
+    public void delayedPurge() throws IOException {
+        String elem = qsObject.add("now");
+        Assert.assertTrue(qsObject.lock(elem));
+        qsObject.remove(elem);
+        qsObject.add("later", System.currentTimeMillis() + 3600 * 1000L);
+        File current = new File(qsPath + File.separator + elem).getParentFile();
+        qsObject.purge();
+        Assert.assertTrue(current.isDirectory());
+        Assert.assertTrue(qsObject.purge(Duration.ofSeconds(10)));
+        Assert.assertTrue(current.isDirectory());
+    }
+
+    /**
+     * Test dead lettering after too many attempts.
+     */
+    @Test
+    public void deadLetter() throws IOException {
+        QueueSimple dlq = new QueueSimple(tempPath() + File.separator + "dlq");
+        qsObject.setMaxAttempts(2).setDeadLetterQueue(dlq);
+        String elem = qsObject.add("poison");
+        File lockFile = new File(qsPath + File.separator + elem + QueueSimple.LOCKED_SUFFIX);
+        Assert.assertTrue(qsObject.lock(elem));
+        Assert.assertTrue(lockFile.setLastModified(System.currentTimeMillis() - 25000));
+        qsObject.purge(10);
+        Assert.assertFalse(lockFile.exists());
+        Assert.assertEquals(1, qsObject.getAttempts(elem));
+        Assert.assertEquals(1, qsObject.count());
+        Assert.assertTrue(qsObject.lock(elem));
+        Assert.assertTrue(lockFile.setLastModified(System.currentTimeMillis() - 25000));
+        qsObject.purge(10);
+        Assert.assertEquals(0, qsObject.count());
+        Assert.assertFalse(lockFile.exists());
+        Assert.assertEquals(1, dlq.count());
+        String dead = dlq.iterator().next();
+        Assert.assertTrue(dlq.lock(dead));
+        Assert.assertEquals("poison", dlq.get(dead));
+        if (FileUtils.supportsUserAttributes(Paths.get(qsPath))) {
+            // the attempts only follow the element when stored in its attributes
+            Assert.assertEquals(2, dlq.getAttempts(dead));
+        }
+    }
+
+    /**
+     * Test moving an element to another queue.
+     */
+    @Test
+    public void moveTo() throws IOException {
+        QueueSimple other = new QueueSimple(tempPath() + File.separator + "other");
+        String elem = qsObject.add("abc");
+        Assert.assertTrue(qsObject.lock(elem));
+        String moved = qsObject.moveTo(other, elem);
+        Assert.assertEquals(0, qsObject.count());
+        Assert.assertEquals(1, other.count());
+        Assert.assertTrue(other.lock(moved));
+        Assert.assertEquals("abc", other.get(moved));
+    }
+
+    /**
+     * Test adding to several queues.
+     */
+    @Test
+    public void addToAll() throws IOException {
+        List<QueueSimple> targets = new ArrayList<QueueSimple>();
+        for (int i = 0; i < 3; i++) {
+            targets.add(new QueueSimple(tempPath() + File.separator + "fanout" + i));
+        }
+        // attempts are stored in the inode: this queue needs its own copy
+        targets.get(1).setMaxAttempts(2);
+        List<String> names = QueueSimple.addToAll(targets, "abc");
+        Assert.assertEquals(3, names.size());
+        for (int i = 0; i < 3; i++) {
+            QueueSimple target = targets.get(i);
+            Assert.assertEquals(1, target.count());
+            Assert.assertTrue(target.lock(names.get(i)));
+            Assert.assertEquals("abc", target.get(names.get(i)));
+            // only the element and its lock, no temporary file left
+            Assert.assertEquals(2, new File(target.getQueuePath()).listFiles()[0].list().length);
+        }
+        Assert.assertEquals(FileUtils.fileKey(targets.get(0).getPath(names.get(0))),
+                            FileUtils.fileKey(targets.get(2).getPath(names.get(2))));
+        Assert.assertNotEquals(FileUtils.fileKey(targets.get(0).getPath(names.get(0))),
+                               FileUtils.fileKey(targets.get(1).getPath(names.get(1))));
+    }
+
+    /**
+     * Test adaptive granularity.
+     */
+    @Test
+    public void adaptiveGranularity() throws IOException {
+        qsObject.setAdaptiveGranularity(5);
+        String previous = "";
+        for (int i = 0; i < 20; i++) {
+            String dir = qsObject.add("abc " + i).split(File.separator)[0];
+            Assert.assertTrue(QueueSimple.DIRECTORY_REGEXP.matcher(dir).matches());
+            Assert.assertTrue(dir.compareTo(previous) >= 0);
+            previous = dir;
+        }
+        Assert.assertEquals(20, qsObject.count());
+    }
+
+    /**
+     * Test hashed subdirectories.
+     */
+    @Test
+    public void shards() throws IOException, InterruptedException {
+        qsObject.add("unsharded");
+        qsObject.setShards(4);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 5; j++) {
+                            qsObject.add("sharded " + j);
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        Assert.assertEquals(21, qsObject.count());
+        String previous = "";
+        int count = 0;
+        for (String name: qsObject) {
+            String[] parts = name.split(File.separator);
+            String base = parts[parts.length - 1];
+            Assert.assertTrue(QueueSimple.ELEMENT_REGEXP.matcher(base).matches());
+            if (parts.length == 3) {
+                Assert.assertTrue(QueueSimple.SHARD_REGEXP.matcher(parts[1]).matches());
+            }
+            Assert.assertTrue(base.compareTo(previous) >= 0);
+            previous = base;
+            Assert.assertTrue(qsObject.lock(name));
+            qsObject.remove(name);
+            count++;
+        }
+        Assert.assertEquals(21, count);
+        Assert.assertEquals(0, qsObject.count());
+    }
+
+    /**
+     * Test the element listing.
+     */
+    @Test
+    public void elements() throws IOException {
+        qsObject.setShards(2);
+        String first = qsObject.add("a");
+        String second = qsObject.add("bcd");
+        qsObject.add("delayed", System.currentTimeMillis() + 1000000);
+        Assert.assertTrue(qsObject.lock(second));
+        long now = System.currentTimeMillis();
+        List<ElementInfo> infos = qsObject.elements().collect(Collectors.toList());
+        Assert.assertEquals(2, infos.size());
+        Assert.assertEquals(first, infos.get(0).getName());
+        Assert.assertEquals(1, infos.get(0).getSize());
+        Assert.assertFalse(infos.get(0).isLocked());
+        Assert.assertEquals(second, infos.get(1).getName());
+        Assert.assertEquals(3, infos.get(1).getSize());
+        Assert.assertTrue(infos.get(1).isLocked());
+        for (ElementInfo info: infos) {
+            Assert.assertTrue(Math.abs(info.getCreationTime() - now) < 5000);
+            Assert.assertTrue(Math.abs(info.getModificationTime() - now) < 5000);
+        }
+        qsObject.remove(second);
+        Assert.assertEquals(1, qsObject.elements().mapToLong(ElementInfo::getSize).sum());
+    }
+
+    /**
+     * Test the element metadata, in attributes and in headers.
+     */
+    @Test
+    public void metadata() throws IOException {
+        Map<String, String> metadata = new HashMap<String, String>();
+        metadata.put("type", "order");
+        metadata.put("tenant", "t\u00e9nant");
+        String plain = qsObject.add("plain", Collections.<String, String>emptyMap());
+        Assert.assertTrue(qsObject.getMetadata(plain).isEmpty());
+        if (FileUtils.supportsUserAttributes(Paths.get(qsPath))) {
+            String name = qsObject.add("data", metadata);
+            Assert.assertEquals(metadata, qsObject.getMetadata(name));
+            Assert.assertEquals(4, Files.size(Paths.get(qsPath, name)));
+            Assert.assertTrue(qsObject.lock(name));
+            Assert.assertEquals("data", qsObject.get(name));
+        } else {
+            try {
+                qsObject.add("data", metadata);
+                Assert.fail("metadata without attributes nor headers should fail");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+        }
+        // header fallback, as written where attributes are not supported
+        byte[] header = ElementMetadata.header(metadata);
+        byte[] data = "d\u00e4ta".getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = Arrays.copyOf(header, header.length + data.length);
+        System.arraycopy(data, 0, bytes, header.length, data.length);
+        String path = tempPath() + File.separator + "header";
+        FileUtils.writeToFile(path, bytes);
+        String name = qsObject.addPath(path);
+        // without the opt-in, data looking like a header is left untouched
+        Assert.assertFalse(qsObject.isMetadataHeader());
+        Assert.assertTrue(qsObject.getMetadata(name).isEmpty());
+        Assert.assertTrue(qsObject.lock(name));
+        Assert.assertArrayEquals(bytes, qsObject.getAsByteArray(name));
+        qsObject.setMetadataHeader(true);
+        Assert.assertEquals(metadata, qsObject.getMetadata(name));
+        Assert.assertEquals("d\u00e4ta", qsObject.get(name));
+        Assert.assertArrayEquals(data, qsObject.getAsByteArray(name));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(100);
+        buffer.put((byte) 1);
+        Assert.assertEquals(data.length, qsObject.get(name, buffer));
+        Assert.assertEquals(1 + data.length, buffer.position());
+        buffer.flip().position(1);
+        byte[] read = new byte[data.length];
+        buffer.get(read);
+        Assert.assertArrayEquals(data, read);
+        byte[] array = new byte[100];
+        Assert.assertEquals(data.length, qsObject.get(name, array, 3));
+        Assert.assertArrayEquals(data, Arrays.copyOfRange(array, 3, 3 + data.length));
+        FileUtils.BufferPool pool = new FileUtils.BufferPool(1024, 1);
+        buffer = qsObject.getAsByteBuffer(name, pool);
+        read = new byte[buffer.remaining()];
+        buffer.get(read);
+        Assert.assertArrayEquals(data, read);
+    }
+
 }
@@ -0,0 +1,112 @@
+package ch.cern.dirq;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ch.cern.dirq.QueueStats}.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public class QueueStatsTest extends QueueTestBase {
+
+    /**
+     * Test the statistics shared by two queue objects.
+     */
+    @Test
+    public void shared() throws IOException {
+        String path = tempPath() + File.separator + "qs";
+        QueueSimple producer = new QueueSimple(path);
+        producer.add("before");
+        Assert.assertNull(producer.getStats());
+        producer.setStats(true);
+        Assert.assertNotNull(producer.getStats());
+        QueueSimple consumer = new QueueSimple(path).setStats(true);
+        producer.add("hello");
+        // the sizes are counted in bytes, not in chars
+        producer.add("w\u00f6rld!");
+        int done = 0;
+        for (String name: consumer) {
+            Assert.assertTrue(consumer.lock(name));
+            Assert.assertFalse(consumer.lock(name, true));
+            consumer.get(name);
+            if (done++ == 0) {
+                consumer.remove(name);
+            } else {
+                consumer.unlock(name);
+            }
+        }
+        QueueStats stats = QueueStats.open(path);
+        Assert.assertEquals(1, stats.getInitialElements());
+        Assert.assertEquals(2, stats.getAdds());
+        Assert.assertEquals(1, stats.getRemoves());
+        Assert.assertEquals(3, stats.getLocks());
+        Assert.assertEquals(3, stats.getLockFailures());
+        Assert.assertEquals(12, stats.getBytesIn());
+        Assert.assertEquals(18, stats.getBytesOut());
+        Assert.assertEquals(2, stats.getDepth());
+        Assert.assertTrue(stats.getLastActivity() > 0);
+        // the reader sees the updates made after it was opened
+        producer.add("again");
+        Assert.assertEquals(3, stats.getAdds());
+        Assert.assertEquals(3, stats.getDepth());
+        // disabled statistics are not updated anymore
+        producer.setStats(false);
+        producer.add("ignored");
+        Assert.assertEquals(3, stats.getAdds());
+    }
+
+    /**
+     * Test that moved elements and elements added to several queues are
+     * counted.
+     */
+    @Test
+    public void moved() throws IOException {
+        QueueSimple source = new QueueSimple(tempPath() + File.separator + "qs1");
+        QueueSimple target = new QueueSimple(tempPath() + File.separator + "qs2");
+        source.setStats(true);
+        target.setStats(true);
+        QueueSimple.addToAll(Arrays.asList(source, target), "both");
+        String name = source.add("moved");
+        Assert.assertTrue(source.lock(name));
+        source.moveTo(target, name);
+        QueueStats stats = QueueStats.open(source.getQueuePath());
+        Assert.assertEquals(2, stats.getAdds());
+        Assert.assertEquals(1, stats.getRemoves());
+        Assert.assertEquals(1, stats.getDepth());
+        stats = QueueStats.open(target.getQueuePath());
+        Assert.assertEquals(2, stats.getAdds());
+        Assert.assertEquals(2, stats.getDepth());
+    }
+
+    /**
+     * Test the detection of missing or invalid statistics files.
+     */
+    @Test
+    public void invalid() throws IOException {
+        String path = tempPath() + File.separator + "qs";
+        new QueueSimple(path);
+        try {
+            QueueStats.open(path);
+            Assert.fail("missing statistics file");
+        } catch (IOException e) {
+            // expected
+        }
+        Files.write(Paths.get(path, QueueStats.STATS_FILE), new byte[100]);
+        try {
+            QueueStats.open(path);
+            Assert.fail("invalid statistics file");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+package ch.cern.dirq;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ch.cern.dirq.QueueWriteBehind}.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public class QueueWriteBehindTest extends QueueTestBase {
+
+    private QueueSimple qsObject;
+    private QueueWriteBehind qwObject;
+
+    @Before
+    public void setUp() throws IOException {
+        qsObject = new QueueSimple(tempPath() + File.separator + "qs");
+        // long interval: flushes only happen when the tests ask for them
+        qwObject = new QueueWriteBehind(qsObject, 100, 3600000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        qwObject.close();
+    }
+
+    /**
+     * Test add and flush.
+     */
+    @Test
+    public void flush() throws IOException {
+        qwObject.add("abc");
+        qwObject.add("def".getBytes());
+        Assert.assertEquals(2, qwObject.getBuffered());
+        Assert.assertEquals(0, qsObject.count());
+        Assert.assertEquals(2, qwObject.count());
+        qwObject.flush();
+        Assert.assertEquals(0, qwObject.getBuffered());
+        Assert.assertEquals(2, qsObject.count());
+        Assert.assertEquals(2, qwObject.count());
+        List<String> data = new ArrayList<String>();
+        for (String name: qsObject) {
+            Assert.assertTrue(qsObject.lock(name));
+            data.add(qsObject.get(name));
+        }
+        Assert.assertTrue(data.contains("abc"));
+        Assert.assertTrue(data.contains("def"));
+    }
+
+    /**
+     * Test consuming elements from the buffer and from the backing queue.
+     */
+    @Test
+    public void consume() throws IOException, InterruptedException {
+        qwObject.add("disk");
+        qwObject.flush();
+        // make sure that the next element gets a later name
+        Thread.sleep(1100);
+        qwObject.add("memory");
+        List<String> data = new ArrayList<String>();
+        for (String name: qwObject) {
+            if (qwObject.lock(name)) {
+                data.add(qwObject.get(name));
+                qwObject.remove(name);
+            }
+        }
+        Assert.assertEquals(2, data.size());
+        // elements come in time order, wherever they are
+        Assert.assertEquals("disk", data.get(0));
+        Assert.assertEquals("memory", data.get(1));
+        Assert.assertEquals(0, qwObject.count());
+    }
+
+    /**
+     * Test that locked elements are not flushed.
+     */
+    @Test
+    public void flushLocked() throws IOException {
+        String name = qwObject.add("abc");
+        Assert.assertTrue(qwObject.lock(name));
+        qwObject.flush();
+        Assert.assertEquals(1, qwObject.getBuffered());
+        Assert.assertEquals(0, qsObject.count());
+        try {
+            qwObject.getPath(name);
+            Assert.fail("getPath() of a buffered element should fail");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        Assert.assertTrue(qwObject.unlock(name));
+        qwObject.flush();
+        Assert.assertEquals(0, qwObject.getBuffered());
+        Assert.assertEquals(1, qsObject.count());
+    }
+
+    /**
+     * Test that locked elements do not use the buffer capacity.
+     */
+    @Test(timeout = 10000)
+    public void capacityLocked() throws IOException {
+        // below the flush threshold so that the flusher does not take it first
+        QueueWriteBehind qw = new QueueWriteBehind(qsObject, 4, 3600000);
+        String name = qw.add("locked");
+        Assert.assertTrue(qw.lock(name));
+        for (int i = 0; i < 10; i++) {
+            qw.add("abc " + i);
+        }
+        qw.close();
+        Assert.assertEquals(1, qw.getBuffered());
+        Assert.assertEquals(10, qsObject.count());
+    }
+
+    /**
+     * Test the background flush and close.
+     */
+    @Test
+    public void background() throws IOException, InterruptedException {
+        QueueWriteBehind qw = new QueueWriteBehind(qsObject, 10, 50);
+        qw.add("abc");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (qsObject.count() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, qsObject.count());
+        qw.add("def");
+        qw.close();
+        Assert.assertEquals(2, qsObject.count());
+        try {
+            qw.add("ghi");
+            Assert.fail("add() on a closed queue should fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package ch.cern.dirq;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ch.cern.dirq.TypedQueue}.
+ *
+ * @author Lionel Cons &lt;lionel.cons@cern.ch&gt;
+ * @author Massimo Paladin &lt;massimo.paladin@gmail.com&gt;
+ * Copyright (C) CERN 2012-2024
+ */
+public class TypedQueueTest extends QueueTestBase {
+
+    private QueueSimple qsObject;
+
+    @Before
+    public void setUp() throws IOException {
+        qsObject = new QueueSimple(tempPath() + File.separator + "qs");
+    }
+
+    private static <T> T addAndGet(final TypedQueue<T> tq, final T value)
+        throws IOException {
+        String name = tq.add(value);
+        Assert.assertTrue(tq.lock(name));
+        T result = tq.get(name);
+        tq.remove(name);
+        return result;
+    }
+
+    /**
+     * Test the string serializer.
+     */
+    @Test
+    public void strings() throws IOException {
+        TypedQueue<String> tq = new TypedQueue<String>(qsObject, Serializers.string());
+        Assert.assertEquals("", addAndGet(tq, ""));
+        String text = "h\u00e9llo \u20ac \ud83d\ude00";
+        Assert.assertEquals(text, addAndGet(tq, text));
+        // multi-byte characters spanning the encoding chunks
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            big.append("\u20ac\ud83d\ude00x");
+        }
+        String name = tq.add(big.toString());
+        Assert.assertTrue(tq.lock(name));
+        Assert.assertEquals(big.toString(), qsObject.get(name));
+        Assert.assertEquals(big.toString(), tq.get(name));
+        Assert.assertEquals(1, tq.count());
+        // elements with a metadata header
+        qsObject.setMetadataHeader(true);
+        name = qsObject.add("data", Collections.singletonMap("type", "test"));
+        Assert.assertTrue(tq.lock(name));
+        Assert.assertEquals("data", tq.get(name));
+    }
+
+    /**
+     * Test that the gets are accounted for like the ones of the queue.
+     */
+    @Test
+    public void stats() throws IOException {
+        qsObject.setStats(true);
+        TypedQueue<String> tq = new TypedQueue<String>(qsObject, Serializers.string());
+        String name = tq.add("h\u00e9llo");
+        Assert.assertTrue(tq.lock(name));
+        Assert.assertEquals("h\u00e9llo", tq.get(name));
+        Assert.assertEquals(6, qsObject.getStats().getBytesOut());
+    }
+
+    /**
+     * Test the byte array and byte buffer serializers.
+     */
+    @Test
+    public void bytes() throws IOException {
+        TypedQueue<byte[]> ta = new TypedQueue<byte[]>(qsObject, Serializers.byteArray());
+        byte[] data = {0, 1, 2, (byte) 255};
+        Assert.assertArrayEquals(data, addAndGet(ta, data));
+        Assert.assertArrayEquals(new byte[0], addAndGet(ta, new byte[0]));
+        TypedQueue<ByteBuffer> tb =
+            new TypedQueue<ByteBuffer>(qsObject, Serializers.byteBuffer());
+        ByteBuffer buffer = ByteBuffer.allocateDirect(10);
+        buffer.put(data).flip().position(1);
+        ByteBuffer result = addAndGet(tb, buffer);
+        Assert.assertEquals(1, buffer.position());
+        Assert.assertEquals(3, result.remaining());
+        Assert.assertEquals(buffer, result);
+        qsObject.setMaxBytes(5);
+        ta.add(data);
+        try {
+            ta.add(data);
+            Assert.fail("capacity ignored");
+        } catch (QueueFullException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test a stream based serializer.
+     */
+    @Test
+    public void streams() throws IOException {
+        Serializer<Long> serializer = new Serializer<Long>() {
+            public void write(final Long value, final WritableByteChannel channel)
+                throws IOException {
+                DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+                out.writeLong(value);
+                out.flush();
+            }
+
+            public Long read(final ReadableByteChannel channel, final long size)
+                throws IOException {
+                Assert.assertEquals(8, size);
+                return new DataInputStream(Channels.newInputStream(channel)).readLong();
+            }
+        };
+        TypedQueue<Long> tq = new TypedQueue<Long>(qsObject, serializer);
+        Assert.assertEquals(Long.valueOf(-42), addAndGet(tq, -42L));
+        for (String name: tq) {
+            Assert.fail("unexpected element: " + name);
+        }
+    }
+
+}